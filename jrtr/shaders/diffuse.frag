@@ -5,6 +5,14 @@
 // Uniform variables passed in from host program
 uniform sampler2D myTexture;
 
+// Parameters of the material, bound by the render context
+layout(std140) uniform Material {
+	vec4 diffuse;
+	vec4 specular;
+	vec4 ambient;
+	float shininess;
+};
+
 // Variables passed in from the vertex shader
 in float ndotl;
 in vec2 frag_texcoord;
@@ -15,6 +23,7 @@ out vec4 frag_shaded;
 void main()
 {		
 	// The built-in GLSL function "texture" performs the texture lookup
-	frag_shaded = texture(myTexture, frag_texcoord);
+	// and the result is tinted with the diffuse color of the material
+	frag_shaded = diffuse * texture(myTexture, frag_texcoord);
 }
 
@@ -2,18 +2,36 @@
 // GLSL version 1.50 
 // Vertex shader for diffuse shading in combination with a texture map
 
+// Data of the frame, uploaded once per frame by the render context
+layout(std140) uniform Frame {
+	mat4 projection;
+	mat4 view;
+	vec4 lightDirection[256];
+	vec4 lightPosition[256];
+	vec4 lightDiffuse[256];
+	int nLights;
+};
+
+// Data of the object, streamed for every draw call by the render context
+layout(std140) uniform Object {
+	mat4 modelview;
+};
+
 // Uniform variables, passed in from host program via suitable 
 // variants of glUniform*
-uniform mat4 projection;
-uniform mat4 modelview;
-uniform vec4 lightDirection[1];
-uniform int nLights;
+// Set to 1 by the render context for instanced draw calls, which pass
+// the modelview matrix of each instance in instanceModelview
+uniform int instanced;
+// The indices of the lights of the frame that affect the object, most
+// relevant first, -1 for unused entries
+uniform ivec4 lightIndices[2];
 
 // Input vertex attributes; passed in from host program to shader
 // via vertex buffer objects
 in vec3 normal;
 in vec4 position;
 in vec2 texcoord;
+in mat4 instanceModelview;
 
 // Output variables for fragment shader
 out float ndotl;
@@ -21,12 +39,35 @@ out vec2 frag_texcoord;
 
 void main()
 {		
-	// Compute dot product of normal and light direction
-	// and pass color to fragment shader
+	mat4 mv = instanced != 0 ? instanceModelview : modelview;
+
+	// Compute the dot products of the normal and the light directions of
+	// the lights of the object, and pass their sum to the fragment shader
 	// Note: here we assume "lightDirection" is specified in camera coordinates,
 	// so we transform the normal to camera coordinates, and we don't transform
-	// the light direction, i.e., it stays in camera coordinates
-	ndotl = max(dot(modelview * vec4(normal,0), lightDirection[0]),0);
+	// the light direction, i.e., it stays in camera coordinates. Light 
+	// positions are in world coordinates and are transformed with the view
+	// matrix. Point and spot lights (lightPosition.w = 1) fade out linearly
+	// up to their range, lightDirection.w holds one over the range.
+	vec4 n = mv * vec4(normal,0);
+	vec4 p = mv * position;
+	ndotl = 0.0;
+	for(int i = 0; i < 8; i++)
+	{
+		int l = lightIndices[i / 4][i % 4];
+		if(l < 0)
+			break;
+		if(lightPosition[l].w == 0)
+			ndotl += max(dot(n, vec4(lightDirection[l].xyz,0)),0);
+		else
+		{
+			vec4 d = view * vec4(lightPosition[l].xyz,1) - p;
+			float distance = length(d.xyz);
+			float falloff = max(1 - distance * lightDirection[l].w, 0);
+			if(distance > 0)
+				ndotl += max(dot(n.xyz, d.xyz / distance),0) * falloff;
+		}
+	}
 
 	// Pass texture coordiantes to fragment shader, OpenGL automatically
 	// interpolates them to each pixel  (in a perspectively correct manner) 
@@ -35,5 +76,5 @@ void main()
 	// Transform position, including projection matrix
 	// Note: gl_Position is a default output variable containing
 	// the transformed vertex position
-	gl_Position = projection * modelview * position;
+	gl_Position = projection * mv * position;
 }
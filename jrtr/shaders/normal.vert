@@ -2,26 +2,45 @@
 // Fragment shader for "pseudo normal shading": Show z-coordinates
 // of camera space normal as gray scale color
 
+// Data of the frame, uploaded once per frame by the render context
+layout(std140) uniform Frame {
+	mat4 projection;
+	mat4 view;
+	vec4 lightDirection[256];
+	vec4 lightPosition[256];
+	vec4 lightDiffuse[256];
+	int nLights;
+};
+
+// Data of the object, streamed for every draw call by the render context
+layout(std140) uniform Object {
+	mat4 modelview;
+};
+
 // Uniform variables, set in main program
-uniform mat4 projection; 
-uniform mat4 modelview;
+// Set to 1 by the render context for instanced draw calls, which pass
+// the modelview matrix of each instance in instanceModelview
+uniform int instanced;
 
 // Input vertex attributes; passed from main program to shader 
 // via vertex buffer objects
 in vec4 position;
 in vec4 color;
 in vec3 normal;
+in mat4 instanceModelview;
 
 // Output variables
 out vec4 frag_normal;
 
 void main()
 {
+	mat4 mv = instanced != 0 ? instanceModelview : modelview;
+
 	// Make sure the 4th component of the normal vector is 0,
 	// transform normal to camera space, and pass to fragment shader
-	frag_normal = modelview * vec4(normal, 0);
+	frag_normal = mv * vec4(normal, 0);
 	
 	// Note: gl_Position is a default output variable containing
 	// the transformed vertex position
-	gl_Position = projection * modelview * position;
+	gl_Position = projection * mv * position;
 }
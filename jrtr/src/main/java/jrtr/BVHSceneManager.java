@@ -0,0 +1,353 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A scene manager that culls shapes against the view {@link Frustum}. The
+ * world space bounding boxes of all shapes are kept in a bounding volume
+ * hierarchy (a binary tree with one shape per leaf), so that invisible parts
+ * of the scene are rejected with a few box tests.
+ * <p>
+ * The hierarchy is built top-down when shapes are added or removed. When a
+ * shape moves, i.e., {@link Shape#setTransformation(Matrix4f)} is called,
+ * only its leaf and the boxes of its ancestors are refitted on the next
+ * call of {@link #iterator()}; the structure of the tree is kept.
+ */
+public class BVHSceneManager implements SceneManagerInterface, Shape.TransformationListener {
+
+	private ArrayList<Shape> shapes;
+	private IdentityHashMap<Shape, Integer> shapeIndices;
+	private LinkedList<Light> lights;
+	private Camera camera;
+	private Frustum frustum;
+	private BVHSceneManagerItr itr;
+
+	// Per shape: copies of the world space boxes of the shapes as minX, 
+	// minY, minZ, maxX, maxY, maxZ, and the leaf of the shape in the tree
+	private float[] worldBoxes;
+	private int[] leaves;
+	private boolean[] moved;
+	private int[] movedShapes;
+	private int nMoved;
+	private boolean structureChanged;
+
+	// The tree. Inner nodes have two children and no shape, leaves have a
+	// shape and no children.
+	private float[] nodeBoxes;
+	private int[] nodeLeft, nodeRight, nodeParent, nodeShape;
+	private int nNodes;
+	private int[] order;
+
+	private int[] visible;
+	private int nVisible;
+	private int[] stack;
+
+	public BVHSceneManager()
+	{
+		shapes = new ArrayList<Shape>();
+		shapeIndices = new IdentityHashMap<Shape, Integer>();
+		lights = new LinkedList<Light>();
+		camera = new Camera();
+		frustum = new Frustum();
+		itr = new BVHSceneManagerItr();
+		worldBoxes = new float[6 * 16];
+		leaves = new int[16];
+		moved = new boolean[16];
+		movedShapes = new int[16];
+		visible = new int[16];
+		structureChanged = true;
+	}
+
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
+	public Frustum getFrustum()
+	{
+		return frustum;
+	}
+
+	public void addShape(Shape shape)
+	{
+		int s = shapes.size();
+		if(s == leaves.length)
+			grow(2 * s);
+		shapes.add(shape);
+		shapeIndices.put(shape, s);
+		shape.addTransformationListener(this);
+		updateWorldBox(s);
+		structureChanged = true;
+	}
+
+	public void removeShape(Shape shape)
+	{
+		Integer index = shapeIndices.remove(shape);
+		if(index == null)
+			return;
+		shape.removeTransformationListener(this);
+		// Move the last shape into the free slot
+		int s = index, last = shapes.size() - 1;
+		Shape lastShape = shapes.remove(last);
+		if(s != last) {
+			shapes.set(s, lastShape);
+			shapeIndices.put(lastShape, s);
+			updateWorldBox(s);
+		}
+		structureChanged = true;
+	}
+
+	public void addLight(Light light)
+	{
+		lights.add(light);
+	}
+
+	public Iterator<Light> lightIterator()
+	{
+		return lights.iterator();
+	}
+
+	public void transformationChanged(Shape shape)
+	{
+		Integer s = shapeIndices.get(shape);
+		if(s != null && !moved[s]) {
+			moved[s] = true;
+			movedShapes[nMoved++] = s;
+		}
+	}
+
+	/**
+	 * @return the number of shapes returned by the last iterator
+	 */
+	public int getNumberOfVisibleShapes()
+	{
+		return nVisible;
+	}
+
+	/**
+	 * Bring the hierarchy up to date, extract the frustum planes from the
+	 * current camera and collect the visible shapes.
+	 */
+	public SceneManagerIterator iterator()
+	{
+		update();
+		frustum.extractPlanes(camera.getCameraMatrix());
+		cull();
+		itr.i = 0;
+		return itr;
+	}
+
+	private void update()
+	{
+		for(int i=0; i<nMoved; i++) {
+			int s = movedShapes[i];
+			moved[s] = false;
+			if(s < shapes.size())
+				updateWorldBox(s);
+		}
+		if(structureChanged) {
+			build();
+			structureChanged = false;
+		} else {
+			for(int i=0; i<nMoved; i++)
+				refit(movedShapes[i]);
+		}
+		nMoved = 0;
+	}
+
+	private void cull()
+	{
+		nVisible = 0;
+		if(nNodes == 0)
+			return;
+		int top = 0;
+		stack[top++] = 0;
+		while(top > 0) {
+			int node = stack[--top];
+			if(!frustum.isVisible(nodeBoxes, 6 * node))
+				continue;
+			if(nodeShape[node] >= 0) {
+				visible[nVisible++] = nodeShape[node];
+			} else {
+				stack[top++] = nodeRight[node];
+				stack[top++] = nodeLeft[node];
+			}
+		}
+	}
+
+	private void build()
+	{
+		int n = shapes.size();
+		int m = Math.max(2 * n - 1, 1);
+		if(nodeShape == null || nodeShape.length < m) {
+			nodeBoxes = new float[6 * m];
+			nodeLeft = new int[m];
+			nodeRight = new int[m];
+			nodeParent = new int[m];
+			nodeShape = new int[m];
+			stack = new int[m];
+		}
+		if(order == null || order.length < n)
+			order = new int[leaves.length];
+		for(int i=0; i<n; i++)
+			order[i] = i;
+		nNodes = 0;
+		if(n > 0)
+			build(0, n, -1);
+	}
+
+	/**
+	 * Build the subtree over the shapes order[lo..hi-1] by splitting them at
+	 * the median of their box centers, along the axis where the centers
+	 * spread the most.
+	 */
+	private int build(int lo, int hi, int parent)
+	{
+		int node = nNodes++;
+		nodeParent[node] = parent;
+		if(hi - lo == 1) {
+			int s = order[lo];
+			nodeShape[node] = s;
+			nodeLeft[node] = -1;
+			nodeRight[node] = -1;
+			leaves[s] = node;
+			System.arraycopy(worldBoxes, 6 * s, nodeBoxes, 6 * node, 6);
+			return node;
+		}
+
+		float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for(int i=lo; i<hi; i++) {
+			for(int k=0; k<3; k++) {
+				float c = center(order[i], k);
+				min[k] = Math.min(min[k], c);
+				max[k] = Math.max(max[k], c);
+			}
+		}
+		int axis = 0;
+		for(int k=1; k<3; k++) {
+			if(max[k] - min[k] > max[axis] - min[axis])
+				axis = k;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, axis);
+		nodeShape[node] = -1;
+		nodeLeft[node] = build(lo, mid, node);
+		nodeRight[node] = build(mid, hi, node);
+		union(node);
+		return node;
+	}
+
+	/**
+	 * Partially sort order[lo..hi] such that order[k] holds the shape with
+	 * the k-th smallest center along the axis, smaller ones before it and
+	 * larger ones after it.
+	 */
+	private void select(int lo, int hi, int k, int axis)
+	{
+		while(lo < hi) {
+			float pivot = center(order[(lo + hi) >>> 1], axis);
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(center(order[i], axis) < pivot) i++;
+				while(center(order[j], axis) > pivot) j--;
+				if(i <= j) {
+					int t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if(k <= j)
+				hi = j;
+			else if(k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private float center(int s, int axis)
+	{
+		// Shapes without bounds have infinite boxes, sort them to the origin
+		float c = 0.5f * (worldBoxes[6 * s + axis] + worldBoxes[6 * s + axis + 3]);
+		return c == c ? c : 0;
+	}
+
+	/**
+	 * Copy the new box of a moved shape to its leaf and enlarge or shrink
+	 * the boxes of the ancestors, as far as they change.
+	 */
+	private void refit(int s)
+	{
+		int node = leaves[s];
+		System.arraycopy(worldBoxes, 6 * s, nodeBoxes, 6 * node, 6);
+		node = nodeParent[node];
+		while(node >= 0 && union(node))
+			node = nodeParent[node];
+	}
+
+	/**
+	 * Set the box of an inner node to the union of the boxes of its
+	 * children.
+	 *
+	 * @return true if the box changed
+	 */
+	private boolean union(int node)
+	{
+		int l = 6 * nodeLeft[node], r = 6 * nodeRight[node], b = 6 * node;
+		boolean changed = false;
+		for(int k=0; k<3; k++) {
+			float min = Math.min(nodeBoxes[l + k], nodeBoxes[r + k]);
+			float max = Math.max(nodeBoxes[l + k + 3], nodeBoxes[r + k + 3]);
+			changed |= min != nodeBoxes[b + k] || max != nodeBoxes[b + k + 3];
+			nodeBoxes[b + k] = min;
+			nodeBoxes[b + k + 3] = max;
+		}
+		return changed;
+	}
+
+	/**
+	 * Copy the world space box of a shape, which the shape only recomputes
+	 * when its transformation was set.
+	 */
+	private void updateWorldBox(int s)
+	{
+		System.arraycopy(shapes.get(s).getWorldBoundingBox(), 0, worldBoxes, 6 * s, 6);
+	}
+
+	private void grow(int capacity)
+	{
+		worldBoxes = Arrays.copyOf(worldBoxes, 6 * capacity);
+		leaves = Arrays.copyOf(leaves, capacity);
+		moved = Arrays.copyOf(moved, capacity);
+		movedShapes = Arrays.copyOf(movedShapes, capacity);
+		visible = Arrays.copyOf(visible, capacity);
+	}
+
+	private class BVHSceneManagerItr implements SceneManagerIterator {
+
+		private int i;
+		private RenderItem item = new RenderItem();
+
+		public boolean hasNext()
+		{
+			return i < nVisible;
+		}
+
+		public RenderItem next()
+		{
+			Shape shape = shapes.get(visible[i++]);
+			item.set(shape, shape.getTransformation());
+			return item;
+		}
+	}
+}
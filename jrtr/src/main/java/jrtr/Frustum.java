@@ -14,6 +14,14 @@ import javax.vecmath.Matrix4f;
 public class Frustum {
 
 	private Matrix4f projectionMatrix;
+
+	/**
+	 * The six clipping planes (left, right, bottom, top, near, far) in world
+	 * space, four coefficients (a,b,c,d) each. A point p is inside a plane if
+	 * a*p.x + b*p.y + c*p.z + d >= 0.
+	 */
+	private float[] planes = new float[24];
+	private Matrix4f viewProjection = new Matrix4f();
 	
 	/**
 	 * Construct a default viewing frustum. The frustum is given by a 
@@ -44,4 +52,78 @@ public class Frustum {
 	{
 		this.projectionMatrix = m;
 	}
+
+	/**
+	 * Extract the world space clipping planes from the projection matrix and
+	 * the given camera matrix. Call this whenever the camera or the
+	 * projection changed, before testing objects for visibility.
+	 *
+	 * @param cameraMatrix the world-to-camera transform
+	 */
+	public void extractPlanes(Matrix4f cameraMatrix)
+	{
+		viewProjection.mul(projectionMatrix, cameraMatrix);
+		Matrix4f m = viewProjection;
+		setPlane(0, m.m30 + m.m00, m.m31 + m.m01, m.m32 + m.m02, m.m33 + m.m03);
+		setPlane(1, m.m30 - m.m00, m.m31 - m.m01, m.m32 - m.m02, m.m33 - m.m03);
+		setPlane(2, m.m30 + m.m10, m.m31 + m.m11, m.m32 + m.m12, m.m33 + m.m13);
+		setPlane(3, m.m30 - m.m10, m.m31 - m.m11, m.m32 - m.m12, m.m33 - m.m13);
+		setPlane(4, m.m30 + m.m20, m.m31 + m.m21, m.m32 + m.m22, m.m33 + m.m23);
+		setPlane(5, m.m30 - m.m20, m.m31 - m.m21, m.m32 - m.m22, m.m33 - m.m23);
+	}
+
+	private void setPlane(int i, float a, float b, float c, float d)
+	{
+		float l = (float) Math.sqrt(a * a + b * b + c * c);
+		planes[4 * i] = a / l;
+		planes[4 * i + 1] = b / l;
+		planes[4 * i + 2] = c / l;
+		planes[4 * i + 3] = d / l;
+	}
+
+	/**
+	 * @return the clipping planes computed by the last call of
+	 * {@link #extractPlanes(Matrix4f)}
+	 */
+	public float[] getPlanes()
+	{
+		return planes;
+	}
+
+	/**
+	 * Test an axis aligned box in world space against the clipping planes.
+	 * The test is conservative, i.e., some boxes outside of the frustum
+	 * near its corners are reported as visible.
+	 *
+	 * @param box the box as minX, minY, minZ, maxX, maxY, maxZ
+	 * @param offset the index of minX in box
+	 * @return false if the box is completely outside of the frustum
+	 */
+	public boolean isVisible(float[] box, int offset)
+	{
+		for (int i = 0; i < 24; i += 4) {
+			float a = planes[i], b = planes[i + 1], c = planes[i + 2];
+			// The box corner furthest along the plane normal
+			float x = a >= 0 ? box[offset + 3] : box[offset];
+			float y = b >= 0 ? box[offset + 4] : box[offset + 1];
+			float z = c >= 0 ? box[offset + 5] : box[offset + 2];
+			if (a * x + b * y + c * z + planes[i + 3] < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Test a sphere in world space against the clipping planes.
+	 *
+	 * @return false if the sphere is completely outside of the frustum
+	 */
+	public boolean isVisible(float x, float y, float z, float radius)
+	{
+		for (int i = 0; i < 24; i += 4) {
+			if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3] < -radius)
+				return false;
+		}
+		return true;
+	}
 }
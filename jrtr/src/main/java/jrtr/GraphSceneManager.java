@@ -0,0 +1,216 @@
+package jrtr;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A scene manager that stores the objects in a scene graph of
+ * {@link TransformGroup}s and {@link ShapeNode}s. The graph is flattened
+ * into arrays in depth-first order whenever its structure changes; local
+ * and world transformations are kept in contiguous float arrays with
+ * 16 floats (a row-major 4x4 matrix) per node.
+ * <p>
+ * World transformations are only recomputed for nodes whose transformation,
+ * or the transformation of one of their ancestors, changed since the last
+ * update. Animating a group therefore needs a single
+ * {@link Node#setTransformation(Matrix4f)} call, no matter how many
+ * children it has.
+ */
+public class GraphSceneManager implements SceneManagerInterface {
+
+	private TransformGroup root;
+	private LinkedList<Light> lights;
+	private Camera camera;
+	private Frustum frustum;
+	private GraphSceneManagerItr itr;
+
+	// The flattened graph; parents precede their children
+	private Node[] nodes;
+	private int[] parents;
+	private float[] local, world;
+	private boolean[] dirty, changed;
+	private int nNodes;
+	private int[] shapeSlots;
+	private int nShapes;
+	private boolean structureChanged;
+
+	public GraphSceneManager()
+	{
+		root = new TransformGroup();
+		root.setManager(this);
+		lights = new LinkedList<Light>();
+		camera = new Camera();
+		frustum = new Frustum();
+		itr = new GraphSceneManagerItr();
+		nodes = new Node[16];
+		parents = new int[16];
+		local = new float[16 * 16];
+		world = new float[16 * 16];
+		dirty = new boolean[16];
+		changed = new boolean[16];
+		shapeSlots = new int[16];
+		structureChanged = true;
+	}
+
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
+	public Frustum getFrustum()
+	{
+		return frustum;
+	}
+
+	/**
+	 * @return the root of the scene graph, add nodes to it to make them part
+	 * of the scene
+	 */
+	public TransformGroup getRoot()
+	{
+		return root;
+	}
+
+	public void addLight(Light light)
+	{
+		lights.add(light);
+	}
+
+	public Iterator<Light> lightIterator()
+	{
+		return lights.iterator();
+	}
+
+	public SceneManagerIterator iterator()
+	{
+		update();
+		itr.i = 0;
+		return itr;
+	}
+
+	/**
+	 * Recomputes the world transformations of all nodes that changed since
+	 * the last update. Called by {@link #iterator()}.
+	 */
+	public void update()
+	{
+		if (structureChanged)
+			flatten();
+
+		for (int i = 0; i < nNodes; i++) {
+			int p = parents[i];
+			changed[i] = dirty[i] || (p >= 0 && changed[p]);
+			if (!changed[i])
+				continue;
+			dirty[i] = false;
+			if (p < 0)
+				System.arraycopy(local, 16 * i, world, 16 * i, 16);
+			else
+				mul(world, 16 * p, local, 16 * i, world, 16 * i);
+			if (nodes[i] instanceof ShapeNode)
+				load(world, 16 * i, ((ShapeNode) nodes[i]).getWorldTransformation());
+		}
+	}
+
+	void structureChanged()
+	{
+		structureChanged = true;
+	}
+
+	void transformationChanged(Node node)
+	{
+		if (node.slot >= 0) {
+			store(node.getTransformation(), local, 16 * node.slot);
+			dirty[node.slot] = true;
+		}
+	}
+
+	/**
+	 * Stores the graph in depth-first order in the node arrays.
+	 */
+	private void flatten()
+	{
+		nNodes = 0;
+		nShapes = 0;
+		flatten(root, -1);
+		structureChanged = false;
+	}
+
+	private void flatten(Node node, int parent)
+	{
+		if (nNodes == nodes.length) {
+			int n = 2 * nodes.length;
+			nodes = Arrays.copyOf(nodes, n);
+			parents = Arrays.copyOf(parents, n);
+			local = Arrays.copyOf(local, 16 * n);
+			world = Arrays.copyOf(world, 16 * n);
+			dirty = Arrays.copyOf(dirty, n);
+			changed = Arrays.copyOf(changed, n);
+		}
+		int i = nNodes++;
+		nodes[i] = node;
+		parents[i] = parent;
+		node.slot = i;
+		store(node.getTransformation(), local, 16 * i);
+		dirty[i] = true;
+
+		if (node instanceof ShapeNode) {
+			if (nShapes == shapeSlots.length)
+				shapeSlots = Arrays.copyOf(shapeSlots, 2 * nShapes);
+			shapeSlots[nShapes++] = i;
+		} else if (node instanceof TransformGroup) {
+			for (Node child : ((TransformGroup) node).getChildren())
+				flatten(child, i);
+		}
+	}
+
+	/**
+	 * Multiplies the row-major 4x4 matrices a and b and stores the result in
+	 * c. c may be the same array as a or b, but not overlap with them.
+	 */
+	private static void mul(float[] a, int ao, float[] b, int bo, float[] c, int co)
+	{
+		for (int r = 0; r < 4; r++) {
+			float a0 = a[ao + 4 * r], a1 = a[ao + 4 * r + 1], a2 = a[ao + 4 * r + 2], a3 = a[ao + 4 * r + 3];
+			for (int k = 0; k < 4; k++)
+				c[co + 4 * r + k] = a0 * b[bo + k] + a1 * b[bo + 4 + k] + a2 * b[bo + 8 + k] + a3 * b[bo + 12 + k];
+		}
+	}
+
+	private static void store(Matrix4f m, float[] a, int o)
+	{
+		a[o] = m.m00; a[o + 1] = m.m01; a[o + 2] = m.m02; a[o + 3] = m.m03;
+		a[o + 4] = m.m10; a[o + 5] = m.m11; a[o + 6] = m.m12; a[o + 7] = m.m13;
+		a[o + 8] = m.m20; a[o + 9] = m.m21; a[o + 10] = m.m22; a[o + 11] = m.m23;
+		a[o + 12] = m.m30; a[o + 13] = m.m31; a[o + 14] = m.m32; a[o + 15] = m.m33;
+	}
+
+	private static void load(float[] a, int o, Matrix4f m)
+	{
+		m.m00 = a[o]; m.m01 = a[o + 1]; m.m02 = a[o + 2]; m.m03 = a[o + 3];
+		m.m10 = a[o + 4]; m.m11 = a[o + 5]; m.m12 = a[o + 6]; m.m13 = a[o + 7];
+		m.m20 = a[o + 8]; m.m21 = a[o + 9]; m.m22 = a[o + 10]; m.m23 = a[o + 11];
+		m.m30 = a[o + 12]; m.m31 = a[o + 13]; m.m32 = a[o + 14]; m.m33 = a[o + 15];
+	}
+
+	private class GraphSceneManagerItr implements SceneManagerIterator {
+
+		private int i;
+		private RenderItem item = new RenderItem();
+
+		public boolean hasNext()
+		{
+			return i < nShapes;
+		}
+
+		public RenderItem next()
+		{
+			ShapeNode node = (ShapeNode) nodes[shapeSlots[i++]];
+			item.set(node.getShape(), node.getWorldTransformation());
+			return item;
+		}
+	}
+}
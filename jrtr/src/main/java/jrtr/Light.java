@@ -24,6 +24,7 @@ public class Light {
 		spotDirection = new Vector3f(0.f,0.f,1.f);
 		spotExponent = 0.f;
 		spotCutoff = 180.f;
+		range = Float.POSITIVE_INFINITY;
 	}
 
 	public Vector3f direction;
@@ -35,5 +36,11 @@ public class Light {
 	public Vector3f spotDirection;
 	public float spotExponent;
 	public float spotCutoff;
+	/**
+	 * The distance from the position beyond which a point or spot light has
+	 * no effect. Lights with an infinite range, and directional lights, 
+	 * affect all objects.
+	 */
+	public float range;
 	public Type type;
 }
\ No newline at end of file
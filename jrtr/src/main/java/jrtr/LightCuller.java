@@ -0,0 +1,320 @@
+package jrtr;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * Assigns to each object the few lights of a scene that affect it most, so
+ * that render contexts do not need to pass every light to every object.
+ * <p>
+ * Point and spot lights with a finite {@link Light#range} are bounded by a
+ * sphere around their position. Once per frame, {@link #update(Iterator)}
+ * sorts them into a uniform grid, stored as a sorted array of (cell hash,
+ * light) pairs. An object then only tests the lights in the grid cells its
+ * bounding sphere overlaps. Directional lights and lights with an infinite
+ * range are considered for every object.
+ * <p>
+ * Among the lights that reach an object, the ones with the highest score
+ * are chosen. Lights that affect everything score highest, local lights
+ * score by their brightness times the fraction of their range that is
+ * left at the object.
+ * <p>
+ * The chosen lights are returned either as an array, or as their indices
+ * in the lights of the frame (see {@link #getLight(int)}), for shaders that
+ * read all lights of a frame from a uniform buffer.
+ */
+public class LightCuller {
+
+	/**
+	 * Local lights that cover more than this number of cells per axis are
+	 * tested for every object instead of being put into the grid.
+	 */
+	private static final int MAX_CELLS = 4;
+
+	private int maxLights;
+
+	// The lights of the frame and the indices of those tested for every
+	// object
+	private Light[] lights;
+	private int nLights;
+	private int[] global;
+	private int nGlobal;
+
+	// The grid: the cell hash in the upper and the light index in the lower
+	// 32 bits, sorted
+	private float cellSize;
+	private long[] cells;
+	private int nCells;
+
+	// Marks the lights already tested in the current query
+	private int[] stamps;
+	private int stamp;
+
+	private float[] scores;
+	private int[] selected;
+	private float[] sphere;
+
+	/**
+	 * @param maxLights
+	 *            the maximum number of lights assigned to an object
+	 */
+	public LightCuller(int maxLights)
+	{
+		this.maxLights = maxLights;
+		lights = new Light[16];
+		global = new int[16];
+		stamps = new int[16];
+		cells = new long[64];
+		scores = new float[maxLights];
+		selected = new int[maxLights];
+		sphere = new float[4];
+	}
+
+	public int getMaxLights()
+	{
+		return maxLights;
+	}
+
+	/**
+	 * @return the number of lights of the frame
+	 */
+	public int getNumberOfLights()
+	{
+		return nLights;
+	}
+
+	/**
+	 * @return the i-th light of the frame, in the order of the scene
+	 */
+	public Light getLight(int i)
+	{
+		return lights[i];
+	}
+
+	/**
+	 * Collect the lights of a frame and sort the local lights into the grid.
+	 *
+	 * @param iterator
+	 *            the lights of the scene
+	 */
+	public void update(Iterator<Light> iterator)
+	{
+		Arrays.fill(lights, 0, nLights, null);
+		nLights = 0;
+		nGlobal = 0;
+		nCells = 0;
+		float rangeSum = 0;
+		int nLocal = 0;
+		while(iterator.hasNext()) {
+			Light l = iterator.next();
+			if(nLights == lights.length) {
+				lights = Arrays.copyOf(lights, 2 * nLights);
+				global = Arrays.copyOf(global, 2 * nLights);
+				stamps = Arrays.copyOf(stamps, 2 * nLights);
+			}
+			if(isLocal(l)) {
+				rangeSum += l.range;
+				nLocal++;
+			}
+			lights[nLights++] = l;
+		}
+
+		// Cells of twice the average range, most lights overlap at most
+		// 2x2x2 cells
+		cellSize = nLocal > 0 ? Math.max(2 * rangeSum / nLocal, 1e-3f) : 1;
+		for(int i=0; i<nLights; i++) {
+			Light l = lights[i];
+			if(!isLocal(l) || 2 * l.range > MAX_CELLS * cellSize) {
+				global[nGlobal++] = i;
+				continue;
+			}
+			int x0 = cell(l.position.x - l.range), x1 = cell(l.position.x + l.range);
+			int y0 = cell(l.position.y - l.range), y1 = cell(l.position.y + l.range);
+			int z0 = cell(l.position.z - l.range), z1 = cell(l.position.z + l.range);
+			for(int x=x0; x<=x1; x++) {
+				for(int y=y0; y<=y1; y++) {
+					for(int z=z0; z<=z1; z++) {
+						if(nCells == cells.length)
+							cells = Arrays.copyOf(cells, 2 * nCells);
+						cells[nCells++] = ((long) hash(x, y, z) << 32) | i;
+					}
+				}
+			}
+		}
+		Arrays.sort(cells, 0, nCells);
+	}
+
+	/**
+	 * Find the lights that affect an object.
+	 *
+	 * @param vertexData
+	 *            the vertex data of the object
+	 * @param t
+	 *            the transformation of the object
+	 * @param result
+	 *            receives the lights, at least {@link #getMaxLights()} long
+	 * @return the number of lights stored in the result
+	 */
+	public int assign(VertexData vertexData, Matrix4f t, Light[] result)
+	{
+		Shape.transformSphere(vertexData.getBoundingSphere(), t, sphere);
+		return assign(sphere[0], sphere[1], sphere[2], sphere[3], result);
+	}
+
+	/**
+	 * Find the lights that affect a world space sphere.
+	 *
+	 * @param result
+	 *            receives the lights, at least {@link #getMaxLights()} long
+	 * @return the number of lights stored in the result
+	 */
+	public int assign(float x, float y, float z, float r, Light[] result)
+	{
+		int n = select(x, y, z, r);
+		for(int i=0; i<n; i++)
+			result[i] = lights[selected[i]];
+		return n;
+	}
+
+	/**
+	 * Find the lights that affect an object, as indices into the lights of
+	 * the frame.
+	 *
+	 * @param vertexData
+	 *            the vertex data of the object
+	 * @param t
+	 *            the transformation of the object
+	 * @param result
+	 *            receives the indices, most relevant first, at least
+	 *            {@link #getMaxLights()} long
+	 * @return the number of indices stored in the result
+	 */
+	public int assignIndices(VertexData vertexData, Matrix4f t, int[] result)
+	{
+		Shape.transformSphere(vertexData.getBoundingSphere(), t, sphere);
+		return assignIndices(sphere[0], sphere[1], sphere[2], sphere[3], result);
+	}
+
+	/**
+	 * Find the lights that affect a world space sphere, as indices into the
+	 * lights of the frame.
+	 *
+	 * @param result
+	 *            receives the indices, most relevant first, at least
+	 *            {@link #getMaxLights()} long
+	 * @return the number of indices stored in the result
+	 */
+	public int assignIndices(float x, float y, float z, float r, int[] result)
+	{
+		int n = select(x, y, z, r);
+		System.arraycopy(selected, 0, result, 0, n);
+		return n;
+	}
+
+	/**
+	 * Store the indices of the lights that affect a sphere in selected.
+	 *
+	 * @return the number of lights chosen
+	 */
+	private int select(float x, float y, float z, float r)
+	{
+		stamp++;
+		int n = 0;
+		for(int i=0; i<nGlobal; i++)
+			n = consider(global[i], x, y, z, r, n);
+
+		int x0 = cell(x - r), x1 = cell(x + r);
+		int y0 = cell(y - r), y1 = cell(y + r);
+		int z0 = cell(z - r), z1 = cell(z + r);
+		if(r == Float.POSITIVE_INFINITY || (long) (x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1) > nCells) {
+			// Large objects test the lights directly
+			for(int i=0; i<nCells; i++)
+				n = consider((int) cells[i], x, y, z, r, n);
+			return n;
+		}
+		for(int cx=x0; cx<=x1; cx++) {
+			for(int cy=y0; cy<=y1; cy++) {
+				for(int cz=z0; cz<=z1; cz++) {
+					long key = (long) hash(cx, cy, cz) << 32;
+					int i = lowerBound(key);
+					while(i < nCells && (cells[i] & 0xFFFFFFFF00000000L) == key)
+						n = consider((int) cells[i++], x, y, z, r, n);
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Test a light against a sphere and insert its index into selected,
+	 * which is sorted by decreasing score, if it is among the best.
+	 *
+	 * @return the new number of selected lights
+	 */
+	private int consider(int i, float x, float y, float z, float r, int n)
+	{
+		if(stamps[i] == stamp)
+			return n;
+		stamps[i] = stamp;
+		Light l = lights[i];
+
+		float score = Float.POSITIVE_INFINITY;
+		if(isLocal(l)) {
+			float dx = l.position.x - x, dy = l.position.y - y, dz = l.position.z - z;
+			float d = Math.max((float) Math.sqrt(dx * dx + dy * dy + dz * dz) - r, 0);
+			if(d >= l.range)
+				return n;
+			score = (l.diffuse.x + l.diffuse.y + l.diffuse.z) * (1 - d / l.range);
+		}
+
+		// Lights with equal scores keep the order of the scene
+		int k = n < maxLights ? n : maxLights - 1;
+		if(n == maxLights && scores[k] >= score)
+			return n;
+		while(k > 0 && scores[k - 1] < score) {
+			scores[k] = scores[k - 1];
+			selected[k] = selected[k - 1];
+			k--;
+		}
+		scores[k] = score;
+		selected[k] = i;
+		return n < maxLights ? n + 1 : n;
+	}
+
+	/**
+	 * @return true if the light only reaches objects within its range
+	 */
+	public static boolean isLocal(Light l)
+	{
+		return l.type != Light.Type.DIRECTIONAL && l.range < Float.POSITIVE_INFINITY;
+	}
+
+	private int cell(float v)
+	{
+		return (int) Math.floor(v / cellSize);
+	}
+
+	private static int hash(int x, int y, int z)
+	{
+		return (x * 73856093) ^ (y * 19349663) ^ (z * 83492791);
+	}
+
+	/**
+	 * @return the first index in the grid whose entry is not smaller than
+	 * the key
+	 */
+	private int lowerBound(long key)
+	{
+		int lo = 0, hi = nCells;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(cells[mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,85 @@
+package jrtr;
+
+import java.util.stream.IntStream;
+
+/**
+ * Sparse stencil table that maps the vertices of a control mesh to the
+ * vertices of the mesh obtained by {@link MeshData#loop(int)}. Each refined
+ * vertex is a weighted sum of a few control vertices; the weights are
+ * stored in compressed sparse row form, one row per refined vertex.
+ * <p>
+ * Once the table is built with {@link MeshData#computeLoopStencils(int)},
+ * moving control points only requires one sparse matrix-vector product
+ * (see {@link #evaluate(float[], float[], int)}), the subdivision topology
+ * is not touched again.
+ */
+public class LoopStencils {
+
+	private int nControl;
+	private int[] rowOffsets;
+	private int[] sources;
+	private float[] weights;
+
+	/**
+	 * @param nControl
+	 *            the number of control vertices
+	 * @param rowOffsets
+	 *            start of each row in sources and weights, with one extra
+	 *            entry holding the total number of weights
+	 * @param sources
+	 *            the control vertex of each weight
+	 * @param weights
+	 *            the stencil weights
+	 */
+	public LoopStencils(int nControl, int[] rowOffsets, int[] sources, float[] weights) {
+		this.nControl = nControl;
+		this.rowOffsets = rowOffsets;
+		this.sources = sources;
+		this.weights = weights;
+	}
+
+	public int getNumberOfControlVertices() {
+		return nControl;
+	}
+
+	public int getNumberOfRefinedVertices() {
+		return rowOffsets.length - 1;
+	}
+
+	public int[] getRowOffsets() {
+		return rowOffsets;
+	}
+
+	public int[] getSources() {
+		return sources;
+	}
+
+	public float[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * Computes the refined vertex attributes from the control vertex
+	 * attributes. The rows are evaluated in parallel.
+	 *
+	 * @param control
+	 *            attributes of the control vertices, c floats per vertex
+	 * @param refined
+	 *            receives the attributes of the refined vertices, c floats per
+	 *            vertex
+	 * @param c
+	 *            the number of components per vertex, e.g. 3 for positions
+	 */
+	public void evaluate(final float[] control, final float[] refined, final int c) {
+		IntStream.range(0, getNumberOfRefinedVertices()).parallel().forEach(r -> {
+			for (int k = 0; k < c; k++)
+				refined[c * r + k] = 0;
+			for (int s = rowOffsets[r]; s < rowOffsets[r + 1]; s++) {
+				int v = sources[s];
+				float w = weights[s];
+				for (int k = 0; k < c; k++)
+					refined[c * r + k] += w * control[c * v + k];
+			}
+		});
+	}
+}
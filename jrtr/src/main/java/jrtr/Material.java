@@ -4,18 +4,25 @@ import javax.vecmath.*;
 
 /**
  * Stores the properties of a material.
+ * <p>
+ * Render contexts may keep a copy of the colors and the shininess on the 
+ * GPU, which they update when the version of the material changes. These
+ * properties can therefore only be changed with the setters.
  */
 public class Material {
 
 	// Material properties
 	public Texture diffuseMap, normalMap, specularMap, ambientMap, alphaMap;
-	public Vector3f diffuse;
-	public Vector3f specular;
-	public Vector3f ambient;
-	public float shininess;
+	private final Vector3f diffuse;
+	private final Vector3f specular;
+	private final Vector3f ambient;
+	private float shininess;
 	public Shader shader;
 	public Texture texture;
 	
+	// Incremented whenever the colors or the shininess change
+	private int version;
+	
 	public Material()
 	{
 		diffuse = new Vector3f(1.f, 1.f, 1.f);
@@ -30,4 +37,66 @@ public class Material {
 		shader = null;
 		texture = null;
 	}
+	
+	/**
+	 * @return a copy of the diffuse color
+	 */
+	public Vector3f getDiffuse()
+	{
+		return new Vector3f(diffuse);
+	}
+	
+	/**
+	 * @return a copy of the specular color
+	 */
+	public Vector3f getSpecular()
+	{
+		return new Vector3f(specular);
+	}
+	
+	/**
+	 * @return a copy of the ambient color
+	 */
+	public Vector3f getAmbient()
+	{
+		return new Vector3f(ambient);
+	}
+	
+	public float getShininess()
+	{
+		return shininess;
+	}
+	
+	public void setDiffuse(Vector3f diffuse)
+	{
+		this.diffuse.set(diffuse);
+		version++;
+	}
+	
+	public void setSpecular(Vector3f specular)
+	{
+		this.specular.set(specular);
+		version++;
+	}
+	
+	public void setAmbient(Vector3f ambient)
+	{
+		this.ambient.set(ambient);
+		version++;
+	}
+	
+	public void setShininess(float shininess)
+	{
+		this.shininess = shininess;
+		version++;
+	}
+	
+	/**
+	 * @return a number that changes whenever the colors or the shininess 
+	 * change
+	 */
+	public int getVersion()
+	{
+		return version;
+	}
 }
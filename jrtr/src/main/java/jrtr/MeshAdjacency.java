@@ -0,0 +1,231 @@
+package jrtr;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The connectivity of a {@link MeshData} in compressed sparse row form:
+ * vertex-to-vertex, vertex-to-face and face-to-face adjacency. The
+ * neighbours of element i are stored at <code>indices[offsets[i]]</code> to
+ * <code>indices[offsets[i+1]-1]</code>. Use
+ * {@link MeshData#getAdjacency()} to build it.
+ * <p>
+ * The operators of this class run as primitive loops over these arrays and
+ * process the vertices in parallel. Positions are passed in as flat arrays
+ * with three floats per vertex, e.g. the position element of the vertex
+ * data of the mesh.
+ */
+public class MeshAdjacency {
+
+	private int nVertices, nFaces;
+	private int[] triangles;
+	private int[] vvOffsets, vvIndices;
+	private int[] vfOffsets, vfIndices;
+	private int[] ffOffsets, ffIndices;
+
+	/**
+	 * @param nVertices
+	 *            the number of vertices
+	 * @param triangles
+	 *            three vertex indices per face
+	 * @param vvOffsets
+	 *            row offsets of the vertex-to-vertex adjacency
+	 * @param vvIndices
+	 *            neighbouring vertices, in rotational order around each vertex
+	 * @param vfOffsets
+	 *            row offsets of the vertex-to-face adjacency
+	 * @param vfIndices
+	 *            adjacent faces, in rotational order around each vertex
+	 * @param ffOffsets
+	 *            row offsets of the face-to-face adjacency
+	 * @param ffIndices
+	 *            faces sharing an edge with each face
+	 */
+	public MeshAdjacency(int nVertices, int[] triangles, int[] vvOffsets, int[] vvIndices,
+			int[] vfOffsets, int[] vfIndices, int[] ffOffsets, int[] ffIndices) {
+		this.nVertices = nVertices;
+		this.nFaces = triangles.length / 3;
+		this.triangles = triangles;
+		this.vvOffsets = vvOffsets;
+		this.vvIndices = vvIndices;
+		this.vfOffsets = vfOffsets;
+		this.vfIndices = vfIndices;
+		this.ffOffsets = ffOffsets;
+		this.ffIndices = ffIndices;
+	}
+
+	public int getNumberOfVertices() {
+		return nVertices;
+	}
+
+	public int getNumberOfFaces() {
+		return nFaces;
+	}
+
+	public int[] getTriangles() {
+		return triangles;
+	}
+
+	public int[] getVertexVertexOffsets() {
+		return vvOffsets;
+	}
+
+	public int[] getVertexVertexIndices() {
+		return vvIndices;
+	}
+
+	public int[] getVertexFaceOffsets() {
+		return vfOffsets;
+	}
+
+	public int[] getVertexFaceIndices() {
+		return vfIndices;
+	}
+
+	public int[] getFaceFaceOffsets() {
+		return ffOffsets;
+	}
+
+	public int[] getFaceFaceIndices() {
+		return ffIndices;
+	}
+
+	/**
+	 * Smooths the positions with the uniform Laplacian: each iteration moves
+	 * every vertex by lambda towards the average of its neighbours. The
+	 * iterations are Jacobi steps, i.e., all vertices are updated from the
+	 * positions of the previous iteration.
+	 *
+	 * @param positions
+	 *            the positions, smoothed in place
+	 * @param lambda
+	 *            the step size, between 0 and 1
+	 * @param iterations
+	 *            the number of smoothing steps
+	 */
+	public void laplacianSmooth(float[] positions, final float lambda, int iterations) {
+		float[] src = positions;
+		float[] dst = new float[3 * nVertices];
+		for (int it = 0; it < iterations; it++) {
+			final float[] p = src;
+			final float[] q = dst;
+			IntStream.range(0, nVertices).parallel().forEach(v -> {
+				int start = vvOffsets[v], end = vvOffsets[v + 1];
+				if (start == end) {
+					q[3 * v] = p[3 * v];
+					q[3 * v + 1] = p[3 * v + 1];
+					q[3 * v + 2] = p[3 * v + 2];
+					return;
+				}
+				float x = 0, y = 0, z = 0;
+				for (int k = start; k < end; k++) {
+					int j = 3 * vvIndices[k];
+					x += p[j];
+					y += p[j + 1];
+					z += p[j + 2];
+				}
+				float s = 1.f / (end - start);
+				q[3 * v] = p[3 * v] + lambda * (x * s - p[3 * v]);
+				q[3 * v + 1] = p[3 * v + 1] + lambda * (y * s - p[3 * v + 1]);
+				q[3 * v + 2] = p[3 * v + 2] + lambda * (z * s - p[3 * v + 2]);
+			});
+			src = q;
+			dst = p;
+		}
+		if (src != positions)
+			System.arraycopy(src, 0, positions, 0, 3 * nVertices);
+	}
+
+	/**
+	 * Computes the cotangent weights (cot(alpha) + cot(beta)) / 2 of all
+	 * edges, where alpha and beta are the angles opposite to the edge in its
+	 * two adjacent triangles. Border edges only get the term of their single
+	 * triangle.
+	 *
+	 * @param positions
+	 *            the vertex positions
+	 * @return one weight per entry of the vertex-to-vertex adjacency
+	 */
+	public float[] cotangentWeights(final float[] positions) {
+		final float[] w = new float[vvIndices.length];
+		IntStream.range(0, nVertices).parallel().forEach(i -> {
+			for (int k = vfOffsets[i]; k < vfOffsets[i + 1]; k++) {
+				int f = 3 * vfIndices[k];
+				int c = triangles[f] == i ? 0 : triangles[f + 1] == i ? 1 : 2;
+				int j = triangles[f + (c + 1) % 3];
+				int l = triangles[f + (c + 2) % 3];
+				// The angle at l is opposite to edge ij, the angle at j
+				// opposite to edge il
+				addWeight(w, i, j, 0.5f * cot(positions, l, i, j));
+				addWeight(w, i, l, 0.5f * cot(positions, j, l, i));
+			}
+		});
+		return w;
+	}
+
+	/**
+	 * Propagates approximate geodesic distances from a source vertex along the
+	 * mesh edges. Every sweep relaxes all vertices in parallel against the
+	 * distances of their neighbours from the previous sweep, until no
+	 * distance changes anymore.
+	 *
+	 * @param positions
+	 *            the vertex positions
+	 * @param source
+	 *            the vertex with distance zero
+	 * @return the distance of each vertex, or infinity for vertices that are
+	 *         not connected to the source
+	 */
+	public float[] propagateDistances(final float[] positions, int source) {
+		float[] src = new float[nVertices];
+		float[] dst = new float[nVertices];
+		Arrays.fill(src, Float.POSITIVE_INFINITY);
+		src[source] = 0;
+		boolean changed = true;
+		while (changed) {
+			final float[] d = src;
+			final float[] e = dst;
+			changed = IntStream.range(0, nVertices).parallel().map(v -> {
+				float best = d[v];
+				for (int k = vvOffsets[v]; k < vvOffsets[v + 1]; k++) {
+					int j = vvIndices[k];
+					if (d[j] == Float.POSITIVE_INFINITY)
+						continue;
+					float dx = positions[3 * v] - positions[3 * j];
+					float dy = positions[3 * v + 1] - positions[3 * j + 1];
+					float dz = positions[3 * v + 2] - positions[3 * j + 2];
+					best = Math.min(best, d[j] + (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+				}
+				e[v] = best;
+				return best < d[v] ? 1 : 0;
+			}).sum() > 0;
+			src = e;
+			dst = d;
+		}
+		return src;
+	}
+
+	/**
+	 * Adds w to the weight of edge ij in the row of vertex i.
+	 */
+	private void addWeight(float[] weights, int i, int j, float w) {
+		for (int k = vvOffsets[i]; k < vvOffsets[i + 1]; k++) {
+			if (vvIndices[k] == j) {
+				weights[k] += w;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the cotangent of the angle at vertex a in the triangle a, b, c.
+	 */
+	private static float cot(float[] p, int a, int b, int c) {
+		float ux = p[3 * b] - p[3 * a], uy = p[3 * b + 1] - p[3 * a + 1], uz = p[3 * b + 2] - p[3 * a + 2];
+		float vx = p[3 * c] - p[3 * a], vy = p[3 * c + 1] - p[3 * a + 1], vz = p[3 * c + 2] - p[3 * a + 2];
+		float dot = ux * vx + uy * vy + uz * vz;
+		float cx = uy * vz - uz * vy, cy = uz * vx - ux * vz, cz = ux * vy - uy * vx;
+		float cross = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+		return cross > 0 ? dot / cross : 0;
+	}
+}
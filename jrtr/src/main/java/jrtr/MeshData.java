@@ -1,32 +1,61 @@
 package jrtr;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.ListIterator;
-
-import javax.vecmath.Vector2f;
-import javax.vecmath.Vector3f;
-
-import jrtr.glrenderer.GLVertexData;
+import java.util.stream.IntStream;
 
 /**
- * This class represents a geometric object that is stored in a mesh structure.
- * Each vertix knows its adjacent vertices, edges and faces
- * 
+ * This class represents a geometric object that is stored in a half-edge
+ * mesh structure. The connectivity and the vertex attributes are kept in
+ * flat primitive arrays (one entry per half-edge, vertex or face) instead
+ * of one object per element, so traversals only touch contiguous memory.
+ * <p>
+ * Half-edge <code>h</code> starts at vertex <code>heVertex[h]</code>, belongs
+ * to face <code>heFace[h]</code> and is followed by <code>heNext[h]</code>
+ * inside that face. <code>heTwin[h]</code> is the oppositely oriented
+ * half-edge of the neighbouring face, or -1 if the edge lies on a border.
+ * The three half-edges of face <code>f</code> are stored at
+ * <code>3f, 3f+1, 3f+2</code> in counterclockwise order.
+ *
  * @author CGG\indermühle
- * 
+ *
  */
 public class MeshData {
 
-
-	
 	private VertexData vertexData;
 	private RenderContext renderContext;
-	private List<Vertex> vertexTable;
-	protected List<Edge> edgeTable;
-	private List<Face> faceTable;
+
+	/**
+	 * Vertex attributes, three floats per vertex (two for texture coordinates).
+	 */
+	private float[] positions, colors, normals, texCoords;
+	private int nVertices;
+
+	/**
+	 * Half-edge connectivity, one entry per half-edge.
+	 */
+	private int[] heNext, heTwin, heVertex, heFace;
+
+	/**
+	 * One outgoing half-edge per vertex. For vertices on a border this is the
+	 * outgoing half-edge whose preceding half-edge has no twin, such that
+	 * rotating around the vertex visits all of its neighbours.
+	 */
+	private int[] vertexHalfEdge;
+	private int nFaces;
+
+	/**
+	 * Scratch data of the normal solver: area weighted face normals, the
+	 * faces and vertices touched by an incremental update, and stamps to
+	 * collect each of them only once. Allocated when the mesh size changes.
+	 * The face normals are only valid after a full update, and become
+	 * invalid whenever the mesh is rebuilt.
+	 */
+	private float[] faceNormals;
+	private boolean faceNormalsValid;
+	private int[] dirtyFaces, dirtyVertices, faceStamp, vertexStamp;
+	private int stamp;
 
 	public MeshData(VertexData data, RenderContext r) {
 		renderContext = r;
@@ -34,42 +63,36 @@ public class MeshData {
 	}
 
 	/**
-	 * Helper-Function for the Loop subdivision. 
-	 * Should be always called after a subdivision so that the Winged Edge Structure and the VertexData are updated!
-	 * @param vertexList List of all vertices, does not need to have edges, the edges are assigned later to vertices
-	 * @param i Index-List, defines how the vertices are combined into a triangle mesh
+	 * Makes a copy of the mesh structure of m without exporting it into a
+	 * vertex data. Used to subdivide a mesh on the side.
 	 */
-	private void createMesh(List<Vertex> vertexList, int[] i) {
-		// used by loop subdivision
-		for (Vertex v : vertexList)
-			v.edge = null;
-		vertexTable = vertexList;
-		edgeTable = new ArrayList<Edge>(i.length / 2);
-		faceTable = new ArrayList<Face>();
-		this.createMeshStructure(i, i.length / 3);
+	private MeshData(MeshData m) {
+		nVertices = m.nVertices;
+		nFaces = m.nFaces;
+		positions = Arrays.copyOf(m.positions, 3 * nVertices);
+		colors = Arrays.copyOf(m.colors, 3 * nVertices);
+		normals = Arrays.copyOf(m.normals, 3 * nVertices);
+		texCoords = Arrays.copyOf(m.texCoords, 2 * nVertices);
+		heNext = Arrays.copyOf(m.heNext, 3 * nFaces);
+		heTwin = Arrays.copyOf(m.heTwin, 3 * nFaces);
+		heVertex = Arrays.copyOf(m.heVertex, 3 * nFaces);
+		heFace = Arrays.copyOf(m.heFace, 3 * nFaces);
+		vertexHalfEdge = Arrays.copyOf(m.vertexHalfEdge, nVertices);
 	}
 
 	/**
-	 * Constructs a winged edge structure from a vertex data.
-	 * The mesh has to fulfill two requirements:
-	 * 1. The mesh must completely consist of triangles
-	 * 2. The mesh must have no borders, e.g. each edge must belong to exactly two triangles
+	 * Constructs a half-edge structure from a vertex data.
+	 * The mesh has to completely consist of triangles. Edges that belong to
+	 * only one triangle are treated as border edges.
 	 * @param data the VertexData
 	 */
 	public void createMesh(VertexData data) {
-		
-		int nedges = data.getIndices().length / 2;
-		int nfaces = data.getIndices().length / 3;
-		
-		// initializes the tables for vertices, edges and faces, creates a
-		// Vertex object for each vertex and adds it to vertexTable
-		vertexTable = new ArrayList<Vertex>(data.getNumberOfVertices());
-		edgeTable = new ArrayList<Edge>(nedges); 
-		faceTable = new ArrayList<Face>(nfaces); 
-		
+
+		nVertices = data.getNumberOfVertices();
+
 		LinkedList<VertexData.VertexElement> vertexElements = data.getElements();
 		ListIterator<VertexData.VertexElement> itr = vertexElements.listIterator(0);
-		
+
 		float[] v = null , c = null, n = null, t = null;
 		while(itr.hasNext()){
 			VertexData.VertexElement e = itr.next();
@@ -81,435 +104,769 @@ public class MeshData {
 				n = e.getData();
 			if(e.getSemantic() == VertexData.Semantic.TEXCOORD)
 				t = e.getData();
-		}	
-		  
-		for (int k = 0; k < data.getNumberOfVertices(); k++) {
-			Vertex vert = new Vertex(new Vector3f(v[3 * k], v[3 * k + 1], v[3 * k + 2]));
-			if (c != null)
-				vert.color = new Vector3f(c[3 * k], c[3 * k + 1], c[3 * k + 2]);
-			if (n != null)
-				vert.normal = new Vector3f(n[3 * k], n[3 * k + 1], n[3 * k + 2]);
-			if (t != null)
-				vert.texCoord = new Vector2f(t[2 * k], t[2 * k + 1]);
-			vertexTable.add(vert);
 		}
-		
-		this.createMeshStructure(data.getIndices(), nfaces);
-	}
-
-	private void createMeshStructure(int[] i, int p) {
-		int offset = 0;
-		// loop for each face
-		for (int k = 0; k < p; k++) {
-			// list containing all edges of the face. If an edge doesn't already
-			// exist in edgeTable, a new one is created. The edges describe the
-			// face in counterclockwise order
-			List<Edge> list = new ArrayList<MeshData.Edge>();
-			for (int j = 0; j < 3; j++) {
-				Edge e = findEdge(i[offset + j], i[offset + (j + 1) % 3]);
-				if (e == null) {
-					e = new Edge(i[offset + j], i[offset + (j + 1) % 3]);
+
+		// Missing attributes default to zero, as the exported vertex data
+		// always contains all four elements
+		positions = Arrays.copyOf(v, 3 * nVertices);
+		colors = c != null ? Arrays.copyOf(c, 3 * nVertices) : new float[3 * nVertices];
+		normals = n != null ? Arrays.copyOf(n, 3 * nVertices) : new float[3 * nVertices];
+		texCoords = t != null ? Arrays.copyOf(t, 2 * nVertices) : new float[2 * nVertices];
+
+		this.createMeshStructure(data.getIndices());
+	}
+
+	/**
+	 * Builds the half-edge arrays from a triangle index list and exports the
+	 * result into a new vertex data.
+	 * @param indices Index-List, defines how the vertices are combined into a triangle mesh
+	 */
+	private void createMeshStructure(int[] indices) {
+		int nHalfEdges = indices.length;
+		nFaces = nHalfEdges / 3;
+
+		heVertex = Arrays.copyOf(indices, nHalfEdges);
+		heNext = new int[nHalfEdges];
+		heTwin = new int[nHalfEdges];
+		heFace = new int[nHalfEdges];
+		for (int h = 0; h < nHalfEdges; h++) {
+			heNext[h] = 3 * (h / 3) + (h + 1) % 3;
+			heFace[h] = h / 3;
+		}
+
+		// Bucket the half-edges by their starting vertex, so the twin of a
+		// half-edge a->b is found among the few half-edges leaving b
+		int[] start = new int[nVertices + 1];
+		for (int h = 0; h < nHalfEdges; h++)
+			start[heVertex[h] + 1]++;
+		for (int k = 0; k < nVertices; k++)
+			start[k + 1] += start[k];
+		int[] outgoing = new int[nHalfEdges];
+		int[] fill = Arrays.copyOf(start, nVertices);
+		for (int h = 0; h < nHalfEdges; h++)
+			outgoing[fill[heVertex[h]]++] = h;
+
+		for (int h = 0; h < nHalfEdges; h++) {
+			int a = heVertex[h];
+			int b = heVertex[heNext[h]];
+			heTwin[h] = -1;
+			for (int k = start[b]; k < start[b + 1]; k++) {
+				int g = outgoing[k];
+				if (heVertex[heNext[g]] == a) {
+					heTwin[h] = g;
+					break;
 				}
-				list.add(e);
 			}
-			offset += 3;
-
-			Face f = new Face(list.get(0));
-			for (int j = 0; j < list.size(); j++) {
-				// adds the face to each of the edges
-				if (j == 0)
-					list.get(j).addFace(f, list.get(list.size() - 1), list.get(j + 1));
-				else
-					list.get(j).addFace(f, list.get(j - 1), list.get((j + 1) % list.size()));
-				// if one of the vertices doesn't have an edge, it will be
-				// defined here
-				if (vertexTable.get(list.get(j).v1).edge == null)
-					vertexTable.get(list.get(j).v1).edge = list.get(j);
-			}
-			for (Edge e : list) {
-				if (!edgeTable.contains(e))
-					edgeTable.add(e);
-			}
-			faceTable.add(f);
 		}
+
+		vertexHalfEdge = new int[nVertices];
+		Arrays.fill(vertexHalfEdge, -1);
+		for (int h = 0; h < nHalfEdges; h++) {
+			int v = heVertex[h];
+			if (vertexHalfEdge[v] == -1 || heTwin[prev(h)] == -1)
+				vertexHalfEdge[v] = h;
+		}
+
 		this.createVertexData();
 	}
 
 	/**
 	 * Converts the mesh structure into a vertexData and stores it as
-	 * this.vertexData
+	 * this.vertexData. The attribute arrays are shared with the vertex data,
+	 * the index array is a copy of the half-edge start vertices.
 	 */
 	private void createVertexData() {
-		float[] pos = new float[3 * vertexTable.size()];
-		float[] col = new float[3 * vertexTable.size()];
-		float[] nrm = new float[3 * vertexTable.size()];
-		float[] tex = new float[2 * vertexTable.size()];
-		int p = 0;
-		int q = 0;
-		for (Vertex v : vertexTable) {
-			pos[p] = v.position.x;
-			col[p] = v.color.x;
-			nrm[p] = v.normal.x;
-			tex[q] = v.texCoord.x;
-			p++;
-			q++;
-			pos[p] = v.position.y;
-			col[p] = v.color.y;
-			nrm[p] = v.normal.y;
-			tex[q] = v.texCoord.y;
-			p++;
-			q++;
-			pos[p] = v.position.z;
-			col[p] = v.color.z;
-			nrm[p] = v.normal.z;
-			p++;
-		}
-
-		VertexData data = renderContext.makeVertexData(vertexTable.size());
-		data.addElement(pos, VertexData.Semantic.POSITION, 3);
-		data.addElement(col, VertexData.Semantic.COLOR, 3);
-		data.addElement(nrm, VertexData.Semantic.NORMAL, 3);
-		data.addElement(tex, VertexData.Semantic.TEXCOORD, 2);
-		
-		List<Integer> index = new ArrayList<Integer>();
-		p = 0;
-		for (Face f : faceTable) {
-			List<Integer> verts = this.findVertices(f);
-			index.addAll(verts);
-			p++;
-		}
-		int i[] = new int[index.size()];
-		for (int k = 0; k < index.size(); k++) {
-			i[k] = index.get(k);
-		}
-		data.addIndices(i);
+		VertexData data = renderContext.makeVertexData(nVertices);
+		data.addElement(positions, VertexData.Semantic.POSITION, 3);
+		data.addElement(colors, VertexData.Semantic.COLOR, 3);
+		data.addElement(normals, VertexData.Semantic.NORMAL, 3);
+		data.addElement(texCoords, VertexData.Semantic.TEXCOORD, 2);
+		data.addIndices(Arrays.copyOf(heVertex, 3 * nFaces));
 		this.vertexData = data;
+		faceNormalsValid = false;
+	}
 
-	//	vertexData.addElement(getFaceNormals(), VertexData.Semantic.NORMAL, 3); 
+	/**
+	 * Recomputes all vertex normals. Each vertex normal is the normalized sum
+	 * of the area weighted normals of its adjacent faces. Faces and vertices
+	 * are processed in parallel; the normals are written into the array
+	 * shared with {@link #getVertexData()}, nothing is allocated per face or
+	 * vertex. Call {@link VertexData#dataChanged()} on the vertex data
+	 * afterwards, so that render contexts upload the new normals.
+	 */
+	public void updateNormals() {
+		ensureNormalScratch();
+		IntStream.range(0, nFaces).parallel().forEach(f -> faceNormal(f));
+		IntStream.range(0, nVertices).parallel().forEach(v -> vertexNormal(v));
+		faceNormalsValid = true;
 	}
 
+	/**
+	 * Recomputes the vertex normals after only some vertices moved. Only the
+	 * faces adjacent to the moved vertices and the vertices of these faces
+	 * are updated, which makes this suitable for refreshing the normals of a
+	 * deforming mesh every frame. The other faces around the updated
+	 * vertices keep their stored normals, so the first call after the mesh
+	 * was built or rebuilt, e.g., by {@link #loop(int)}, updates all normals
+	 * with {@link #updateNormals()}. Call {@link VertexData#dataChanged()} on
+	 * the vertex data afterwards, so that render contexts upload the new
+	 * normals.
+	 *
+	 * @param moved
+	 *            indices of the vertices whose positions changed
+	 * @param count
+	 *            the number of valid entries in moved
+	 */
+	public void updateNormals(int[] moved, int count) {
+		ensureNormalScratch();
+		if (!faceNormalsValid) {
+			updateNormals();
+			return;
+		}
+		stamp++;
+		int nf = 0, nv = 0;
+		for (int i = 0; i < count; i++) {
+			int h = vertexHalfEdge[moved[i]];
+			if (h == -1)
+				continue;
+			int first = h;
+			do {
+				int f = heFace[h];
+				if (faceStamp[f] != stamp) {
+					faceStamp[f] = stamp;
+					dirtyFaces[nf++] = f;
+					for (int j = 3 * f; j < 3 * f + 3; j++) {
+						int v = heVertex[j];
+						if (vertexStamp[v] != stamp) {
+							vertexStamp[v] = stamp;
+							dirtyVertices[nv++] = v;
+						}
+					}
+				}
+				h = nextOutgoing(h);
+			} while (h != -1 && h != first);
+		}
+		IntStream.range(0, nf).parallel().forEach(k -> faceNormal(dirtyFaces[k]));
+		IntStream.range(0, nv).parallel().forEach(k -> vertexNormal(dirtyVertices[k]));
+	}
 
 	/**
 	 * (DEPRECATED)
-	 * Creates a list of faceNormals that can be used in a vertexData. For each
-	 * vertex in a face, the x, y and z coordinates of the face normal is added
-	 * to the array
-	 * 
-	 * @return array containing face normals
+	 * Recomputes the vertex normals with {@link #updateNormals()} and returns
+	 * a copy of them.
+	 *
+	 * @return array containing the x, y and z coordinates of each vertex normal
 	 */
 	public float[] getFaceNormals() {
-		HashMap<Vertex, ArrayList<Vector3f>> vertexFaceNormals = new HashMap<Vertex, ArrayList<Vector3f>>();
-		for (Face f : faceTable) {
-			Vector3f v = new Vector3f();
-			List<Integer> verts = findVertices(f);
-			for (int i = 0; i < verts.size(); i++) {
-				Vector3f v1 = new Vector3f(vertexTable.get(verts.get(i)).position);
-				v1.sub(vertexTable.get(verts.get((i + verts.size() - 1) % verts.size())).position);
-				Vector3f v2 = new Vector3f(vertexTable.get(verts.get(i)).position);
-				v2.sub(vertexTable.get(verts.get((i + 1) % verts.size())).position);
-				v1.cross(v2, v1);
-				v.add(v1);
-			}
-			v.scale(1 / (float)verts.size());
-			v.normalize();
-			
-			for(Integer faceVertex : verts){
-				if(vertexFaceNormals.get(vertexTable.get(faceVertex))!=null){
-					vertexFaceNormals.get(vertexTable.get(faceVertex)).add(v);
-				}else{
-					vertexFaceNormals.put(vertexTable.get(faceVertex), new ArrayList<Vector3f>());
-					vertexFaceNormals.get(vertexTable.get(faceVertex)).add(v);
-				}
-			}
+		updateNormals();
+		return Arrays.copyOf(normals, 3 * nVertices);
+	}
+
+	private void ensureNormalScratch() {
+		if (faceNormals == null || faceNormals.length != 3 * nFaces || vertexStamp.length != nVertices) {
+			faceNormals = new float[3 * nFaces];
+			dirtyFaces = new int[nFaces];
+			faceStamp = new int[nFaces];
+			dirtyVertices = new int[nVertices];
+			vertexStamp = new int[nVertices];
+			stamp = 0;
+			faceNormalsValid = false;
 		}
-		float[] vertexFaceNormalArray = new float[vertexTable.size()*3];
-		int iCount = 0;
-		for(Vertex vertex:vertexTable){
-			ArrayList<Vector3f> vecs = vertexFaceNormals.get(vertex);
-			Vector3f vertexNormal = new Vector3f(0,0,0);
-			for(Vector3f vec:vecs)
-				vertexNormal.add(vec);
-			vertexNormal.scale(1/(float)vecs.size());
-			vertexNormal.normalize();
-			vertexFaceNormalArray[iCount++] = vertexNormal.x;
-			vertexFaceNormalArray[iCount++] = vertexNormal.y;
-			vertexFaceNormalArray[iCount++] = vertexNormal.z;
+	}
+
+	/**
+	 * Stores the cross product of two edges of face f, i.e., its normal
+	 * scaled by twice its area.
+	 */
+	private void faceNormal(int f) {
+		int p0 = 3 * heVertex[3 * f];
+		int p1 = 3 * heVertex[3 * f + 1];
+		int p2 = 3 * heVertex[3 * f + 2];
+		float ax = positions[p1] - positions[p0];
+		float ay = positions[p1 + 1] - positions[p0 + 1];
+		float az = positions[p1 + 2] - positions[p0 + 2];
+		float bx = positions[p2] - positions[p0];
+		float by = positions[p2 + 1] - positions[p0 + 1];
+		float bz = positions[p2 + 2] - positions[p0 + 2];
+		faceNormals[3 * f] = ay * bz - az * by;
+		faceNormals[3 * f + 1] = az * bx - ax * bz;
+		faceNormals[3 * f + 2] = ax * by - ay * bx;
+	}
+
+	/**
+	 * Sums the face normals around vertex v and stores the normalized result.
+	 * Every adjacent face has exactly one half-edge leaving v, so rotating
+	 * over the outgoing half-edges visits each face once.
+	 */
+	private void vertexNormal(int v) {
+		int h = vertexHalfEdge[v];
+		if (h == -1)
+			return;
+		float x = 0, y = 0, z = 0;
+		int first = h;
+		do {
+			int f = 3 * heFace[h];
+			x += faceNormals[f];
+			y += faceNormals[f + 1];
+			z += faceNormals[f + 2];
+			h = nextOutgoing(h);
+		} while (h != -1 && h != first);
+		float l = (float) Math.sqrt(x * x + y * y + z * z);
+		if (l > 0) {
+			normals[3 * v] = x / l;
+			normals[3 * v + 1] = y / l;
+			normals[3 * v + 2] = z / l;
 		}
-		return vertexFaceNormalArray;
 	}
 
 	public VertexData getVertexData() {
 		return this.vertexData;
 	}
 
-	
 	/**
-	 * Finds the edge that conntects the given vertices. If no such edge exists,
-	 * null is returned
-	 * 
-	 * @param i1
-	 *            the index in vertexTable of the first vertex
-	 * @param i2
-	 *            the index in vertexTable of the second vertex
-	 * @return the edge that conntects the two vertices or null
+	 * Exports the connectivity of the mesh as compressed sparse row arrays:
+	 * vertex-to-vertex, vertex-to-face and face-to-face. The rows are filled
+	 * in parallel by rotating around the vertices of the half-edge structure.
+	 *
+	 * @return the adjacency of the current mesh
 	 */
-	private Edge findEdge(int i1, int i2) {
-		for (Edge e : edgeTable) {
-			if (e.connects(i1, i2))
-				return e;
-		}
-		return null;
+	public MeshAdjacency getAdjacency() {
+		final int[] vvOffsets = new int[nVertices + 1];
+		final int[] vfOffsets = new int[nVertices + 1];
+		final int[] ffOffsets = new int[nFaces + 1];
+		IntStream.range(0, nVertices).parallel().forEach(v -> {
+			vvOffsets[v + 1] = valence(v);
+			vfOffsets[v + 1] = vvOffsets[v + 1] > 0 && heTwin[prev(vertexHalfEdge[v])] == -1 ?
+					vvOffsets[v + 1] - 1 : vvOffsets[v + 1];
+		});
+		IntStream.range(0, nFaces).parallel().forEach(f -> {
+			for (int h = 3 * f; h < 3 * f + 3; h++)
+				if (heTwin[h] != -1)
+					ffOffsets[f + 1]++;
+		});
+		Arrays.parallelPrefix(vvOffsets, Integer::sum);
+		Arrays.parallelPrefix(vfOffsets, Integer::sum);
+		Arrays.parallelPrefix(ffOffsets, Integer::sum);
+
+		final int[] vvIndices = new int[vvOffsets[nVertices]];
+		final int[] vfIndices = new int[vfOffsets[nVertices]];
+		final int[] ffIndices = new int[ffOffsets[nFaces]];
+		IntStream.range(0, nVertices).parallel().forEach(v -> {
+			findVertices(v, vvIndices, vvOffsets[v]);
+			int h = vertexHalfEdge[v];
+			if (h == -1)
+				return;
+			int first = h;
+			int k = vfOffsets[v];
+			do {
+				vfIndices[k++] = heFace[h];
+				h = nextOutgoing(h);
+			} while (h != -1 && h != first);
+		});
+		IntStream.range(0, nFaces).parallel().forEach(f -> {
+			int k = ffOffsets[f];
+			for (int h = 3 * f; h < 3 * f + 3; h++)
+				if (heTwin[h] != -1)
+					ffIndices[k++] = heFace[heTwin[h]];
+		});
+
+		return new MeshAdjacency(nVertices, Arrays.copyOf(heVertex, 3 * nFaces),
+				vvOffsets, vvIndices, vfOffsets, vfIndices, ffOffsets, ffIndices);
+	}
+
+	public int getNumberOfVertices() {
+		return nVertices;
+	}
+
+	public int getNumberOfFaces() {
+		return nFaces;
 	}
 
 	/**
-	 * Finds all edges connecting the given vertex with other vertices
-	 * 
+	 * Finds all vertices the given vertex is connected to by an edge, in
+	 * clockwise order around the vertex
+	 *
 	 * @param v
-	 *            the vertex
-	 * @return all edges the vertex belongs to
+	 *            the index of the vertex
+	 * @param ring
+	 *            array receiving the neighbour indices, must be large enough
+	 *            to hold the valence of the vertex
+	 * @return the number of directly connected vertices
 	 */
-	private List<Edge> findEdges(Vertex v) {
-		List<Edge> edges = new ArrayList<MeshData.Edge>();
-		Edge e = v.edge;
-		edges.add(e);
-		for (Edge g : e.getEdges(v))
-			if (!edges.contains(g))
-				edges.add(g);
-		int k = 1;
-		while (k < edges.size()) {
-			List<Edge> list = edges.get(k).getEdges(v);
-			for (Edge g : list)
-				if (!edges.contains(g))
-					edges.add(g);
-			k++;
-		}
-		return edges;
+	private int findVertices(int v, int[] ring) {
+		return findVertices(v, ring, 0);
 	}
 
 	/**
-	 * Finds all vertices the given vertex is connected to by an edge
-	 * 
-	 * @param v
-	 *            the vertex
-	 * @return all directly connected vertices
+	 * Same as {@link #findVertices(int, int[])}, but writes the neighbours to
+	 * ring starting at the given offset.
 	 */
-	private List<Vertex> findVertices(Vertex v) {
-		List<Edge> edges = findEdges(v);
-		List<Vertex> list = new ArrayList<Vertex>(edges.size());
-		int i = vertexTable.indexOf(v);
-		for (Edge e : edges) {
-			if (e.v1 == i)
-				list.add(vertexTable.get(e.v2));
-			else
-				list.add(vertexTable.get(e.v1));
-		}
-		return list;
+	private int findVertices(int v, int[] ring, int offset) {
+		int h = vertexHalfEdge[v];
+		if (h == -1)
+			return 0;
+		int first = h;
+		int k = offset;
+		// Border: the neighbour across the leading border edge is only
+		// reachable through the preceding half-edge of the first face
+		if (heTwin[prev(h)] == -1)
+			ring[k++] = heVertex[prev(h)];
+		do {
+			ring[k++] = heVertex[heNext[h]];
+			h = nextOutgoing(h);
+		} while (h != -1 && h != first);
+		return k - offset;
 	}
 
 	/**
-	 * Finds all edges that are part of the face and returns them in
-	 * counterclockwise order, starting with the edge defined in f itself
-	 * 
-	 * @param f
-	 *            the face
-	 * @return all edges of the face in counterclockwise order
+	 * Returns the number of edges meeting at the given vertex.
 	 */
-	private List<Edge> findEdges(Face f) {
-		List<Edge> list = new ArrayList<Edge>();
-		Edge e = f.edge;
+	private int valence(int v) {
+		int h = vertexHalfEdge[v];
+		if (h == -1)
+			return 0;
+		int first = h;
+		int k = heTwin[prev(h)] == -1 ? 1 : 0;
 		do {
-			list.add(e);
-			e = e.getNextEdge(f);
-		} while (!f.edge.equals(e));
-		return list;
+			k++;
+			h = nextOutgoing(h);
+		} while (h != -1 && h != first);
+		return k;
 	}
 
 	/**
-	 * Finds all vertices of a face and returns them in counterclockwise order,
-	 * starting with the starting vertex of the edge defined in f itself. This
-	 * does not depend on the orientation of the edge, as it will be oriented to
-	 * be counterclockwise
-	 * 
-	 * @param f
-	 *            the face
-	 * @return the vertices in counterclockwise order
+	 * Returns the half-edge preceding h in its face.
 	 */
-	private List<Integer> findVertices(Face f) {
-		List<Integer> vertices = new ArrayList<Integer>();
-		List<Edge> edges = this.findEdges(f);
+	private int prev(int h) {
+		return heNext[heNext[h]];
+	}
 
-		if (edges.get(0).isFrontface(f)) {
-			vertices.add(edges.get(0).v1);
-			vertices.add(edges.get(0).v2);
-		} else {
-			vertices.add(edges.get(0).v2);
-			vertices.add(edges.get(0).v1);
-		}
-		edges.remove(0);
-		while (edges.size() > 1) {
-			int v = vertices.get(vertices.size() - 1);
-			for (int k = 0; k < edges.size(); k++) {
-				if (edges.get(k).v1 == v) {
-					vertices.add(edges.get(k).v2);
-					edges.remove(k);
-					k = 0;
-				} else if (edges.get(k).v2 == v) {
-					vertices.add(edges.get(k).v1);
-					edges.remove(k);
-					k = 0;
-				}
-			}
-		}
-		return vertices;
+	/**
+	 * Rotates clockwise around the starting vertex of h: returns the next
+	 * outgoing half-edge of the same vertex, or -1 if h lies on a border.
+	 */
+	private int nextOutgoing(int h) {
+		int t = heTwin[h];
+		return t == -1 ? -1 : heNext[t];
 	}
-	
+
 	/**
 	 * Subdivide with the Loop-algorithm. This results in a smoother shape that
 	 * consists of triangles
 	 */
 	public void loop() {
-		//TODO: this is the part you should implement :-)
-
-	}
-	
-	
-	// -------------- Classes for Edges, Vertices and Faces --------------
-	protected class Edge {
-		protected int v1, v2;
-		protected Face f1, f2;
-		//e0 shares v1 and f1, e1 shares v2 and f1, e2 shares v1 and f2 and e3 shares v2 and f2 with this edge
-		protected Edge[] edges; 
-
-		/**
-		 * Creates a new edge that connects the two given vertices. This defines
-		 * the orientation of the edge
-		 * 
-		 * @param start
-		 *            the index in vertexTable of the starting vertex
-		 * @param end
-		 *            the index in vertexTable of the ending vertex
-		 */
-		public Edge(int start, int end) {
-			this.v1 = start;
-			this.v2 = end;
-			edges = new Edge[4];
+		loop(1);
+	}
+
+	/**
+	 * Subdivide with the Loop-algorithm several times in a row. The new edge
+	 * points and the repositioned old vertices of each level are computed in
+	 * parallel from the half-edge one-rings of the previous level, and the
+	 * connectivity of the refined mesh is derived directly from the old one,
+	 * so adjacency is never rebuilt from an index list. The vertex data is
+	 * exported once after the last level.
+	 *
+	 * @param levels
+	 *            the number of subdivision steps
+	 */
+	public void loop(int levels) {
+		if (levels < 1)
+			return;
+		this.refine(levels);
+		this.createVertexData();
+	}
+
+	/**
+	 * Performs the subdivision steps of {@link #loop(int)} without exporting
+	 * the result.
+	 */
+	private void refine(int levels) {
+
+		// Every level quadruples the faces and adds one vertex per edge, so
+		// the size of the finest mesh is known in advance
+		int nV = nVertices, nF = nFaces, nE = countEdges();
+		int maxEdges = nE;
+		for (int l = 0; l < levels; l++) {
+			nV += nE;
+			nE = 2 * nE + 3 * nF;
+			nF *= 4;
+			if (l < levels - 1)
+				maxEdges = nE;
 		}
 
-		/**
-		 * Adds a new face and the two edges belonging both to the face an this
-		 * edge
-		 * 
-		 * @param f
-		 *            face that belongs to this edge
-		 * @param e1
-		 *            edge that connects the given face with this edge's first
-		 *            vertex
-		 * @param e2
-		 *            edge that connects the given face with this edge's second
-		 *            vertex
-		 */
-		public void addFace(Face f, Edge e1, Edge e2) {
-			if (f1 == null) {
-				f1 = f;
-				edges[0] = e1;
-				edges[1] = e2;
-			} else {
-				f2 = f;
-				edges[2] = e1;
-				edges[3] = e2;
+		// Two sets of buffers sized for the finest level are swapped between
+		// levels; the input arrays of the first level are too small to reuse
+		float[] pos2 = null, col2 = null, nrm2 = null, tex2 = null;
+		int[] next2 = null, twin2 = null, vert2 = null, face2 = null, vhe2 = null;
+		int[] edgeId = new int[3 * nF / 4];
+		int[] edgeHalfEdge = new int[maxEdges];
+		for (int l = 0; l < levels; l++) {
+			if (vhe2 == null || vhe2.length < nV) {
+				pos2 = new float[3 * nV];
+				col2 = new float[3 * nV];
+				nrm2 = new float[3 * nV];
+				tex2 = new float[2 * nV];
+				next2 = new int[3 * nF];
+				twin2 = new int[3 * nF];
+				vert2 = new int[3 * nF];
+				face2 = new int[3 * nF];
+				vhe2 = new int[nV];
 			}
-		}
 
-		public boolean connects(int v1, int v2) {
-			return (this.v1 == v1 && this.v2 == v2 || this.v1 == v2 && this.v2 == v1);
+			subdivide(pos2, col2, nrm2, tex2, next2, twin2, vert2, face2, vhe2, edgeId, edgeHalfEdge);
+
+			float[] f;
+			f = positions; positions = pos2; pos2 = f;
+			f = colors; colors = col2; col2 = f;
+			f = normals; normals = nrm2; nrm2 = f;
+			f = texCoords; texCoords = tex2; tex2 = f;
+			int[] i;
+			i = heNext; heNext = next2; next2 = i;
+			i = heTwin; heTwin = twin2; twin2 = i;
+			i = heVertex; heVertex = vert2; vert2 = i;
+			i = heFace; heFace = face2; face2 = i;
+			i = vertexHalfEdge; vertexHalfEdge = vhe2; vhe2 = i;
 		}
+	}
 
-		public Edge getNextEdge(Face f) {
-			List<Edge> list = getEdges(f);
-			int v;
-			if (isFrontface(f))
-				v = v2;
-			else
-				v = v1;
-			if (list.size() < 2)
-				return null;
-			else if (list.get(0).getStartVertex(f) == v)
-				return list.get(0);
-			else if (list.get(1).getStartVertex(f) == v)
-				return list.get(1);
-			else
-				return null;
+	/**
+	 * Precomputes the stencils that map the vertices of this mesh to the
+	 * vertices of the mesh {@link #loop(int)} produces with the same number
+	 * of levels. This mesh is not modified, so the stencils are typically
+	 * computed on the control mesh right before it is subdivided.
+	 * <p>
+	 * The stencils of each level are composed with the ones of the previous
+	 * level, so each row directly refers to control vertices.
+	 *
+	 * @param levels
+	 *            the number of subdivision steps
+	 * @return the stencil table
+	 */
+	public LoopStencils computeLoopStencils(int levels) {
+		int nControl = nVertices;
+
+		// Identity stencils for the control mesh
+		int[] rowOffsets = new int[nControl + 1];
+		int[] sources = new int[nControl];
+		float[] weights = new float[nControl];
+		for (int v = 0; v < nControl; v++) {
+			rowOffsets[v + 1] = v + 1;
+			sources[v] = v;
+			weights[v] = 1;
 		}
 
-
-		public List<Edge> getEdges(Face f) {
-			List<Edge> e = new ArrayList<MeshData.Edge>(2);
-			if (f.equals(f1)) {
-				e.add(edges[0]);
-				e.add(edges[1]);
-			} else if (f.equals(f2)) {
-				e.add(edges[2]);
-				e.add(edges[3]);
+		// Dense accumulator over the control vertices, reset after each row
+		float[] acc = new float[nControl];
+		int[] touched = new int[nControl];
+		boolean[] used = new boolean[nControl];
+
+		MeshData mesh = new MeshData(this);
+		for (int l = 0; l < levels; l++) {
+			int maxValence = 0;
+			for (int v = 0; v < mesh.nVertices; v++)
+				maxValence = Math.max(maxValence, mesh.valence(v));
+			int[] local = new int[Math.max(maxValence + 1, 4)];
+			float[] localWeights = new float[local.length];
+
+			int nE = mesh.countEdges();
+			int nRows = mesh.nVertices + nE;
+			int[] newOffsets = new int[nRows + 1];
+			int[] newSources = new int[2 * sources.length];
+			float[] newWeights = new float[2 * sources.length];
+			int nnz = 0;
+
+			// Rows are generated in the vertex order of the refined mesh: old
+			// vertices first, then one edge point per edge in edge order
+			int[] edgeHalfEdge = new int[nE];
+			int e = 0;
+			for (int h = 0; h < 3 * mesh.nFaces; h++) {
+				int t = mesh.heTwin[h];
+				if (t == -1 || h < t)
+					edgeHalfEdge[e++] = h;
 			}
-			return e;
-		}
 
-		public List<Edge> getEdges(Vertex v) {
-			int i = vertexTable.indexOf(v);
-			List<Edge> e = new ArrayList<MeshData.Edge>(2);
-			for (Edge g : edges) {
-				if (g != null && (g.v1 == i || g.v2 == i))
-					e.add(g);
+			for (int r = 0; r < nRows; r++) {
+				int n = r < mesh.nVertices ? mesh.evenStencil(r, local, localWeights)
+						: mesh.oddStencil(edgeHalfEdge[r - mesh.nVertices], local, localWeights);
+				int nt = 0;
+				for (int j = 0; j < n; j++) {
+					int o = local[j];
+					for (int k = rowOffsets[o]; k < rowOffsets[o + 1]; k++) {
+						int c = sources[k];
+						if (!used[c]) {
+							used[c] = true;
+							touched[nt++] = c;
+						}
+						acc[c] += localWeights[j] * weights[k];
+					}
+				}
+				if (nnz + nt > newSources.length) {
+					newSources = Arrays.copyOf(newSources, 2 * (nnz + nt));
+					newWeights = Arrays.copyOf(newWeights, 2 * (nnz + nt));
+				}
+				for (int j = 0; j < nt; j++) {
+					int c = touched[j];
+					newSources[nnz] = c;
+					newWeights[nnz++] = acc[c];
+					acc[c] = 0;
+					used[c] = false;
+				}
+				newOffsets[r + 1] = nnz;
 			}
-			return e;
-		}
 
-		public boolean isFrontface(Face f) {
-			return this.f1.equals(f);
+			rowOffsets = newOffsets;
+			sources = Arrays.copyOf(newSources, nnz);
+			weights = Arrays.copyOf(newWeights, nnz);
+			mesh.refine(1);
 		}
+		return new LoopStencils(nControl, rowOffsets, sources, weights);
+	}
+
+	/**
+	 * Re-evaluates the vertex positions of a mesh refined with
+	 * {@link #loop(int)} after the control points moved. The positions are
+	 * written into the arrays shared with {@link #getVertexData()}, and the
+	 * normals are recomputed. The vertex data is then marked as changed, so
+	 * that render contexts upload it again and its bounds are recomputed;
+	 * mark it as dynamic to stream it every frame instead, see
+	 * {@link VertexData#setDynamic(boolean)}.
+	 *
+	 * @param stencils
+	 *            the stencils computed on the control mesh for the same number
+	 *            of levels
+	 * @param controlPositions
+	 *            the new control point positions, three floats per vertex
+	 */
+	public void setControlPositions(LoopStencils stencils, float[] controlPositions) {
+		stencils.evaluate(controlPositions, positions, 3);
+		updateNormals();
+		vertexData.dataChanged();
+	}
 
-		public int getStartVertex(Face f) {
-			if (this.isFrontface(f)) {
-				return v1;
+	/**
+	 * Performs one Loop subdivision step from the current mesh into the given
+	 * arrays, and updates the vertex and face counts. Vertex i of the current
+	 * mesh keeps index i, the edge point of edge e gets index nVertices + e.
+	 * Face f is split into the corner faces 4f, 4f+1, 4f+2 (one per vertex of
+	 * f) and the center face 4f+3.
+	 */
+	private void subdivide(final float[] pos2, final float[] col2, final float[] nrm2, final float[] tex2,
+			final int[] next2, final int[] twin2, final int[] vert2, final int[] face2, final int[] vhe2,
+			final int[] edgeId, final int[] edgeHalfEdge) {
+
+		// Number the edges; the half-edge with the smaller index represents
+		// an interior edge
+		int nHalfEdges = 3 * nFaces;
+		int e = 0;
+		for (int h = 0; h < nHalfEdges; h++) {
+			int t = heTwin[h];
+			if (t == -1 || h < t) {
+				edgeHalfEdge[e] = h;
+				edgeId[h] = e++;
 			} else
-				return v2;
+				edgeId[h] = edgeId[t];
 		}
+		final int nV = nVertices;
+		final int nE = e;
+
+		// Even vertices: reposition the old vertices
+		IntStream.range(0, nV).parallel().forEach(v -> {
+			evenPoint(positions, pos2, 3, v);
+			evenPoint(colors, col2, 3, v);
+			evenPoint(normals, nrm2, 3, v);
+			evenPoint(texCoords, tex2, 2, v);
+			normalize(nrm2, v);
+			int h = vertexHalfEdge[v];
+			vhe2[v] = h == -1 ? -1 : 3 * (4 * heFace[h] + (h - 3 * heFace[h]));
+		});
+
+		// Odd vertices: insert one new vertex per edge
+		IntStream.range(0, nE).parallel().forEach(k -> {
+			int h = edgeHalfEdge[k];
+			oddPoint(positions, pos2, 3, h, nV + k);
+			oddPoint(colors, col2, 3, h, nV + k);
+			oddPoint(normals, nrm2, 3, h, nV + k);
+			oddPoint(texCoords, tex2, 2, h, nV + k);
+			normalize(nrm2, nV + k);
+			// The inner half-edge of the corner face preceding the edge point
+			// is a valid start for a rotation, also on a border
+			vhe2[nV + k] = 3 * (4 * heFace[h] + (h - 3 * heFace[h])) + 1;
+		});
+
+		// Connectivity: split each face into four
+		IntStream.range(0, nFaces).parallel().forEach(f -> {
+			for (int i = 0; i < 3; i++) {
+				int h = 3 * f + i;
+				int hPrev = 3 * f + (i + 2) % 3;
+				int c = 3 * (4 * f + i);
+				vert2[c] = heVertex[h];
+				vert2[c + 1] = nV + edgeId[h];
+				vert2[c + 2] = nV + edgeId[hPrev];
+				vert2[3 * (4 * f + 3) + i] = nV + edgeId[h];
+
+				// Inner edges between the corner faces and the center face
+				twin2[c + 1] = 3 * (4 * f + 3) + (i + 2) % 3;
+				twin2[3 * (4 * f + 3) + (i + 2) % 3] = c + 1;
+
+				// The two halves of the old half-edge h
+				int t = heTwin[h];
+				int second = 3 * (4 * f + (i + 1) % 3) + 2;
+				if (t == -1) {
+					twin2[c] = -1;
+					twin2[second] = -1;
+				} else {
+					int g = heFace[t];
+					int lt = t - 3 * g;
+					twin2[c] = 3 * (4 * g + (lt + 1) % 3) + 2;
+					twin2[second] = 3 * (4 * g + lt);
+				}
+			}
+			for (int h = 12 * f; h < 12 * f + 12; h++) {
+				next2[h] = 3 * (h / 3) + (h + 1) % 3;
+				face2[h] = h / 3;
+			}
+		});
 
-		public int getEndVertex(Face f) {
-			if (this.isFrontface(f)) {
-				return v2;
-			} else
-				return v1;
+		nVertices = nV + nE;
+		nFaces = 4 * nFaces;
+	}
+
+	/**
+	 * Computes the new position (or any other attribute with c components) of
+	 * an old vertex v. Interior vertices use Loop's weights, vertices on a
+	 * border are only smoothed along the border.
+	 */
+	private void evenPoint(float[] src, float[] dst, int c, int v) {
+		int h = vertexHalfEdge[v];
+		for (int k = 0; k < c; k++)
+			dst[c * v + k] = 0;
+		if (h == -1) {
+			System.arraycopy(src, c * v, dst, c * v, c);
+			return;
+		}
+		int first = h;
+		int last = v;
+		int n = 0;
+		do {
+			last = heVertex[heNext[h]];
+			for (int k = 0; k < c; k++)
+				dst[c * v + k] += src[c * last + k];
+			n++;
+			h = nextOutgoing(h);
+		} while (h != -1 && h != first);
+
+		if (heTwin[prev(first)] == -1) {
+			int x = heVertex[prev(first)];
+			for (int k = 0; k < c; k++)
+				dst[c * v + k] = 0.75f * src[c * v + k] + 0.125f * (src[c * x + k] + src[c * last + k]);
+		} else {
+			float beta = loopBeta(n);
+			for (int k = 0; k < c; k++)
+				dst[c * v + k] = (1 - n * beta) * src[c * v + k] + beta * dst[c * v + k];
 		}
 	}
 
-	protected class Vertex {
-		protected Vector3f position;
-		protected Vector3f color;
-		protected Vector3f normal;
-		protected Vector2f texCoord;
-		protected Edge edge;
+	/**
+	 * Computes the edge point (or any other attribute with c components) of
+	 * the edge of half-edge h and stores it at index i.
+	 */
+	private void oddPoint(float[] src, float[] dst, int c, int h, int i) {
+		int a = heVertex[h];
+		int b = heVertex[heNext[h]];
+		int t = heTwin[h];
+		if (t == -1) {
+			for (int k = 0; k < c; k++)
+				dst[c * i + k] = 0.5f * (src[c * a + k] + src[c * b + k]);
+		} else {
+			int l = heVertex[prev(h)];
+			int r = heVertex[prev(t)];
+			for (int k = 0; k < c; k++)
+				dst[c * i + k] = 0.375f * (src[c * a + k] + src[c * b + k])
+						+ 0.125f * (src[c * l + k] + src[c * r + k]);
+		}
+	}
 
-		public Vertex(Vector3f position) {
-			this.position = position;
-			color = new Vector3f();
-			normal = new Vector3f();
-			texCoord = new Vector2f();
+	/**
+	 * Writes the Loop stencil of old vertex v (the vertices and weights that
+	 * {@link #evenPoint(float[], float[], int, int)} combines) into the given
+	 * arrays.
+	 *
+	 * @return the number of stencil entries
+	 */
+	private int evenStencil(int v, int[] idx, float[] w) {
+		int n = findVertices(v, idx);
+		if (n == 0) {
+			idx[0] = v;
+			w[0] = 1;
+			return 1;
+		}
+		if (heTwin[prev(vertexHalfEdge[v])] == -1) {
+			// The border neighbours are the first and the last of the ring
+			idx[1] = idx[n - 1];
+			idx[2] = v;
+			w[0] = 0.125f;
+			w[1] = 0.125f;
+			w[2] = 0.75f;
+			return 3;
 		}
+		float beta = loopBeta(n);
+		for (int k = 0; k < n; k++)
+			w[k] = beta;
+		idx[n] = v;
+		w[n] = 1 - n * beta;
+		return n + 1;
+	}
 
-		public Vertex(Vertex vertex) {
-			this.position = new Vector3f(vertex.position);
-			this.color = new Vector3f(vertex.color);
-			this.normal = new Vector3f(vertex.normal);
-			this.texCoord = new Vector2f(vertex.texCoord);
+	/**
+	 * Writes the Loop stencil of the edge point of the edge of half-edge h
+	 * into the given arrays.
+	 *
+	 * @return the number of stencil entries
+	 */
+	private int oddStencil(int h, int[] idx, float[] w) {
+		idx[0] = heVertex[h];
+		idx[1] = heVertex[heNext[h]];
+		int t = heTwin[h];
+		if (t == -1) {
+			w[0] = 0.5f;
+			w[1] = 0.5f;
+			return 2;
 		}
+		idx[2] = heVertex[prev(h)];
+		idx[3] = heVertex[prev(t)];
+		w[0] = 0.375f;
+		w[1] = 0.375f;
+		w[2] = 0.125f;
+		w[3] = 0.125f;
+		return 4;
 	}
 
-	protected class Face {
-		protected Edge edge;
+	/**
+	 * Loop's weight for the neighbours of an interior vertex of valence n.
+	 */
+	private static float loopBeta(int n) {
+		double w = 0.375 + 0.25 * Math.cos(2 * Math.PI / n);
+		return (float) ((0.625 - w * w) / n);
+	}
 
-		public Face(Edge edge) {
-			this.edge = edge;
+	private static void normalize(float[] a, int i) {
+		float x = a[3 * i], y = a[3 * i + 1], z = a[3 * i + 2];
+		float l = (float) Math.sqrt(x * x + y * y + z * z);
+		if (l > 0) {
+			a[3 * i] = x / l;
+			a[3 * i + 1] = y / l;
+			a[3 * i + 2] = z / l;
 		}
 	}
+
+	/**
+	 * Returns the number of edges, counting each interior edge once.
+	 */
+	private int countEdges() {
+		int border = 0;
+		for (int h = 0; h < 3 * nFaces; h++)
+			if (heTwin[h] == -1)
+				border++;
+		return (3 * nFaces + border) / 2;
+	}
 }
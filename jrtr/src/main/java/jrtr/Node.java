@@ -0,0 +1,66 @@
+package jrtr;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A node of a scene graph that is rendered by a {@link GraphSceneManager}.
+ * Each node stores a transformation relative to its parent; the manager
+ * combines them into world transformations.
+ */
+public abstract class Node {
+
+	private Matrix4f transformation;
+	private TransformGroup parent;
+
+	/**
+	 * The scene manager the node is attached to, and the index of the node
+	 * in the manager's transformation arrays.
+	 */
+	GraphSceneManager manager;
+	int slot;
+
+	public Node()
+	{
+		transformation = new Matrix4f();
+		transformation.setIdentity();
+		slot = -1;
+	}
+
+	/**
+	 * @return the transformation of this node relative to its parent
+	 */
+	public Matrix4f getTransformation()
+	{
+		return transformation;
+	}
+
+	/**
+	 * Set the transformation of this node relative to its parent. Must
+	 * be called after modifying the matrix returned by
+	 * {@link #getTransformation()} in place, so that the world transformations
+	 * of this node and its descendants are updated.
+	 */
+	public void setTransformation(Matrix4f t)
+	{
+		if (t != transformation)
+			transformation.set(t);
+		if (manager != null)
+			manager.transformationChanged(this);
+	}
+
+	public TransformGroup getParent()
+	{
+		return parent;
+	}
+
+	void setParent(TransformGroup parent)
+	{
+		this.parent = parent;
+	}
+
+	void setManager(GraphSceneManager manager)
+	{
+		this.manager = manager;
+		this.slot = -1;
+	}
+}
@@ -0,0 +1,248 @@
+package jrtr;
+
+import java.util.Arrays;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A low resolution depth buffer that is filled on the CPU with the
+ * triangles of occluder shapes (see {@link Shape#setOccluder(boolean)}).
+ * Render contexts test the screen space bounding rectangle of each shape
+ * against it before drawing: if all pixels under the rectangle hold an
+ * occluder that is closer than the closest point of the shape's bounding
+ * box, the shape is hidden and does not need to be sent to the GPU.
+ * <p>
+ * Depths are normalized device z coordinates mapped to [0,1], which are
+ * linear in screen space and can therefore be interpolated directly during
+ * rasterization. An occluder triangle only writes the pixels it covers
+ * completely, and stores the farthest depth it has inside each of them, so
+ * a pixel never claims more occlusion than the occluder provides. Pixels
+ * along the shared edges of occluder triangles stay empty, hence occluders
+ * should be made of few, large triangles. Triangles crossing the near plane
+ * are not rasterized, and shapes whose bounding box crosses it are always
+ * visible, so the test stays conservative.
+ */
+public class OcclusionBuffer {
+
+	private int width, height;
+	private float[] depth;
+	private int nOccluders;
+
+	private Matrix4f viewProjection, mvp;
+	private float[] clip;
+
+	/**
+	 * Make an occlusion buffer with 256x128 pixels.
+	 */
+	public OcclusionBuffer()
+	{
+		this(256, 128);
+	}
+
+	public OcclusionBuffer(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		depth = new float[width * height];
+		viewProjection = new Matrix4f();
+		mvp = new Matrix4f();
+		clip = new float[4 * 64];
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return the depth values, row by row, starting at the bottom of the
+	 * screen
+	 */
+	public float[] getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @return the number of occluders drawn since the last call of
+	 * {@link #clear(Matrix4f, Matrix4f)}
+	 */
+	public int getNumberOfOccluders()
+	{
+		return nOccluders;
+	}
+
+	/**
+	 * Clear the buffer for a new frame.
+	 *
+	 * @param camera
+	 *            the camera matrix of the frame
+	 * @param projection
+	 *            the projection matrix of the frame
+	 */
+	public void clear(Matrix4f camera, Matrix4f projection)
+	{
+		viewProjection.mul(projection, camera);
+		Arrays.fill(depth, Float.POSITIVE_INFINITY);
+		nOccluders = 0;
+	}
+
+	/**
+	 * Rasterize the triangles of an occluder into the buffer.
+	 *
+	 * @param shape
+	 *            the occluder
+	 * @param t
+	 *            the transformation of the occluder
+	 */
+	public void drawOccluder(Shape shape, Matrix4f t)
+	{
+		VertexData vertexData = shape.getVertexData();
+		float[] p = null;
+		int c = 0;
+		for(VertexData.VertexElement e : vertexData.getElements()) {
+			if(e.getSemantic() == VertexData.Semantic.POSITION) {
+				p = e.getData();
+				c = e.getNumberOfComponents();
+			}
+		}
+		int[] indices = vertexData.getIndices();
+		if(p == null || indices == null)
+			return;
+
+		// Transform all vertices to clip coordinates
+		int n = vertexData.getNumberOfVertices();
+		if(clip.length < 4 * n)
+			clip = new float[4 * n];
+		mvp.mul(viewProjection, t);
+		for(int i = 0; i < n; i++) {
+			float x = p[c * i], y = p[c * i + 1], z = p[c * i + 2];
+			float w = c == 4 ? p[c * i + 3] : 1;
+			clip[4 * i] = mvp.m00 * x + mvp.m01 * y + mvp.m02 * z + mvp.m03 * w;
+			clip[4 * i + 1] = mvp.m10 * x + mvp.m11 * y + mvp.m12 * z + mvp.m13 * w;
+			clip[4 * i + 2] = mvp.m20 * x + mvp.m21 * y + mvp.m22 * z + mvp.m23 * w;
+			clip[4 * i + 3] = mvp.m30 * x + mvp.m31 * y + mvp.m32 * z + mvp.m33 * w;
+		}
+
+		for(int i = 0; i + 2 < indices.length; i += 3)
+			rasterize(4 * indices[i], 4 * indices[i + 1], 4 * indices[i + 2]);
+		nOccluders++;
+	}
+
+	/**
+	 * Rasterize one triangle given by the offsets of its vertices in the clip
+	 * coordinate array. Only pixels whose four corners lie inside the
+	 * triangle are written, with the largest depth of the triangle over the
+	 * pixel, keeping the smaller depth in each pixel.
+	 */
+	private void rasterize(int a, int b, int c)
+	{
+		float wa = clip[a + 3], wb = clip[b + 3], wc = clip[c + 3];
+		if(wa <= 1e-5f || wb <= 1e-5f || wc <= 1e-5f)
+			return;
+
+		// Screen space positions and depths
+		float xa = (clip[a] / wa * 0.5f + 0.5f) * width, ya = (clip[a + 1] / wa * 0.5f + 0.5f) * height;
+		float xb = (clip[b] / wb * 0.5f + 0.5f) * width, yb = (clip[b + 1] / wb * 0.5f + 0.5f) * height;
+		float xc = (clip[c] / wc * 0.5f + 0.5f) * width, yc = (clip[c + 1] / wc * 0.5f + 0.5f) * height;
+		float za = clip[a + 2] / wa * 0.5f + 0.5f;
+		float zb = clip[b + 2] / wb * 0.5f + 0.5f;
+		float zc = clip[c + 2] / wc * 0.5f + 0.5f;
+
+		float area = (xb - xa) * (yc - ya) - (xc - xa) * (yb - ya);
+		if(area == 0)
+			return;
+
+		int x0 = Math.max((int) Math.floor(Math.min(xa, Math.min(xb, xc))), 0);
+		int x1 = Math.min((int) Math.ceil(Math.max(xa, Math.max(xb, xc))), width - 1);
+		int y0 = Math.max((int) Math.floor(Math.min(ya, Math.min(yb, yc))), 0);
+		int y1 = Math.min((int) Math.ceil(Math.max(ya, Math.max(yb, yc))), height - 1);
+
+		// The barycentric coordinates and the depth are linear in screen
+		// space. Their smallest (largest) value over a pixel is at its lower
+		// left corner plus the negative (positive) steps in x and y.
+		float inv = 1 / area;
+		float ux = -(yc - yb) * inv, uy = (xc - xb) * inv;
+		float vx = -(ya - yc) * inv, vy = (xa - xc) * inv;
+		float wx = -ux - vx, wy = -uy - vy;
+		float uMin = Math.min(ux, 0) + Math.min(uy, 0);
+		float vMin = Math.min(vx, 0) + Math.min(vy, 0);
+		float wMin = Math.min(wx, 0) + Math.min(wy, 0);
+		float zMax = Math.max(ux * za + vx * zb + wx * zc, 0) + Math.max(uy * za + vy * zb + wy * zc, 0);
+		for(int y = y0; y <= y1; y++) {
+			for(int x = x0; x <= x1; x++) {
+				// Barycentric coordinates of the lower left pixel corner, the
+				// same sign as the area for points inside the triangle
+				float u = ((xc - xb) * (y - yb) - (yc - yb) * (x - xb)) * inv;
+				float v = ((xa - xc) * (y - yc) - (ya - yc) * (x - xc)) * inv;
+				float w = 1 - u - v;
+				if(u + uMin < 0 || v + vMin < 0 || w + wMin < 0)
+					continue;
+				float z = u * za + v * zb + w * zc + zMax;
+				int i = y * width + x;
+				if(z < depth[i])
+					depth[i] = z;
+			}
+		}
+	}
+
+	/**
+	 * Test whether a shape may be visible, i.e., its bounding box is not
+	 * completely hidden behind the occluders drawn so far.
+	 *
+	 * @param shape
+	 *            the shape
+	 * @param t
+	 *            the transformation of the shape
+	 * @return false if the shape is hidden or outside of the screen
+	 */
+	public boolean isVisible(Shape shape, Matrix4f t)
+	{
+		if(shape.getVertexData() == null)
+			return true;
+		float[] box = shape.getVertexData().getBoundingBox();
+		if(box[0] == Float.NEGATIVE_INFINITY)
+			return true;
+
+		mvp.mul(viewProjection, t);
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		for(int k = 0; k < 8; k++) {
+			float x = box[(k & 1) != 0 ? 3 : 0];
+			float y = box[(k & 2) != 0 ? 4 : 1];
+			float z = box[(k & 4) != 0 ? 5 : 2];
+			float w = mvp.m30 * x + mvp.m31 * y + mvp.m32 * z + mvp.m33;
+			// The box crosses the near plane
+			if(w <= 1e-5f)
+				return true;
+			float sx = ((mvp.m00 * x + mvp.m01 * y + mvp.m02 * z + mvp.m03) / w * 0.5f + 0.5f) * width;
+			float sy = ((mvp.m10 * x + mvp.m11 * y + mvp.m12 * z + mvp.m13) / w * 0.5f + 0.5f) * height;
+			float sz = (mvp.m20 * x + mvp.m21 * y + mvp.m22 * z + mvp.m23) / w * 0.5f + 0.5f;
+			minX = Math.min(minX, sx);
+			maxX = Math.max(maxX, sx);
+			minY = Math.min(minY, sy);
+			maxY = Math.max(maxY, sy);
+			minZ = Math.min(minZ, sz);
+		}
+
+		int x0 = Math.max((int) Math.floor(minX), 0);
+		int x1 = Math.min((int) Math.ceil(maxX), width - 1);
+		int y0 = Math.max((int) Math.floor(minY), 0);
+		int y1 = Math.min((int) Math.ceil(maxY), height - 1);
+		if(x0 > x1 || y0 > y1)
+			return false;
+
+		for(int y = y0; y <= y1; y++) {
+			for(int x = x0; x <= x1; x++) {
+				if(depth[y * width + x] >= minZ)
+					return true;
+			}
+		}
+		return false;
+	}
+}
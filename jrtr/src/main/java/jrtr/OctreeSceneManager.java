@@ -0,0 +1,435 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * A scene manager that stores the shapes in a loose octree, indexed by their
+ * world space bounding spheres. The bounds of an octree cell are loosened to
+ * twice its size, so each shape goes to the deepest cell that contains its
+ * center and is at least as large as its diameter. Finding that cell only
+ * needs one walk from the root, hence inserting, moving and removing a shape
+ * takes O(log n) time.
+ * <p>
+ * The octree is updated immediately when
+ * {@link Shape#setTransformation(Matrix4f)} is called. Besides culling the
+ * scene against the view frustum in {@link #iterator()}, the octree answers
+ * box, sphere and frustum queries, for example to find the shapes close to
+ * a moving object. Shapes outside of the octree bounds are kept in a list
+ * and tested one by one.
+ */
+public class OctreeSceneManager implements SceneManagerInterface, Shape.TransformationListener {
+
+	private ArrayList<Shape> shapes;
+	private IdentityHashMap<Shape, Integer> shapeIndices;
+	private LinkedList<Light> lights;
+	private Camera camera;
+	private Frustum frustum;
+	private OctreeSceneManagerItr itr;
+
+	// Per shape: copies of the world space bounding spheres of the shapes as
+	// x, y, z, radius, the node holding the shape and its position in the
+	// items of the node
+	private float[] worldSpheres;
+	private OctreeNode[] shapeNodes;
+	private int[] shapeSlots;
+
+	private OctreeNode root;
+	private OctreeNode outside;
+	private int maxDepth;
+
+	private ArrayList<Shape> visible;
+	private float[] box;
+
+	/**
+	 * Make an octree with a root cell of size 100 around the origin and at
+	 * most 8 levels.
+	 */
+	public OctreeSceneManager()
+	{
+		this(new Vector3f(0, 0, 0), 100, 8);
+	}
+
+	/**
+	 * @param center
+	 *            the center of the root cell
+	 * @param size
+	 *            the edge length of the root cell
+	 * @param maxDepth
+	 *            the maximum depth of the octree, the root has depth 0
+	 */
+	public OctreeSceneManager(Vector3f center, float size, int maxDepth)
+	{
+		shapes = new ArrayList<Shape>();
+		shapeIndices = new IdentityHashMap<Shape, Integer>();
+		lights = new LinkedList<Light>();
+		camera = new Camera();
+		frustum = new Frustum();
+		itr = new OctreeSceneManagerItr();
+		worldSpheres = new float[4 * 16];
+		shapeNodes = new OctreeNode[16];
+		shapeSlots = new int[16];
+		root = new OctreeNode(null, 0, center.x, center.y, center.z, size / 2);
+		outside = new OctreeNode(null, 0, 0, 0, 0, Float.POSITIVE_INFINITY);
+		this.maxDepth = maxDepth;
+		visible = new ArrayList<Shape>();
+		box = new float[6];
+	}
+
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
+	public Frustum getFrustum()
+	{
+		return frustum;
+	}
+
+	public void addShape(Shape shape)
+	{
+		int s = shapes.size();
+		if(s == shapeSlots.length) {
+			worldSpheres = Arrays.copyOf(worldSpheres, 8 * s);
+			shapeNodes = Arrays.copyOf(shapeNodes, 2 * s);
+			shapeSlots = Arrays.copyOf(shapeSlots, 2 * s);
+		}
+		shapes.add(shape);
+		shapeIndices.put(shape, s);
+		shape.addTransformationListener(this);
+		updateWorldSphere(s);
+		insert(s, findNode(s));
+	}
+
+	public void removeShape(Shape shape)
+	{
+		Integer index = shapeIndices.remove(shape);
+		if(index == null)
+			return;
+		shape.removeTransformationListener(this);
+		int s = index, last = shapes.size() - 1;
+		remove(s);
+		// Move the last shape into the free slot
+		Shape lastShape = shapes.remove(last);
+		if(s != last) {
+			shapes.set(s, lastShape);
+			shapeIndices.put(lastShape, s);
+			System.arraycopy(worldSpheres, 4 * last, worldSpheres, 4 * s, 4);
+			shapeNodes[s] = shapeNodes[last];
+			shapeSlots[s] = shapeSlots[last];
+			shapeNodes[s].items[shapeSlots[s]] = s;
+		}
+		shapeNodes[last] = null;
+	}
+
+	public void addLight(Light light)
+	{
+		lights.add(light);
+	}
+
+	public Iterator<Light> lightIterator()
+	{
+		return lights.iterator();
+	}
+
+	/**
+	 * Move the shape to the cell matching its new bounds. Nothing needs to be
+	 * done if the shape still fits into its current cell.
+	 */
+	public void transformationChanged(Shape shape)
+	{
+		Integer index = shapeIndices.get(shape);
+		if(index == null)
+			return;
+		int s = index;
+		updateWorldSphere(s);
+		if(!fits(s, shapeNodes[s])) {
+			remove(s);
+			insert(s, findNode(s));
+		}
+	}
+
+	/**
+	 * @return the world space bounding sphere of the shape as x, y, z,
+	 * radius, or null if the shape is not in the scene
+	 */
+	public float[] getBoundingSphere(Shape shape, float[] sphere)
+	{
+		Integer s = shapeIndices.get(shape);
+		if(s == null)
+			return null;
+		System.arraycopy(worldSpheres, 4 * s, sphere, 0, 4);
+		return sphere;
+	}
+
+	/**
+	 * Find the shapes whose bounding spheres intersect an axis aligned box.
+	 *
+	 * @param min
+	 *            the minimum corner of the box
+	 * @param max
+	 *            the maximum corner of the box
+	 * @param result
+	 *            the shapes are appended to this list
+	 */
+	public void queryBox(Vector3f min, Vector3f max, List<Shape> result)
+	{
+		float[] b = { min.x, min.y, min.z, max.x, max.y, max.z };
+		queryBox(root, b, result);
+		queryBox(outside, b, result);
+	}
+
+	/**
+	 * Find the shapes whose bounding spheres intersect a sphere.
+	 *
+	 * @param center
+	 *            the center of the sphere
+	 * @param radius
+	 *            the radius of the sphere
+	 * @param result
+	 *            the shapes are appended to this list
+	 */
+	public void querySphere(Vector3f center, float radius, List<Shape> result)
+	{
+		querySphere(root, center.x, center.y, center.z, radius, result);
+		querySphere(outside, center.x, center.y, center.z, radius, result);
+	}
+
+	/**
+	 * Find the shapes whose bounding spheres intersect a frustum. The planes
+	 * of the frustum must have been extracted with
+	 * {@link Frustum#extractPlanes(Matrix4f)}.
+	 *
+	 * @param f
+	 *            the frustum
+	 * @param result
+	 *            the shapes are appended to this list
+	 */
+	public void queryFrustum(Frustum f, List<Shape> result)
+	{
+		queryFrustum(root, f, result);
+		queryFrustum(outside, f, result);
+	}
+
+	public SceneManagerIterator iterator()
+	{
+		frustum.extractPlanes(camera.getCameraMatrix());
+		visible.clear();
+		queryFrustum(frustum, visible);
+		itr.i = 0;
+		return itr;
+	}
+
+	private void queryBox(OctreeNode node, float[] b, List<Shape> result)
+	{
+		if(node.nTotal == 0)
+			return;
+		float l = 2 * node.half;
+		if(b[0] > node.x + l || b[3] < node.x - l || b[1] > node.y + l || b[4] < node.y - l
+				|| b[2] > node.z + l || b[5] < node.z - l)
+			return;
+		for(int i=0; i<node.nItems; i++) {
+			int s = 4 * node.items[i];
+			// Distance from the sphere center to the box
+			float dx = Math.max(Math.max(b[0] - worldSpheres[s], worldSpheres[s] - b[3]), 0);
+			float dy = Math.max(Math.max(b[1] - worldSpheres[s + 1], worldSpheres[s + 1] - b[4]), 0);
+			float dz = Math.max(Math.max(b[2] - worldSpheres[s + 2], worldSpheres[s + 2] - b[5]), 0);
+			float r = worldSpheres[s + 3];
+			if(dx * dx + dy * dy + dz * dz <= r * r)
+				result.add(shapes.get(node.items[i]));
+		}
+		if(node.children != null) {
+			for(int i=0; i<8; i++) {
+				if(node.children[i] != null)
+					queryBox(node.children[i], b, result);
+			}
+		}
+	}
+
+	private void querySphere(OctreeNode node, float x, float y, float z, float r, List<Shape> result)
+	{
+		if(node.nTotal == 0)
+			return;
+		float l = 2 * node.half;
+		float dx = Math.max(Math.abs(x - node.x) - l, 0);
+		float dy = Math.max(Math.abs(y - node.y) - l, 0);
+		float dz = Math.max(Math.abs(z - node.z) - l, 0);
+		if(dx * dx + dy * dy + dz * dz > r * r)
+			return;
+		for(int i=0; i<node.nItems; i++) {
+			int s = 4 * node.items[i];
+			float ex = worldSpheres[s] - x, ey = worldSpheres[s + 1] - y, ez = worldSpheres[s + 2] - z;
+			float d = worldSpheres[s + 3] + r;
+			if(ex * ex + ey * ey + ez * ez <= d * d)
+				result.add(shapes.get(node.items[i]));
+		}
+		if(node.children != null) {
+			for(int i=0; i<8; i++) {
+				if(node.children[i] != null)
+					querySphere(node.children[i], x, y, z, r, result);
+			}
+		}
+	}
+
+	private void queryFrustum(OctreeNode node, Frustum f, List<Shape> result)
+	{
+		if(node.nTotal == 0)
+			return;
+		if(node != outside) {
+			float l = 2 * node.half;
+			box[0] = node.x - l;
+			box[1] = node.y - l;
+			box[2] = node.z - l;
+			box[3] = node.x + l;
+			box[4] = node.y + l;
+			box[5] = node.z + l;
+			if(!f.isVisible(box, 0))
+				return;
+		}
+		for(int i=0; i<node.nItems; i++) {
+			int s = 4 * node.items[i];
+			if(f.isVisible(worldSpheres[s], worldSpheres[s + 1], worldSpheres[s + 2], worldSpheres[s + 3]))
+				result.add(shapes.get(node.items[i]));
+		}
+		if(node.children != null) {
+			for(int i=0; i<8; i++) {
+				if(node.children[i] != null)
+					queryFrustum(node.children[i], f, result);
+			}
+		}
+	}
+
+	/**
+	 * Find the deepest cell that contains the center of the shape and is at
+	 * least as large as its diameter, creating the cells on the way.
+	 */
+	private OctreeNode findNode(int s)
+	{
+		float x = worldSpheres[4 * s], y = worldSpheres[4 * s + 1], z = worldSpheres[4 * s + 2];
+		float r = worldSpheres[4 * s + 3];
+		if(!(r <= root.half) || !inside(root, x, y, z))
+			return outside;
+		OctreeNode node = root;
+		while(node.depth < maxDepth && r <= node.half / 2) {
+			int octant = (x >= node.x ? 1 : 0) | (y >= node.y ? 2 : 0) | (z >= node.z ? 4 : 0);
+			if(node.children == null)
+				node.children = new OctreeNode[8];
+			if(node.children[octant] == null) {
+				float h = node.half / 2;
+				node.children[octant] = new OctreeNode(node, node.depth + 1,
+						node.x + ((octant & 1) != 0 ? h : -h),
+						node.y + ((octant & 2) != 0 ? h : -h),
+						node.z + ((octant & 4) != 0 ? h : -h), h);
+			}
+			node = node.children[octant];
+		}
+		return node;
+	}
+
+	/**
+	 * @return true if findNode would return the given node for the shape
+	 */
+	private boolean fits(int s, OctreeNode node)
+	{
+		float x = worldSpheres[4 * s], y = worldSpheres[4 * s + 1], z = worldSpheres[4 * s + 2];
+		float r = worldSpheres[4 * s + 3];
+		if(node == outside)
+			return !(r <= root.half) || !inside(root, x, y, z);
+		return r <= node.half && (node.depth == maxDepth || r > node.half / 2) && inside(node, x, y, z);
+	}
+
+	private static boolean inside(OctreeNode node, float x, float y, float z)
+	{
+		return Math.abs(x - node.x) <= node.half && Math.abs(y - node.y) <= node.half
+				&& Math.abs(z - node.z) <= node.half;
+	}
+
+	private void insert(int s, OctreeNode node)
+	{
+		if(node.nItems == node.items.length)
+			node.items = Arrays.copyOf(node.items, 2 * node.nItems);
+		shapeNodes[s] = node;
+		shapeSlots[s] = node.nItems;
+		node.items[node.nItems++] = s;
+		for(OctreeNode n = node; n != null; n = n.parent)
+			n.nTotal++;
+	}
+
+	/**
+	 * Remove the shape from its node. Cells that became empty stay in the
+	 * tree, so that shapes moving back and forth between cells do not
+	 * allocate them again; the queries skip them by their total number of
+	 * shapes.
+	 */
+	private void remove(int s)
+	{
+		OctreeNode node = shapeNodes[s];
+		int slot = shapeSlots[s];
+		int moved = node.items[--node.nItems];
+		node.items[slot] = moved;
+		shapeSlots[moved] = slot;
+		for(OctreeNode n = node; n != null; n = n.parent)
+			n.nTotal--;
+	}
+
+	/**
+	 * Copy the world space bounding sphere of a shape, which the shape only
+	 * recomputes when its transformation was set.
+	 */
+	private void updateWorldSphere(int s)
+	{
+		System.arraycopy(shapes.get(s).getWorldBoundingSphere(), 0, worldSpheres, 4 * s, 4);
+	}
+
+	/**
+	 * A cell of the octree. Shapes are stored in the items of the cell, the
+	 * total number of shapes in the subtree is used to skip empty subtrees.
+	 */
+	private static class OctreeNode {
+
+		OctreeNode parent;
+		OctreeNode[] children;
+		int depth;
+		// Center and half edge length of the cell, the loose bounds are
+		// twice as large
+		float x, y, z, half;
+		int[] items;
+		int nItems, nTotal;
+
+		OctreeNode(OctreeNode parent, int depth, float x, float y, float z, float half)
+		{
+			this.parent = parent;
+			this.depth = depth;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.half = half;
+			items = new int[4];
+		}
+	}
+
+	private class OctreeSceneManagerItr implements SceneManagerIterator {
+
+		private int i;
+		private RenderItem item = new RenderItem();
+
+		public boolean hasNext()
+		{
+			return i < visible.size();
+		}
+
+		public RenderItem next()
+		{
+			Shape shape = visible.get(i++);
+			item.set(shape, shape.getTransformation());
+			return item;
+		}
+	}
+}
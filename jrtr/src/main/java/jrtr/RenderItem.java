@@ -16,6 +16,21 @@ public class RenderItem {
 		this.t = t;
 	}
 	
+	/**
+	 * Make an empty render item. Scene managers use a single item for all
+	 * shapes of a traversal and update it with {@link #set(Shape, Matrix4f)}, 
+	 * so that no objects are allocated while rendering.
+	 */
+	public RenderItem()
+	{
+	}
+	
+	public void set(Shape shape, Matrix4f t)
+	{
+		this.shape = shape;
+		this.t = t;
+	}
+	
 	public Shape getShape()
 	{
 		return shape;
@@ -0,0 +1,372 @@
+package jrtr;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Vector3f;
+
+/**
+ * Saves a whole scene to one binary file and loads it into a
+ * {@link SimpleSceneManager}, so that applications can skip building a
+ * large scene procedurally at every startup.
+ * <p>
+ * The file stores the camera, the projection, the lights, the materials,
+ * the meshes and the shapes, in this order. Meshes and materials that are
+ * shared by several shapes are stored once and referenced by index. Each
+ * mesh is stored as a blob of its vertex elements and indices, together
+ * with its bounding volumes. Textures and shaders are referenced by the
+ * names of the files they were loaded from and are loaded again, once per
+ * file, with the render context passed to {@link #load(String, RenderContext)}.
+ * <p>
+ * Loading maps the file into memory and copies the vertex elements and
+ * indices with bulk gets from slices of the mapped buffer, without parsing
+ * individual values.
+ */
+public class SceneFile {
+
+	private static final int MAGIC = 0x4A525343;	// "JRSC"
+	private static final int VERSION = 1;
+
+	private static final int STATIC = 1, OCCLUDER = 2;
+
+	/**
+	 * Save a scene. A {@link SimpleSceneManager} is required because its
+	 * iterator returns all shapes with their own transformations; scene
+	 * managers that cull in their iterator would only save the shapes that
+	 * happen to be visible.
+	 *
+	 * @param scene
+	 *            the scene
+	 * @param fileName
+	 *            the file to write
+	 */
+	public static void save(SimpleSceneManager scene, String fileName) throws IOException
+	{
+		ArrayList<Shape> shapes = new ArrayList<Shape>();
+		ArrayList<Matrix4f> transformations = new ArrayList<Matrix4f>();
+		IdentityHashMap<VertexData, Integer> meshes = new IdentityHashMap<VertexData, Integer>();
+		IdentityHashMap<Material, Integer> materials = new IdentityHashMap<Material, Integer>();
+		ArrayList<VertexData> meshList = new ArrayList<VertexData>();
+		ArrayList<Material> materialList = new ArrayList<Material>();
+
+		SceneManagerIterator iterator = scene.iterator();
+		while(iterator.hasNext()) {
+			RenderItem r = iterator.next();
+			Shape shape = r.getShape();
+			if(shape.getVertexData() == null)
+				continue;
+			shapes.add(shape);
+			transformations.add(new Matrix4f(r.getT()));
+			if(!meshes.containsKey(shape.getVertexData())) {
+				meshes.put(shape.getVertexData(), meshList.size());
+				meshList.add(shape.getVertexData());
+			}
+			if(shape.getMaterial() != null && !materials.containsKey(shape.getMaterial())) {
+				materials.put(shape.getMaterial(), materialList.size());
+				materialList.add(shape.getMaterial());
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			Camera camera = scene.getCamera();
+			writeVector(out, camera.getCenterOfProjection());
+			writeVector(out, camera.getLookAtPoint());
+			writeVector(out, camera.getUpVector());
+			writeMatrix(out, camera.getCameraMatrix());
+			writeMatrix(out, scene.getFrustum().getProjectionMatrix());
+
+			ArrayList<Light> lights = new ArrayList<Light>();
+			Iterator<Light> lightIterator = scene.lightIterator();
+			while(lightIterator.hasNext())
+				lights.add(lightIterator.next());
+			out.writeInt(lights.size());
+			for(Light l : lights) {
+				out.writeInt(l.type.ordinal());
+				writeVector(out, l.direction);
+				writeVector(out, l.position);
+				writeVector(out, l.diffuse);
+				writeVector(out, l.specular);
+				writeVector(out, l.ambient);
+				writeVector(out, l.attenuation);
+				writeVector(out, l.spotDirection);
+				out.writeFloat(l.spotExponent);
+				out.writeFloat(l.spotCutoff);
+				out.writeFloat(l.range);
+			}
+
+			out.writeInt(materialList.size());
+			for(Material m : materialList) {
+				writeVector(out, m.getDiffuse());
+				writeVector(out, m.getSpecular());
+				writeVector(out, m.getAmbient());
+				out.writeFloat(m.getShininess());
+				writeString(out, m.shader != null ? m.shader.getVertexFileName() : null);
+				writeString(out, m.shader != null ? m.shader.getFragmentFileName() : null);
+				writeTexture(out, m.texture);
+				writeTexture(out, m.diffuseMap);
+				writeTexture(out, m.normalMap);
+				writeTexture(out, m.specularMap);
+				writeTexture(out, m.ambientMap);
+				writeTexture(out, m.alphaMap);
+			}
+
+			out.writeInt(meshList.size());
+			for(VertexData vertexData : meshList) {
+				out.writeInt(vertexData.getNumberOfVertices());
+				out.writeInt(vertexData.getElements().size());
+				for(VertexData.VertexElement e : vertexData.getElements()) {
+					out.writeInt(e.getSemantic().ordinal());
+					out.writeInt(e.getNumberOfComponents());
+					float[] data = e.getData();
+					out.writeInt(data.length);
+					for(int i=0; i<data.length; i++)
+						out.writeFloat(data[i]);
+				}
+				int[] indices = vertexData.getIndices();
+				out.writeInt(indices != null ? indices.length : -1);
+				if(indices != null) {
+					for(int i=0; i<indices.length; i++)
+						out.writeInt(indices[i]);
+				}
+				float[] box = vertexData.getBoundingBox();
+				float[] sphere = vertexData.getBoundingSphere();
+				for(int i=0; i<6; i++)
+					out.writeFloat(box[i]);
+				for(int i=0; i<4; i++)
+					out.writeFloat(sphere[i]);
+			}
+
+			out.writeInt(shapes.size());
+			for(int i=0; i<shapes.size(); i++) {
+				Shape shape = shapes.get(i);
+				out.writeInt(meshes.get(shape.getVertexData()));
+				out.writeInt(shape.getMaterial() != null ? materials.get(shape.getMaterial()) : -1);
+				writeMatrix(out, transformations.get(i));
+				out.writeByte((shape.isStatic() ? STATIC : 0) | (shape.isOccluder() ? OCCLUDER : 0));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Load a scene that was saved with {@link #save(SimpleSceneManager, String)}.
+	 *
+	 * @param fileName
+	 *            the file to read
+	 * @param renderContext
+	 *            the render context that makes the vertex data, textures and
+	 *            shaders
+	 * @return a scene manager holding the scene
+	 */
+	public static SimpleSceneManager load(String fileName, RenderContext renderContext) throws IOException
+	{
+		MappedByteBuffer in;
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the file is closed
+			file.close();
+		}
+
+		if(in.getInt() != MAGIC)
+			throw new IOException(fileName + " is not a scene file.");
+		int version = in.getInt();
+		if(version != VERSION)
+			throw new IOException("Unsupported version " + version + " of scene file " + fileName + ".");
+
+		SimpleSceneManager scene = new SimpleSceneManager();
+		Camera camera = scene.getCamera();
+		camera.setCenterOfProjection(readVector(in));
+		camera.setLookAtPoint(readVector(in));
+		camera.setUpVector(readVector(in));
+		camera.setCameraMatrix(readMatrix(in));
+		scene.getFrustum().setProjectionMatrix(readMatrix(in));
+
+		int nLights = in.getInt();
+		for(int i=0; i<nLights; i++) {
+			Light l = new Light();
+			l.type = Light.Type.values()[in.getInt()];
+			l.direction = readVector(in);
+			l.position = readVector(in);
+			l.diffuse = readVector(in);
+			l.specular = readVector(in);
+			l.ambient = readVector(in);
+			l.attenuation = readVector(in);
+			l.spotDirection = readVector(in);
+			l.spotExponent = in.getFloat();
+			l.spotCutoff = in.getFloat();
+			l.range = in.getFloat();
+			scene.addLight(l);
+		}
+
+		HashMap<String, Texture> textures = new HashMap<String, Texture>();
+		HashMap<String, Shader> shaders = new HashMap<String, Shader>();
+		Material[] materials = new Material[in.getInt()];
+		for(int i=0; i<materials.length; i++) {
+			Material m = new Material();
+			m.setDiffuse(readVector(in));
+			m.setSpecular(readVector(in));
+			m.setAmbient(readVector(in));
+			m.setShininess(in.getFloat());
+			String vertexFileName = readString(in);
+			String fragmentFileName = readString(in);
+			if(vertexFileName != null && fragmentFileName != null)
+				m.shader = loadShader(vertexFileName, fragmentFileName, shaders, renderContext);
+			m.texture = loadTexture(readString(in), textures, renderContext);
+			m.diffuseMap = loadTexture(readString(in), textures, renderContext);
+			m.normalMap = loadTexture(readString(in), textures, renderContext);
+			m.specularMap = loadTexture(readString(in), textures, renderContext);
+			m.ambientMap = loadTexture(readString(in), textures, renderContext);
+			m.alphaMap = loadTexture(readString(in), textures, renderContext);
+			materials[i] = m;
+		}
+
+		VertexData.Semantic[] semantics = VertexData.Semantic.values();
+		VertexData[] meshes = new VertexData[in.getInt()];
+		for(int i=0; i<meshes.length; i++) {
+			VertexData vertexData = renderContext.makeVertexData(in.getInt());
+			int nElements = in.getInt();
+			for(int j=0; j<nElements; j++) {
+				VertexData.Semantic semantic = semantics[in.getInt()];
+				int nComponents = in.getInt();
+				float[] data = new float[in.getInt()];
+				in.asFloatBuffer().get(data);
+				in.position(in.position() + 4 * data.length);
+				vertexData.addElement(data, semantic, nComponents);
+			}
+			int nIndices = in.getInt();
+			if(nIndices >= 0) {
+				int[] indices = new int[nIndices];
+				in.asIntBuffer().get(indices);
+				in.position(in.position() + 4 * nIndices);
+				vertexData.addIndices(indices);
+			}
+			float[] box = new float[6];
+			float[] sphere = new float[4];
+			in.asFloatBuffer().get(box).get(sphere);
+			in.position(in.position() + 4 * 10);
+			vertexData.setBounds(box, sphere);
+			meshes[i] = vertexData;
+		}
+
+		int nShapes = in.getInt();
+		for(int i=0; i<nShapes; i++) {
+			Shape shape = new Shape(meshes[in.getInt()]);
+			int material = in.getInt();
+			if(material >= 0)
+				shape.setMaterial(materials[material]);
+			shape.setTransformation(readMatrix(in));
+			int flags = in.get();
+			shape.setStatic((flags & STATIC) != 0);
+			shape.setOccluder((flags & OCCLUDER) != 0);
+			scene.addShape(shape);
+		}
+		return scene;
+	}
+
+	private static Texture loadTexture(String fileName, HashMap<String, Texture> textures, RenderContext renderContext) throws IOException
+	{
+		if(fileName == null)
+			return null;
+		Texture texture = textures.get(fileName);
+		if(texture == null) {
+			texture = renderContext.makeTexture();
+			texture.load(fileName);
+			textures.put(fileName, texture);
+		}
+		return texture;
+	}
+
+	private static Shader loadShader(String vertexFileName, String fragmentFileName, HashMap<String, Shader> shaders, RenderContext renderContext) throws IOException
+	{
+		String key = vertexFileName + "\n" + fragmentFileName;
+		Shader shader = shaders.get(key);
+		if(shader == null) {
+			shader = renderContext.makeShader();
+			try {
+				shader.load(vertexFileName, fragmentFileName);
+			} catch(Exception e) {
+				throw new IOException("Could not load shader " + vertexFileName + ", " + fragmentFileName + ".", e);
+			}
+			shaders.put(key, shader);
+		}
+		return shader;
+	}
+
+	private static void writeTexture(DataOutputStream out, Texture texture) throws IOException
+	{
+		writeString(out, texture != null ? texture.getFileName() : null);
+	}
+
+	/**
+	 * Write a string as its length in bytes, or -1 for null, followed by its
+	 * UTF-8 bytes.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if(s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		int length = in.getInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeVector(DataOutputStream out, Vector3f v) throws IOException
+	{
+		out.writeFloat(v.x);
+		out.writeFloat(v.y);
+		out.writeFloat(v.z);
+	}
+
+	private static Vector3f readVector(ByteBuffer in)
+	{
+		return new Vector3f(in.getFloat(), in.getFloat(), in.getFloat());
+	}
+
+	private static void writeMatrix(DataOutputStream out, Matrix4f m) throws IOException
+	{
+		for(int i=0; i<4; i++) {
+			for(int j=0; j<4; j++)
+				out.writeFloat(m.getElement(i, j));
+		}
+	}
+
+	private static Matrix4f readMatrix(ByteBuffer in)
+	{
+		float[] f = new float[16];
+		in.asFloatBuffer().get(f);
+		in.position(in.position() + 4 * 16);
+		return new Matrix4f(f);
+	}
+}
@@ -25,4 +25,13 @@ public interface SceneManagerInterface {
 	public Camera getCamera();
 	
 	public Frustum getFrustum();
+
+	/**
+	 * Called by the render contexts once at the beginning of each rendered
+	 * frame, before the scene is traversed, e.g., once for both eyes in VR.
+	 * Does nothing by default.
+	 */
+	public default void beginFrame()
+	{
+	}
 }
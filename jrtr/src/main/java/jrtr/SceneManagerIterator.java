@@ -3,6 +3,13 @@ package jrtr;
 /**
  * An iterator to traverse scenes. It returns objects of type {@link RenderItem}, 
  * which bundle information about shapes and their transformations.
+ * <p>
+ * To avoid allocations in every frame, scene managers may return the same
+ * {@link RenderItem} from each call of {@link #next()}, updated with the
+ * next shape, and the same iterator from each call of 
+ * {@link SceneManagerInterface#iterator()}. Callers must therefore copy 
+ * what they need from an item before calling {@link #next()} again, and 
+ * finish one traversal before starting the next one.
  */
 public interface SceneManagerIterator {
 
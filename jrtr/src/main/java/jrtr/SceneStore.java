@@ -0,0 +1,534 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A scene manager for very large numbers of objects. Instead of one
+ * {@link Shape} object with its own {@link Matrix4f} per object, the store
+ * keeps the transformations, world space bounding boxes, mesh ids and
+ * material ids of all objects (entities) in parallel primitive arrays.
+ * Meshes and materials are stored once in tables and referenced by id.
+ * <p>
+ * Entities are identified by the id returned from
+ * {@link #add(VertexData, Material, Matrix4f)}, which stays valid until the
+ * entity is removed. Internally the arrays are kept dense: removing an
+ * entity moves the last one into its place.
+ * <p>
+ * Updating the bounds of moved entities, frustum culling and building the
+ * sort keys of the visible entities run as parallel loops over the arrays.
+ * The keys order the visible entities by material, mesh and depth, so the
+ * iterator returns them grouped by render state. Renderers see each entity
+ * as a thin {@link Shape} view (see {@link #getShape(int)}) that reads and
+ * writes the arrays of the store.
+ * <p>
+ * The sort keys limit the store to 2^24 entities; beyond 2048 materials or
+ * 65536 meshes, ids share key bits, which only affects the order.
+ */
+public class SceneStore implements SceneManagerInterface {
+
+	private static final int MAX_ENTITIES = 1 << 24;
+
+	/**
+	 * Below this number of entities, loops are not worth running in
+	 * parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	private LinkedList<Light> lights;
+	private Camera camera;
+	private Frustum frustum;
+	private SceneStoreItr itr;
+
+	// Meshes and materials, with their object space bounding boxes
+	private ArrayList<VertexData> meshes;
+	private IdentityHashMap<VertexData, Integer> meshIds;
+	private float[] meshBoxes;
+	private ArrayList<Material> materials;
+	private IdentityHashMap<Material, Integer> materialIds;
+
+	// Per entity, indexed by the dense index: row-major transformations,
+	// world space boxes as minX, minY, minZ, maxX, maxY, maxZ, the mesh
+	// and material ids, and whether the box needs to be recomputed
+	private float[] transformations;
+	private float[] boxes;
+	private int[] meshOf, materialOf;
+	private boolean[] dirty;
+	private boolean anyDirty;
+	private int n;
+
+	// Maps entity ids to dense indices (-1 for free ids) and back
+	private int[] indexOf, idOf;
+	private int[] freeIds;
+	private int nFree, nIds;
+
+	// The shape views by entity id, made when needed
+	private EntityShape[] views;
+
+	// Sort keys of the last traversal; the visible entities come first
+	private long[] keys;
+	private int nVisible;
+	private Matrix4f[] visibleTransformations;
+
+	public SceneStore()
+	{
+		lights = new LinkedList<Light>();
+		camera = new Camera();
+		frustum = new Frustum();
+		itr = new SceneStoreItr();
+		meshes = new ArrayList<VertexData>();
+		meshIds = new IdentityHashMap<VertexData, Integer>();
+		meshBoxes = new float[6 * 16];
+		materials = new ArrayList<Material>();
+		materialIds = new IdentityHashMap<Material, Integer>();
+		// Material id 0 means no material
+		materials.add(null);
+		transformations = new float[16 * 64];
+		boxes = new float[6 * 64];
+		meshOf = new int[64];
+		materialOf = new int[64];
+		dirty = new boolean[64];
+		indexOf = new int[64];
+		idOf = new int[64];
+		freeIds = new int[64];
+		views = new EntityShape[64];
+		keys = new long[64];
+		visibleTransformations = new Matrix4f[0];
+	}
+
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
+	public Frustum getFrustum()
+	{
+		return frustum;
+	}
+
+	public void addLight(Light light)
+	{
+		lights.add(light);
+	}
+
+	public Iterator<Light> lightIterator()
+	{
+		return lights.iterator();
+	}
+
+	/**
+	 * @return the number of entities in the store
+	 */
+	public int size()
+	{
+		return n;
+	}
+
+	/**
+	 * Add an entity.
+	 *
+	 * @param vertexData
+	 *            the mesh of the entity
+	 * @param material
+	 *            the material of the entity, may be null
+	 * @param t
+	 *            the transformation of the entity
+	 * @return the id of the entity, or -1 if the store is full
+	 */
+	public int add(VertexData vertexData, Material material, Matrix4f t)
+	{
+		if(n == MAX_ENTITIES) {
+			System.out.print("Scene store is full.\n");
+			return -1;
+		}
+		if(n == meshOf.length)
+			growEntities(2 * n);
+		int id;
+		if(nFree > 0)
+			id = freeIds[--nFree];
+		else {
+			if(nIds == indexOf.length) {
+				indexOf = Arrays.copyOf(indexOf, 2 * nIds);
+				views = Arrays.copyOf(views, 2 * nIds);
+				freeIds = Arrays.copyOf(freeIds, 2 * nIds);
+			}
+			id = nIds++;
+		}
+		int i = n++;
+		indexOf[id] = i;
+		idOf[i] = id;
+		meshOf[i] = meshId(vertexData);
+		materialOf[i] = materialId(material);
+		store(t, transformations, 16 * i);
+		dirty[i] = true;
+		anyDirty = true;
+		return id;
+	}
+
+	/**
+	 * Remove an entity. Its id may be reused by entities added later.
+	 */
+	public void remove(int id)
+	{
+		int i = indexOf[id];
+		if(i < 0)
+			return;
+		int last = --n;
+		if(i != last) {
+			System.arraycopy(transformations, 16 * last, transformations, 16 * i, 16);
+			System.arraycopy(boxes, 6 * last, boxes, 6 * i, 6);
+			meshOf[i] = meshOf[last];
+			materialOf[i] = materialOf[last];
+			dirty[i] = dirty[last];
+			idOf[i] = idOf[last];
+			indexOf[idOf[i]] = i;
+		}
+		indexOf[id] = -1;
+		freeIds[nFree++] = id;
+	}
+
+	public void setTransformation(int id, Matrix4f t)
+	{
+		int i = indexOf[id];
+		store(t, transformations, 16 * i);
+		dirty[i] = true;
+		anyDirty = true;
+	}
+
+	/**
+	 * @param result
+	 *            receives the transformation of the entity
+	 * @return the result
+	 */
+	public Matrix4f getTransformation(int id, Matrix4f result)
+	{
+		load(transformations, 16 * indexOf[id], result);
+		return result;
+	}
+
+	public void setMaterial(int id, Material material)
+	{
+		materialOf[indexOf[id]] = materialId(material);
+	}
+
+	public Material getMaterial(int id)
+	{
+		return materials.get(materialOf[indexOf[id]]);
+	}
+
+	public VertexData getVertexData(int id)
+	{
+		return meshes.get(meshOf[indexOf[id]]);
+	}
+
+	/**
+	 * @return the world space bounding box of the entity, as computed by the
+	 *         last traversal, copied to the result
+	 */
+	public float[] getWorldBoundingBox(int id, float[] result)
+	{
+		System.arraycopy(boxes, 6 * indexOf[id], result, 0, 6);
+		return result;
+	}
+
+	/**
+	 * Receives the transformations of the entities in
+	 * {@link SceneStore#updateTransformations(TransformationUpdater)}.
+	 */
+	public interface TransformationUpdater {
+
+		/**
+		 * Update the transformation of one entity. Called from several
+		 * threads at the same time, for different entities.
+		 *
+		 * @param id
+		 *            the id of the entity
+		 * @param transformations
+		 *            the transformations of all entities, as row-major 4x4
+		 *            matrices
+		 * @param offset
+		 *            the position of the transformation of the entity
+		 */
+		public void update(int id, float[] transformations, int offset);
+	}
+
+	/**
+	 * Update the transformations of all entities with a parallel loop, e.g.,
+	 * for an animation step. The bounds of all entities are recomputed in
+	 * the same loop.
+	 */
+	public void updateTransformations(TransformationUpdater updater)
+	{
+		loop(n, i -> {
+			updater.update(idOf[i], transformations, 16 * i);
+			updateBox(i);
+		});
+	}
+
+	/**
+	 * @return the shape view of an entity. The view has no transformation
+	 *         listeners, the store tracks its changes itself.
+	 */
+	public Shape getShape(int id)
+	{
+		if(views[id] == null)
+			views[id] = new EntityShape(id);
+		return views[id];
+	}
+
+	/**
+	 * @return the number of entities returned by the last iterator
+	 */
+	public int getNumberOfVisibleShapes()
+	{
+		return nVisible;
+	}
+
+	/**
+	 * Recompute the boxes of moved entities, cull all entities against the
+	 * view frustum and sort the visible ones by their sort keys.
+	 */
+	public SceneManagerIterator iterator()
+	{
+		if(anyDirty) {
+			loop(n, i -> {
+				if(dirty[i])
+					updateBox(i);
+			});
+			anyDirty = false;
+		}
+
+		frustum.extractPlanes(camera.getCameraMatrix());
+		Matrix4f c = camera.getCameraMatrix();
+		float c20 = c.m20, c21 = c.m21, c22 = c.m22, c23 = c.m23;
+		loop(n, i -> {
+			if(!frustum.isVisible(boxes, 6 * i)) {
+				keys[i] = Long.MAX_VALUE;
+				return;
+			}
+			int t = 16 * i;
+			float depth = -(c20 * transformations[t + 3] + c21 * transformations[t + 7]
+					+ c22 * transformations[t + 11] + c23);
+			long d = depth > 0 ? Float.floatToIntBits(depth) >>> 19 : 0;
+			keys[i] = ((long) (materialOf[i] & 0x7FF) << 52) | ((long) (meshOf[i] & 0xFFFF) << 36)
+					| ((d & 0xFFF) << 24) | i;
+		});
+		if(n < PARALLEL_THRESHOLD)
+			Arrays.sort(keys, 0, n);
+		else
+			Arrays.parallelSort(keys, 0, n);
+
+		// Invisible entities have the largest key
+		int lo = 0, hi = n;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[mid] < Long.MAX_VALUE)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		nVisible = lo;
+
+		// The render context may keep the transformations until the frame
+		// is drawn, so each visible entity gets its own matrix
+		if(visibleTransformations.length < nVisible) {
+			int old = visibleTransformations.length;
+			visibleTransformations = Arrays.copyOf(visibleTransformations, Math.max(nVisible, 2 * old));
+			for(int k=old; k<visibleTransformations.length; k++)
+				visibleTransformations[k] = new Matrix4f();
+		}
+		for(int k=0; k<nVisible; k++)
+			getShape(idOf[(int) (keys[k] & 0xFFFFFF)]);
+		loop(nVisible, k -> load(transformations, 16 * (int) (keys[k] & 0xFFFFFF), visibleTransformations[k]));
+
+		itr.k = 0;
+		return itr;
+	}
+
+	/**
+	 * Run a loop body for the indices 0 to count-1, in parallel for large
+	 * counts.
+	 */
+	private static void loop(int count, IntConsumer body)
+	{
+		if(count < PARALLEL_THRESHOLD) {
+			for(int i=0; i<count; i++)
+				body.accept(i);
+		} else
+			IntStream.range(0, count).parallel().forEach(body);
+	}
+
+	/**
+	 * Transform the box of the mesh of an entity to world space, as the box
+	 * around the transformed box.
+	 */
+	private void updateBox(int i)
+	{
+		dirty[i] = false;
+		int m = 6 * meshOf[i], b = 6 * i, t = 16 * i;
+		float[] a = transformations;
+		if(meshBoxes[m] == Float.NEGATIVE_INFINITY) {
+			System.arraycopy(meshBoxes, m, boxes, b, 6);
+			return;
+		}
+		float cx = 0.5f * (meshBoxes[m] + meshBoxes[m + 3]);
+		float cy = 0.5f * (meshBoxes[m + 1] + meshBoxes[m + 4]);
+		float cz = 0.5f * (meshBoxes[m + 2] + meshBoxes[m + 5]);
+		float ex = 0.5f * (meshBoxes[m + 3] - meshBoxes[m]);
+		float ey = 0.5f * (meshBoxes[m + 4] - meshBoxes[m + 1]);
+		float ez = 0.5f * (meshBoxes[m + 5] - meshBoxes[m + 2]);
+		for(int k=0; k<3; k++) {
+			int r = t + 4 * k;
+			float center = a[r] * cx + a[r + 1] * cy + a[r + 2] * cz + a[r + 3];
+			float extent = Math.abs(a[r]) * ex + Math.abs(a[r + 1]) * ey + Math.abs(a[r + 2]) * ez;
+			boxes[b + k] = center - extent;
+			boxes[b + k + 3] = center + extent;
+		}
+	}
+
+	private int meshId(VertexData vertexData)
+	{
+		Integer id = meshIds.get(vertexData);
+		if(id != null)
+			return id;
+		int m = meshes.size();
+		meshes.add(vertexData);
+		meshIds.put(vertexData, m);
+		if(6 * m == meshBoxes.length)
+			meshBoxes = Arrays.copyOf(meshBoxes, 2 * meshBoxes.length);
+		System.arraycopy(vertexData.getBoundingBox(), 0, meshBoxes, 6 * m, 6);
+		return m;
+	}
+
+	private int materialId(Material material)
+	{
+		if(material == null)
+			return 0;
+		Integer id = materialIds.get(material);
+		if(id != null)
+			return id;
+		materials.add(material);
+		materialIds.put(material, materials.size() - 1);
+		return materials.size() - 1;
+	}
+
+	private void growEntities(int capacity)
+	{
+		transformations = Arrays.copyOf(transformations, 16 * capacity);
+		boxes = Arrays.copyOf(boxes, 6 * capacity);
+		meshOf = Arrays.copyOf(meshOf, capacity);
+		materialOf = Arrays.copyOf(materialOf, capacity);
+		dirty = Arrays.copyOf(dirty, capacity);
+		idOf = Arrays.copyOf(idOf, capacity);
+		keys = Arrays.copyOf(keys, capacity);
+	}
+
+	private static void store(Matrix4f m, float[] a, int o)
+	{
+		a[o] = m.m00; a[o + 1] = m.m01; a[o + 2] = m.m02; a[o + 3] = m.m03;
+		a[o + 4] = m.m10; a[o + 5] = m.m11; a[o + 6] = m.m12; a[o + 7] = m.m13;
+		a[o + 8] = m.m20; a[o + 9] = m.m21; a[o + 10] = m.m22; a[o + 11] = m.m23;
+		a[o + 12] = m.m30; a[o + 13] = m.m31; a[o + 14] = m.m32; a[o + 15] = m.m33;
+	}
+
+	private static void load(float[] a, int o, Matrix4f m)
+	{
+		m.m00 = a[o]; m.m01 = a[o + 1]; m.m02 = a[o + 2]; m.m03 = a[o + 3];
+		m.m10 = a[o + 4]; m.m11 = a[o + 5]; m.m12 = a[o + 6]; m.m13 = a[o + 7];
+		m.m20 = a[o + 8]; m.m21 = a[o + 9]; m.m22 = a[o + 10]; m.m23 = a[o + 11];
+		m.m30 = a[o + 12]; m.m31 = a[o + 13]; m.m32 = a[o + 14]; m.m33 = a[o + 15];
+	}
+
+	/**
+	 * A shape that only stores the id of an entity and reads and writes
+	 * the arrays of the store.
+	 */
+	private class EntityShape extends Shape {
+
+		private int id;
+		private Matrix4f t;
+		private float[] box, sphere;
+
+		EntityShape(int id)
+		{
+			this.id = id;
+		}
+
+		public VertexData getVertexData()
+		{
+			return SceneStore.this.getVertexData(id);
+		}
+
+		public Material getMaterial()
+		{
+			return SceneStore.this.getMaterial(id);
+		}
+
+		public void setMaterial(Material material)
+		{
+			SceneStore.this.setMaterial(id, material);
+		}
+
+		/**
+		 * @return a copy of the transformation of the entity, call
+		 * {@link #setTransformation(Matrix4f)} after modifying it
+		 */
+		public Matrix4f getTransformation()
+		{
+			if(t == null)
+				t = new Matrix4f();
+			return SceneStore.this.getTransformation(id, t);
+		}
+
+		public void setTransformation(Matrix4f t)
+		{
+			SceneStore.this.setTransformation(id, t);
+		}
+
+		public float[] getWorldBoundingBox()
+		{
+			if(box == null)
+				box = new float[6];
+			return SceneStore.this.getWorldBoundingBox(id, box);
+		}
+
+		public float[] getWorldBoundingSphere()
+		{
+			if(sphere == null)
+				sphere = new float[4];
+			float[] b = getWorldBoundingBox();
+			float dx = b[3] - b[0], dy = b[4] - b[1], dz = b[5] - b[2];
+			sphere[0] = 0.5f * (b[0] + b[3]);
+			sphere[1] = 0.5f * (b[1] + b[4]);
+			sphere[2] = 0.5f * (b[2] + b[5]);
+			sphere[3] = 0.5f * (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+			return sphere;
+		}
+	}
+
+	private class SceneStoreItr implements SceneManagerIterator {
+
+		private int k;
+		private RenderItem item = new RenderItem();
+
+		public boolean hasNext()
+		{
+			return k < nVisible;
+		}
+
+		public RenderItem next()
+		{
+			int i = (int) (keys[k] & 0xFFFFFF);
+			item.set(views[idOf[i]], visibleTransformations[k]);
+			k++;
+			return item;
+		}
+	}
+}
@@ -6,4 +6,16 @@ package jrtr;
 public interface Shader {
 
 	public void load(String vertexFileName, String fragmentFileName) throws Exception;
+
+	/**
+	 * @return the file the vertex shader was loaded from, or null if the
+	 * shader was not loaded
+	 */
+	public String getVertexFileName();
+
+	/**
+	 * @return the file the fragment shader was loaded from, or null if the
+	 * shader was not loaded
+	 */
+	public String getFragmentFileName();
 }
@@ -1,4 +1,6 @@
 package jrtr;
+import java.util.ArrayList;
+
 import javax.vecmath.*;
 
 /**
@@ -11,6 +13,12 @@ public class Shape {
 	private Material material;
 	private VertexData vertexData;
 	private Matrix4f t;
+	private ArrayList<TransformationListener> listeners;
+	private boolean isStatic;
+	private boolean isOccluder;
+	private float[] worldBox, worldSphere;
+	private boolean boundsChanged;
+	private int boundsVersion;
 	
 	/**
 	 * Make a shape from {@link VertexData}. A shape contains the geometry 
@@ -25,18 +33,51 @@ public class Shape {
 		this.vertexData = vertexData;
 		t = new Matrix4f();
 		t.setIdentity();
+		worldBox = new float[6];
+		worldSphere = new float[4];
+		boundsChanged = true;
 		
 		material = null;
 	}
 	
+	/**
+	 * Make a shape that does not store its own geometry, material and 
+	 * transformation. Used by subclasses that are views of data stored 
+	 * elsewhere, e.g., the entities of a {@link SceneStore}; they need to 
+	 * override the accessors.
+	 */
+	protected Shape()
+	{
+	}
+	
 	public VertexData getVertexData()
 	{
 		return vertexData;
 	}
 	
+	/**
+	 * Set the transformation of the shape. Must also be called after 
+	 * modifying the matrix returned by {@link #getTransformation()} in 
+	 * place, so that the registered {@link TransformationListener}s (for 
+	 * example spatial scene managers) are notified.
+	 */
 	public void setTransformation(Matrix4f t)
 	{
 		this.t = t;
+		boundsChanged();
+	}
+	
+	/**
+	 * Called when the transformation or the object space bounds of the 
+	 * vertex data have changed.
+	 */
+	void boundsChanged()
+	{
+		boundsChanged = true;
+		if(listeners != null) {
+			for(int i=0; i<listeners.size(); i++)
+				listeners.get(i).transformationChanged(this);
+		}
 	}
 	
 	public Matrix4f getTransformation()
@@ -44,6 +85,92 @@ public class Shape {
 		return t;
 	}
 	
+	/**
+	 * @return the world space bounding box of the shape as minX, minY, minZ,
+	 * maxX, maxY, maxZ. It is the box around the transformed object space 
+	 * box of the vertex data, and is only recomputed after 
+	 * {@link #setTransformation(Matrix4f)} was called or the bounds of the 
+	 * vertex data changed. The array must not be modified.
+	 */
+	public float[] getWorldBoundingBox()
+	{
+		if(boundsChanged || vertexData != null && vertexData.getBoundsVersion() != boundsVersion)
+			updateBounds();
+		return worldBox;
+	}
+	
+	/**
+	 * @return the world space bounding sphere of the shape as x, y, z, 
+	 * radius. The radius of the object space sphere is scaled by the 
+	 * largest scale factor of the transformation. The array must not be 
+	 * modified.
+	 */
+	public float[] getWorldBoundingSphere()
+	{
+		if(boundsChanged || vertexData != null && vertexData.getBoundsVersion() != boundsVersion)
+			updateBounds();
+		return worldSphere;
+	}
+	
+	private void updateBounds()
+	{
+		boundsChanged = false;
+		if(vertexData != null)
+			boundsVersion = vertexData.getBoundsVersion();
+		if(vertexData == null || t == null || vertexData.getBoundingSphere()[3] == Float.POSITIVE_INFINITY) {
+			for(int k=0; k<3; k++) {
+				worldBox[k] = Float.NEGATIVE_INFINITY;
+				worldBox[k + 3] = Float.POSITIVE_INFINITY;
+				worldSphere[k] = 0;
+			}
+			worldSphere[3] = Float.POSITIVE_INFINITY;
+			return;
+		}
+		
+		// Transform the center of the box and project its half extents onto 
+		// the world axes
+		float[] b = vertexData.getBoundingBox();
+		float cx = 0.5f * (b[0] + b[3]), cy = 0.5f * (b[1] + b[4]), cz = 0.5f * (b[2] + b[5]);
+		float ex = 0.5f * (b[3] - b[0]), ey = 0.5f * (b[4] - b[1]), ez = 0.5f * (b[5] - b[2]);
+		float x = t.m00 * cx + t.m01 * cy + t.m02 * cz + t.m03;
+		float y = t.m10 * cx + t.m11 * cy + t.m12 * cz + t.m13;
+		float z = t.m20 * cx + t.m21 * cy + t.m22 * cz + t.m23;
+		float rx = Math.abs(t.m00) * ex + Math.abs(t.m01) * ey + Math.abs(t.m02) * ez;
+		float ry = Math.abs(t.m10) * ex + Math.abs(t.m11) * ey + Math.abs(t.m12) * ez;
+		float rz = Math.abs(t.m20) * ex + Math.abs(t.m21) * ey + Math.abs(t.m22) * ez;
+		worldBox[0] = x - rx;
+		worldBox[1] = y - ry;
+		worldBox[2] = z - rz;
+		worldBox[3] = x + rx;
+		worldBox[4] = y + ry;
+		worldBox[5] = z + rz;
+		
+		transformSphere(vertexData.getBoundingSphere(), t, worldSphere);
+	}
+	
+	/**
+	 * Transform a bounding sphere given as x, y, z, radius. The radius is 
+	 * scaled by the largest scale factor of the transformation.
+	 * 
+	 * @param sphere
+	 * 		the sphere to be transformed
+	 * @param t
+	 * 		the transformation
+	 * @param result
+	 * 		receives the transformed sphere, may be the same array as sphere
+	 */
+	public static void transformSphere(float[] sphere, Matrix4f t, float[] result)
+	{
+		float x = sphere[0], y = sphere[1], z = sphere[2];
+		float sx = t.m00 * t.m00 + t.m10 * t.m10 + t.m20 * t.m20;
+		float sy = t.m01 * t.m01 + t.m11 * t.m11 + t.m21 * t.m21;
+		float sz = t.m02 * t.m02 + t.m12 * t.m12 + t.m22 * t.m22;
+		result[0] = t.m00 * x + t.m01 * y + t.m02 * z + t.m03;
+		result[1] = t.m10 * x + t.m11 * y + t.m12 * z + t.m13;
+		result[2] = t.m20 * x + t.m21 * y + t.m22 * z + t.m23;
+		result[3] = sphere[3] * (float) Math.sqrt(Math.max(sx, Math.max(sy, sz)));
+	}
+	
 	/**
 	 * Set a reference to a material for this shape.
 	 * 
@@ -63,4 +190,63 @@ public class Shape {
 		return material;
 	}
 
+	/**
+	 * Mark the shape as static, i.e., its transformation and vertex data 
+	 * do not change after the scene has been built. Static shapes can be 
+	 * merged with others into a {@link StaticBatch}.
+	 */
+	public void setStatic(boolean isStatic)
+	{
+		this.isStatic = isStatic;
+	}
+	
+	public boolean isStatic()
+	{
+		return isStatic;
+	}
+	
+	/**
+	 * Mark the shape as an occluder. Occluders are large, simple shapes 
+	 * like walls that are rasterized into an {@link OcclusionBuffer} before 
+	 * the scene is drawn, so that the shapes hidden behind them can be 
+	 * skipped.
+	 */
+	public void setOccluder(boolean isOccluder)
+	{
+		this.isOccluder = isOccluder;
+	}
+	
+	public boolean isOccluder()
+	{
+		return isOccluder;
+	}
+	
+	/**
+	 * Register a listener that is called whenever the transformation of 
+	 * this shape is set, or the bounds of its vertex data change.
+	 */
+	public void addTransformationListener(TransformationListener l)
+	{
+		if(listeners == null)
+			listeners = new ArrayList<TransformationListener>();
+		if(listeners.isEmpty() && vertexData != null)
+			vertexData.addListeningShape(this);
+		listeners.add(l);
+	}
+	
+	public void removeTransformationListener(TransformationListener l)
+	{
+		if(listeners != null && listeners.remove(l) && listeners.isEmpty() && vertexData != null)
+			vertexData.removeListeningShape(this);
+	}
+	
+	/**
+	 * Receives notifications when the transformation of a shape is set, or 
+	 * the bounds of its vertex data change, i.e., when its world space 
+	 * bounds may have changed.
+	 */
+	public interface TransformationListener {
+		
+		public void transformationChanged(Shape shape);
+	}
 }
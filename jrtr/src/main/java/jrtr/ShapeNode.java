@@ -0,0 +1,35 @@
+package jrtr;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A leaf of a scene graph that references a {@link Shape}. The shape is
+ * rendered with the world transformation of this node; the transformation
+ * stored in the shape itself is not used.
+ */
+public class ShapeNode extends Node {
+
+	private Shape shape;
+	private Matrix4f worldTransformation;
+
+	public ShapeNode(Shape shape)
+	{
+		this.shape = shape;
+		worldTransformation = new Matrix4f();
+		worldTransformation.setIdentity();
+	}
+
+	public Shape getShape()
+	{
+		return shape;
+	}
+
+	/**
+	 * @return the object-to-world transformation, as computed by the scene
+	 * manager during its last update
+	 */
+	public Matrix4f getWorldTransformation()
+	{
+		return worldTransformation;
+	}
+}
@@ -1,25 +1,29 @@
 package jrtr;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Iterator;
 
 /**
- * A simple scene manager that stores objects and lights in linked lists.
+ * A simple scene manager that stores objects in an array list and lights in 
+ * a linked list. Its iterator and render item are reused for every 
+ * traversal, see {@link SceneManagerIterator}.
  */
 public class SimpleSceneManager implements SceneManagerInterface {
 
-	private LinkedList<Shape> shapes;
+	private ArrayList<Shape> shapes;
 	private LinkedList<Light> lights;
 	private Camera camera;
 	private Frustum frustum;
+	private SimpleSceneManagerItr itr;
 	
 	public SimpleSceneManager()
 	{
-		shapes = new LinkedList<Shape>();
+		shapes = new ArrayList<Shape>();
 		lights = new LinkedList<Light>();
 		camera = new Camera();
 		frustum = new Frustum();
+		itr = new SimpleSceneManagerItr();
 	}
 	
 	public Camera getCamera()
@@ -49,32 +53,30 @@ public class SimpleSceneManager implements SceneManagerInterface {
 	
 	public SceneManagerIterator iterator()
 	{
-		return new SimpleSceneManagerItr(this);
+		itr.i = 0;
+		return itr;
 	}
 	
 	private class SimpleSceneManagerItr implements SceneManagerIterator {
 		
-		public SimpleSceneManagerItr(SimpleSceneManager sceneManager)
-		{
-			itr = sceneManager.shapes.listIterator(0);
-		}
+		private int i;
+		private RenderItem item = new RenderItem();
 		
 		public boolean hasNext()
 		{
-			return itr.hasNext();
+			return i < shapes.size();
 		}
 		
 		public RenderItem next()
 		{
-			Shape shape = itr.next();
+			Shape shape = shapes.get(i++);
 			// Here the transformation in the RenderItem is simply the 
 			// transformation matrix of the shape. More sophisticated 
 			// scene managers will set the transformation for the 
 			// RenderItem differently.
-			return new RenderItem(shape, shape.getTransformation());
+			item.set(shape, shape.getTransformation());
+			return item;
 		}
-		
-		ListIterator<Shape> itr;
 	}
 	
 }
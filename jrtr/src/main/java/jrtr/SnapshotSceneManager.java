@@ -0,0 +1,193 @@
+package jrtr;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.vecmath.Matrix4f;
+
+/**
+ * A scene manager that decouples an animation thread from the render
+ * thread. The animation thread updates the transformations in another
+ * scene manager (the scene) and then calls {@link #publish()}, which copies
+ * the shapes and their transformations into a snapshot. The renderer only
+ * reads from the most recently published snapshot, so it never sees a
+ * scene that is modified while it is drawn, and neither thread waits for
+ * the other.
+ * <p>
+ * The manager keeps three snapshots: the animation thread writes the back
+ * snapshot, the renderer reads the front snapshot, and the third one holds
+ * the latest published snapshot that the renderer has not picked up yet.
+ * Publishing and picking up are single atomic exchanges with this third
+ * snapshot. With only two snapshots, the animation thread would have to
+ * wait until the renderer finished reading before writing again.
+ * <p>
+ * The renderer picks up a snapshot in {@link #beginFrame()}, which the
+ * render contexts call once per rendered frame. All iterators of the frame,
+ * e.g., those of the two eyes in VR, then traverse the same snapshot.
+ * <p>
+ * The manager has its own camera and frustum, which belong to the render
+ * thread; they start as copies of those of the scene. The lights are those
+ * of the scene. Scenes that cull shapes in their iterator, like
+ * {@link BVHSceneManager} or {@link OctreeSceneManager}, are not supported:
+ * publishing would cull with the camera of the scene on the animation
+ * thread, not with the camera the snapshot is drawn with.
+ */
+public class SnapshotSceneManager implements SceneManagerInterface {
+
+	private static final int FRESH = 4;
+
+	private SceneManagerInterface scene;
+	private Snapshot[] snapshots;
+	private Camera camera;
+	private Frustum frustum;
+
+	/**
+	 * The index of the snapshot that was published last, or'ed with FRESH
+	 * if the renderer has not picked it up yet.
+	 */
+	private AtomicInteger middle;
+
+	/**
+	 * The snapshot written by the animation thread and the one read by the
+	 * render thread.
+	 */
+	private int back, front;
+
+	private SnapshotSceneManagerItr itr;
+
+	/**
+	 * @param scene
+	 *            the scene that is updated by the animation thread
+	 */
+	public SnapshotSceneManager(SceneManagerInterface scene)
+	{
+		this.scene = scene;
+		snapshots = new Snapshot[] { new Snapshot(), new Snapshot(), new Snapshot() };
+		back = 0;
+		middle = new AtomicInteger(1);
+		front = 2;
+		itr = new SnapshotSceneManagerItr();
+		camera = new Camera();
+		camera.setCameraMatrix(scene.getCamera().getCameraMatrix());
+		frustum = new Frustum();
+		frustum.setProjectionMatrix(new Matrix4f(scene.getFrustum().getProjectionMatrix()));
+	}
+
+	/**
+	 * @return the scene that is updated by the animation thread
+	 */
+	public SceneManagerInterface getScene()
+	{
+		return scene;
+	}
+
+	/**
+	 * @return the camera the snapshots are drawn with, only to be used by
+	 * the render thread
+	 */
+	public Camera getCamera()
+	{
+		return camera;
+	}
+
+	/**
+	 * @return the frustum the snapshots are drawn with, only to be used by
+	 * the render thread
+	 */
+	public Frustum getFrustum()
+	{
+		return frustum;
+	}
+
+	public Iterator<Light> lightIterator()
+	{
+		return scene.lightIterator();
+	}
+
+	/**
+	 * Copy the shapes and transformations of the scene into a new snapshot
+	 * and make it available to the renderer. Call this from the animation
+	 * thread after each update of the scene.
+	 */
+	public void publish()
+	{
+		Snapshot s = snapshots[back];
+		int old = s.n;
+		s.n = 0;
+		SceneManagerIterator iterator = scene.iterator();
+		while(iterator.hasNext()) {
+			RenderItem r = iterator.next();
+			s.add(r.getShape(), r.getT());
+		}
+		// Drop the references to shapes that are no longer in the scene
+		if(old > s.n)
+			Arrays.fill(s.shapes, s.n, old, null);
+		back = middle.getAndSet(back | FRESH) & ~FRESH;
+	}
+
+	/**
+	 * Pick up the most recently published snapshot, if the renderer has not
+	 * done so already. Called by the render contexts at the beginning of
+	 * each frame.
+	 */
+	public void beginFrame()
+	{
+		if((middle.get() & FRESH) != 0)
+			front = middle.getAndSet(front) & ~FRESH;
+	}
+
+	/**
+	 * Traverse the snapshot picked up by the last call of {@link #beginFrame()}.
+	 * The items stay valid until the next call of this method.
+	 */
+	public SceneManagerIterator iterator()
+	{
+		itr.snapshot = snapshots[front];
+		itr.i = 0;
+		return itr;
+	}
+
+	/**
+	 * The shapes of the scene and copies of their transformations at the
+	 * time of a call of {@link #publish()}.
+	 */
+	private static class Snapshot {
+
+		private Shape[] shapes = new Shape[16];
+		private Matrix4f[] transformations = new Matrix4f[16];
+		private int n;
+
+		void add(Shape shape, Matrix4f t)
+		{
+			if(n == shapes.length) {
+				shapes = Arrays.copyOf(shapes, 2 * n);
+				transformations = Arrays.copyOf(transformations, 2 * n);
+			}
+			if(transformations[n] == null)
+				transformations[n] = new Matrix4f();
+			shapes[n] = shape;
+			transformations[n].set(t);
+			n++;
+		}
+	}
+
+	private class SnapshotSceneManagerItr implements SceneManagerIterator {
+
+		private Snapshot snapshot;
+		private int i;
+		private RenderItem item = new RenderItem();
+
+		public boolean hasNext()
+		{
+			return i < snapshot.n;
+		}
+
+		public RenderItem next()
+		{
+			item.set(snapshot.shapes[i], snapshot.transformations[i]);
+			i++;
+			return item;
+		}
+	}
+}
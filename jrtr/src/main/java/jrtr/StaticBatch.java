@@ -0,0 +1,188 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import javax.vecmath.Matrix3f;
+import javax.vecmath.Matrix4f;
+
+/**
+ * A shape that merges several static shapes (see
+ * {@link Shape#setStatic(boolean)}) with the same material into one
+ * {@link VertexData}. The vertices are transformed to world space when the
+ * batch is built, so the whole batch is drawn with one draw call and the
+ * identity transformation.
+ * <p>
+ * The batch remembers the shapes it was built from and which triangles of
+ * the merged vertex data belong to each of them, so that hits on the merged
+ * geometry can be mapped back to the original shapes, e.g. for picking.
+ */
+public class StaticBatch {
+
+	private Shape shape;
+	private Shape[] sources;
+	private int[] triangleOffsets;
+
+	private StaticBatch(Shape shape, Shape[] sources, int[] triangleOffsets)
+	{
+		this.shape = shape;
+		this.sources = sources;
+		this.triangleOffsets = triangleOffsets;
+	}
+
+	/**
+	 * @return the merged shape, add it to the scene instead of the sources
+	 */
+	public Shape getShape()
+	{
+		return shape;
+	}
+
+	/**
+	 * @return the shapes the batch was built from
+	 */
+	public Shape[] getSources()
+	{
+		return sources;
+	}
+
+	/**
+	 * @param triangle
+	 *            the index of a triangle of the merged vertex data
+	 * @return the shape the triangle was taken from
+	 */
+	public Shape getSource(int triangle)
+	{
+		int i = Arrays.binarySearch(triangleOffsets, triangle);
+		// For triangles inside a range, binarySearch returns
+		// -(index of the next range start) - 1
+		return sources[i >= 0 ? i : -i - 2];
+	}
+
+	/**
+	 * Merge the static shapes of a list into batches, one per material.
+	 * Shapes are only merged if their vertex data have the same elements
+	 * (semantics and number of components). Shapes that are not static are
+	 * ignored.
+	 *
+	 * @param shapes
+	 *            the shapes of the scene
+	 * @param renderContext
+	 *            used to make the merged vertex data
+	 * @return the batches
+	 */
+	public static List<StaticBatch> build(List<Shape> shapes, RenderContext renderContext)
+	{
+		// Group the shapes by material and vertex layout, keeping their order
+		LinkedHashMap<List<Object>, ArrayList<Shape>> groups = new LinkedHashMap<List<Object>, ArrayList<Shape>>();
+		for(Shape s : shapes) {
+			if(!s.isStatic() || s.getVertexData() == null)
+				continue;
+			StringBuilder layout = new StringBuilder();
+			for(VertexData.VertexElement e : s.getVertexData().getElements())
+				layout.append(e.getSemantic()).append(e.getNumberOfComponents()).append(' ');
+			List<Object> key = Arrays.<Object>asList(s.getMaterial(), layout.toString());
+			ArrayList<Shape> group = groups.get(key);
+			if(group == null) {
+				group = new ArrayList<Shape>();
+				groups.put(key, group);
+			}
+			group.add(s);
+		}
+
+		ArrayList<StaticBatch> batches = new ArrayList<StaticBatch>();
+		for(ArrayList<Shape> group : groups.values())
+			batches.add(merge(group, renderContext));
+		return batches;
+	}
+
+	private static StaticBatch merge(ArrayList<Shape> group, RenderContext renderContext)
+	{
+		int nVertices = 0, nIndices = 0;
+		for(Shape s : group) {
+			nVertices += s.getVertexData().getNumberOfVertices();
+			nIndices += s.getVertexData().getIndices().length;
+		}
+
+		// The merged arrays, in the element order of the first shape
+		List<VertexData.VertexElement> layout = group.get(0).getVertexData().getElements();
+		float[][] data = new float[layout.size()][];
+		int k = 0;
+		for(VertexData.VertexElement e : layout)
+			data[k++] = new float[nVertices * e.getNumberOfComponents()];
+		int[] indices = new int[nIndices];
+		int[] triangleOffsets = new int[group.size()];
+
+		Matrix3f normalMatrix = new Matrix3f();
+		int vertexOffset = 0, indexOffset = 0;
+		for(int g = 0; g < group.size(); g++) {
+			VertexData v = group.get(g).getVertexData();
+			Matrix4f t = group.get(g).getTransformation();
+			// Normals are transformed with the inverse transpose
+			t.getRotationScale(normalMatrix);
+			if(normalMatrix.determinant() != 0) {
+				normalMatrix.invert();
+				normalMatrix.transpose();
+			}
+
+			k = 0;
+			for(VertexData.VertexElement e : v.getElements()) {
+				int c = e.getNumberOfComponents();
+				float[] src = e.getData();
+				float[] dst = data[k++];
+				int o = vertexOffset * c;
+				if(e.getSemantic() == VertexData.Semantic.POSITION && c >= 3) {
+					for(int i = 0; i < src.length; i += c) {
+						float x = src[i], y = src[i + 1], z = src[i + 2];
+						float w = c == 4 ? src[i + 3] : 1;
+						dst[o + i] = t.m00 * x + t.m01 * y + t.m02 * z + t.m03 * w;
+						dst[o + i + 1] = t.m10 * x + t.m11 * y + t.m12 * z + t.m13 * w;
+						dst[o + i + 2] = t.m20 * x + t.m21 * y + t.m22 * z + t.m23 * w;
+						if(c == 4)
+							dst[o + i + 3] = t.m30 * x + t.m31 * y + t.m32 * z + t.m33 * w;
+					}
+				} else if(e.getSemantic() == VertexData.Semantic.NORMAL && c >= 3) {
+					Matrix3f n = normalMatrix;
+					for(int i = 0; i < src.length; i += c) {
+						float x = src[i], y = src[i + 1], z = src[i + 2];
+						float nx = n.m00 * x + n.m01 * y + n.m02 * z;
+						float ny = n.m10 * x + n.m11 * y + n.m12 * z;
+						float nz = n.m20 * x + n.m21 * y + n.m22 * z;
+						float l = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+						if(l > 0) {
+							nx /= l;
+							ny /= l;
+							nz /= l;
+						}
+						dst[o + i] = nx;
+						dst[o + i + 1] = ny;
+						dst[o + i + 2] = nz;
+						for(int j = 3; j < c; j++)
+							dst[o + i + j] = src[i + j];
+					}
+				} else {
+					System.arraycopy(src, 0, dst, o, src.length);
+				}
+			}
+
+			int[] src = v.getIndices();
+			for(int i = 0; i < src.length; i++)
+				indices[indexOffset + i] = src[i] + vertexOffset;
+			triangleOffsets[g] = indexOffset / 3;
+			vertexOffset += v.getNumberOfVertices();
+			indexOffset += src.length;
+		}
+
+		VertexData merged = renderContext.makeVertexData(nVertices);
+		k = 0;
+		for(VertexData.VertexElement e : layout)
+			merged.addElement(data[k++], e.getSemantic(), e.getNumberOfComponents());
+		merged.addIndices(indices);
+
+		Shape shape = new Shape(merged);
+		shape.setMaterial(group.get(0).getMaterial());
+		return new StaticBatch(shape, group.toArray(new Shape[group.size()]), triangleOffsets);
+	}
+}
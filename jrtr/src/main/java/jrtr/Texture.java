@@ -8,4 +8,10 @@ import java.io.IOException;
 public interface Texture {
 
 	public void load(String fileName) throws IOException;
+
+	/**
+	 * @return the image file the texture was loaded from, or null if it was
+	 * not loaded from a file
+	 */
+	public String getFileName();
 }
@@ -0,0 +1,51 @@
+package jrtr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scene graph node that groups child nodes. Its transformation applies
+ * to all of its children.
+ */
+public class TransformGroup extends Node {
+
+	private ArrayList<Node> children;
+
+	public TransformGroup()
+	{
+		children = new ArrayList<Node>();
+	}
+
+	public void addChild(Node child)
+	{
+		if (child.getParent() != null)
+			child.getParent().removeChild(child);
+		children.add(child);
+		child.setParent(this);
+		child.setManager(manager);
+		if (manager != null)
+			manager.structureChanged();
+	}
+
+	public void removeChild(Node child)
+	{
+		if (children.remove(child)) {
+			child.setParent(null);
+			child.setManager(null);
+			if (manager != null)
+				manager.structureChanged();
+		}
+	}
+
+	public List<Node> getChildren()
+	{
+		return children;
+	}
+
+	void setManager(GraphSceneManager manager)
+	{
+		super.setManager(manager);
+		for (Node child : children)
+			child.setManager(manager);
+	}
+}
@@ -1,6 +1,7 @@
 package jrtr;
 
 import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import jrtr.glrenderer.GLVertexData;
 import jrtr.swrenderer.SWVertexData;
@@ -33,6 +34,29 @@ public abstract class VertexData {
 	 */
 	private LinkedList<VertexElement> vertexElements;
 
+	/**
+	 * The object space bounding box (minX, minY, minZ, maxX, maxY, maxZ) and
+	 * bounding sphere (x, y, z, radius) of the vertex positions. They are 
+	 * computed when they are first needed, and may be read from another 
+	 * thread. The version is incremented whenever they change.
+	 */
+	private volatile float[] boundingBox, boundingSphere;
+	private volatile int boundsVersion;
+
+	/**
+	 * The shapes that use this vertex data and have transformation 
+	 * listeners, which need to be notified when the bounds change. Shapes
+	 * may be added or removed while the bounds change on another thread.
+	 */
+	private volatile CopyOnWriteArrayList<Shape> listeningShapes;
+
+	/**
+	 * Whether the vertex attributes are streamed to the GPU every frame,
+	 * and the version of the vertex attributes, see {@link #dataChanged()}.
+	 */
+	private boolean dynamic;
+	private int dataVersion;
+
 	/**
 	 * Vertex data consists of a list of vertex elements, and an index array.
 	 * The index array contains indices into the vertex data. The indices
@@ -66,6 +90,7 @@ public abstract class VertexData {
 			// before the vertex is rendered).
 			if (s == Semantic.POSITION) {
 				vertexElements.addLast(vertexElement);
+				updateBounds();
 			} else {
 				vertexElements.addFirst(vertexElement);
 			}
@@ -91,6 +116,161 @@ public abstract class VertexData {
 		return indices;
 	}
 
+	/**
+	 * @return the object space bounding box of the vertex positions as minX,
+	 *         minY, minZ, maxX, maxY, maxZ. Vertex data without positions
+	 *         has an infinite box. The array must not be modified.
+	 */
+	public float[] getBoundingBox() {
+		// Read the field once, updateBounds() may reset it at any time
+		float[] box = boundingBox;
+		if (box == null)
+			box = computeBounds()[0];
+		return box;
+	}
+
+	/**
+	 * @return the object space bounding sphere of the vertex positions as x,
+	 *         y, z, radius. It is centered at the center of the bounding box.
+	 *         Vertex data without positions has an infinite radius. The array
+	 *         must not be modified.
+	 */
+	public float[] getBoundingSphere() {
+		float[] sphere = boundingSphere;
+		if (sphere == null)
+			sphere = computeBounds()[1];
+		return sphere;
+	}
+
+	/**
+	 * @return a number that changes whenever the bounds change, so that
+	 *         world space bounds computed from them can be refreshed
+	 */
+	public int getBoundsVersion() {
+		return boundsVersion;
+	}
+
+	/**
+	 * Recompute the bounding box and sphere when they are needed next. Call
+	 * this after modifying the vertex positions in place. The transformation
+	 * listeners of the shapes that use this vertex data are notified.
+	 */
+	public void updateBounds() {
+		boundingBox = null;
+		boundingSphere = null;
+		boundsChanged();
+	}
+
+	/**
+	 * Set bounds that were computed before, e.g., when the vertex data is
+	 * loaded from a {@link SceneFile}.
+	 */
+	void setBounds(float[] boundingBox, float[] boundingSphere) {
+		this.boundingSphere = boundingSphere;
+		this.boundingBox = boundingBox;
+		boundsChanged();
+	}
+
+	private void boundsChanged() {
+		boundsVersion++;
+		CopyOnWriteArrayList<Shape> shapes = listeningShapes;
+		if (shapes != null) {
+			for (Shape shape : shapes)
+				shape.boundsChanged();
+		}
+	}
+
+	/**
+	 * Mark the vertex data as dynamic, i.e., its vertex attributes are
+	 * modified in place often, e.g., every frame by an animation. Render
+	 * contexts then write the attributes to a stream buffer in every frame
+	 * the vertex data is drawn, instead of keeping them in static buffers on
+	 * the GPU. The indices stay static in either case.
+	 */
+	public void setDynamic(boolean dynamic) {
+		this.dynamic = dynamic;
+	}
+
+	public boolean isDynamic() {
+		return dynamic;
+	}
+
+	/**
+	 * Call this after modifying the arrays of the vertex elements in place.
+	 * Render contexts upload static vertex data again when it is drawn next,
+	 * and the bounds are recomputed, see {@link #updateBounds()}.
+	 */
+	public void dataChanged() {
+		dataVersion++;
+		updateBounds();
+	}
+
+	/**
+	 * @return a number that changes whenever {@link #dataChanged()} is
+	 *         called, so that copies of the vertex attributes can be
+	 *         refreshed
+	 */
+	public int getDataVersion() {
+		return dataVersion;
+	}
+
+	synchronized void addListeningShape(Shape shape) {
+		if (listeningShapes == null)
+			listeningShapes = new CopyOnWriteArrayList<Shape>();
+		listeningShapes.add(shape);
+	}
+
+	synchronized void removeListeningShape(Shape shape) {
+		if (listeningShapes != null)
+			listeningShapes.remove(shape);
+	}
+
+	/**
+	 * Compute and publish the bounding box and sphere.
+	 *
+	 * @return the computed bounding box and sphere, which are returned to
+	 *         the caller even if another thread resets the fields meanwhile
+	 */
+	private float[][] computeBounds() {
+		float[] p = null;
+		int c = 0;
+		for (VertexElement e : vertexElements) {
+			if (e.semantic == Semantic.POSITION) {
+				p = e.data;
+				c = e.nComponents;
+			}
+		}
+		if (p == null || p.length < 3) {
+			float inf = Float.POSITIVE_INFINITY;
+			float[] sphere = { 0, 0, 0, inf };
+			float[] box = { -inf, -inf, -inf, inf, inf, inf };
+			boundingSphere = sphere;
+			boundingBox = box;
+			return new float[][] { box, sphere };
+		}
+
+		float[] box = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+				-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int i = 0; i < p.length; i += c) {
+			for (int k = 0; k < 3; k++) {
+				box[k] = Math.min(box[k], p[i + k]);
+				box[k + 3] = Math.max(box[k + 3], p[i + k]);
+			}
+		}
+		float x = 0.5f * (box[0] + box[3]), y = 0.5f * (box[1] + box[4]), z = 0.5f * (box[2] + box[5]);
+		float r2 = 0;
+		for (int i = 0; i < p.length; i += c) {
+			float dx = p[i] - x, dy = p[i + 1] - y, dz = p[i + 2] - z;
+			r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+		}
+		// Only publish complete arrays, the bounds may be read from another
+		// thread
+		float[] sphere = { x, y, z, (float) Math.sqrt(r2) };
+		boundingSphere = sphere;
+		boundingBox = box;
+		return new float[][] { box, sphere };
+	}
+
 	/**
 	 * A vertex element is an array of floats that stores vertex attributes,
 	 * like positions, normals, or texture coordinates. The element stores the
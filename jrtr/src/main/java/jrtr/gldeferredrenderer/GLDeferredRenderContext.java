@@ -64,12 +64,18 @@ public class GLDeferredRenderContext implements RenderContext{
 	
 	private GLShader prevUsedShader = null;
 	
-	private int activeShaderID;
+	/**
+	 * Skips redundant changes of the bound program, VAO, buffers and 
+	 * textures.
+	 */
+	private GLStateTracker state;
+	
 	protected SceneManagerInterface sceneManager;
 	
 	
 	protected void init(int width, int height){
 		gl.glEnable(GL3.GL_DEPTH_TEST);
+		this.state = new GLStateTracker(gl);
 		this.postProcessors = new ArrayList<PostProcessor>();
 	
 		// Initialize shaders
@@ -111,6 +117,13 @@ public class GLDeferredRenderContext implements RenderContext{
 	 * @param drawable
 	 */
 	public void display(GLAutoDrawable drawable){
+		
+		// Let the scene manager prepare the frame, e.g., pick up the latest
+		// snapshot of an animated scene in the whole frame
+		sceneManager.beginFrame();
+		
+		// Count the state changes of this frame
+		this.state.beginFrame();
 
 		// Render to g-buffer
 		this.renderToGBuffer(drawable);
@@ -256,12 +269,11 @@ public class GLDeferredRenderContext implements RenderContext{
 	 */
 	public void bindTexture(int textureLocation, int textureId, String sampler2DName, GLShader shader){
 		this.useShader(shader);
-		gl.glActiveTexture(GL3.GL_TEXTURE0+textureLocation);
-		gl.glEnable(GL3.GL_TEXTURE_2D);
-		gl.glBindTexture(GL3.GL_TEXTURE_2D, textureId);
-		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
-		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
-		gl.glUniform1i(gl.glGetUniformLocation(shader.programId(), sampler2DName), textureLocation);
+		state.activeTexture(GL3.GL_TEXTURE0+textureLocation);
+		state.enable(GL3.GL_TEXTURE_2D);
+		// The filtering is stored with the texture when it is made
+		state.bindTexture(GL3.GL_TEXTURE_2D, textureId);
+		gl.glUniform1i(shader.getUniformLocation(sampler2DName), textureLocation);
 	}
 	
 	/**
@@ -327,11 +339,18 @@ public class GLDeferredRenderContext implements RenderContext{
 	public void useShader(Shader s) {
 		if (s != null) {
 			this.prevUsedShader = (GLShader) s;
-			activeShaderID = ((GLShader)s).programId();
-			gl.glUseProgram(activeShaderID);
+			state.useProgram(prevUsedShader.programId());
 		}
 	}
 	
+	/**
+	 * @return the state tracker, which counts the redundant state changes
+	 * of the last frame
+	 */
+	public GLStateTracker getStateTracker(){
+		return state;
+	}
+	
 	/**
 	 * Uses the default shader.
 	 */
@@ -369,6 +388,8 @@ public class GLDeferredRenderContext implements RenderContext{
 	 * is complete.
 	 */
 	public void endFrame() {
+		// Bind the default vertex array, VAOs stay bound between draw calls
+		state.bindVertexArray(0);
 		gl.glFlush();
 	}
 
@@ -384,28 +405,24 @@ public class GLDeferredRenderContext implements RenderContext{
 		if (vertexData.getVAO() == null) {
 			initArrayBuffer(vertexData);
 		}
+		// Upload the vertex data again if it has changed, dynamic vertex data
+		// is not streamed in this context
+		vertexData.update(gl, state, null);
 		setTransformation(renderItem.getT());
-		vertexData.getVAO().bind();
+		state.bindVertexArray(vertexData.getVAO().getId());
 		ListIterator<VertexData.VertexElement> itr = vertexData.getElements().listIterator(0);
 		vertexData.getVAO().rewindVBO();
 		while (itr.hasNext()) {
 			VertexData.VertexElement e = itr.next();
 			int dim = e.getNumberOfComponents();
-			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vertexData.getVAO().getNextVBO());
-			int attribIndex = -1;
-			switch (e.getSemantic()) {
-			case POSITION: attribIndex = gl.glGetAttribLocation(activeShaderID, "position"); break;
-			case NORMAL: attribIndex = gl.glGetAttribLocation(activeShaderID, "normal"); break;
-			case COLOR: attribIndex = gl.glGetAttribLocation(activeShaderID, "color"); break;
-			case TEXCOORD: attribIndex = gl.glGetAttribLocation(activeShaderID, "texcoord"); break;
-			}
+			state.bindBuffer(GL3.GL_ARRAY_BUFFER, vertexData.getVAO().getNextVBO());
+			int attribIndex = prevUsedShader.getAttribLocation(e.getSemantic());
 
 			gl.glVertexAttribPointer(attribIndex, dim, GL3.GL_FLOAT, false, 0, 0);
 			gl.glEnableVertexAttribArray(attribIndex);
 		}
 		gl.glDrawElements(GL3.GL_TRIANGLES, renderItem.getShape()
 				.getVertexData().getIndices().length, GL3.GL_UNSIGNED_INT, 0);
-		gl.glBindVertexArray(0);
 	}
 	
 	/**
@@ -420,22 +437,22 @@ public class GLDeferredRenderContext implements RenderContext{
 		GLVertexArrayObject vao = new GLVertexArrayObject(gl, data.getElements().size() + 1);
 		vertexArrayObjects.add(vao);
 		data.setVAO(vao);
-		vao.bind();
+		state.bindVertexArray(vao.getId());
 		ListIterator<VertexData.VertexElement> itr = data.getElements().listIterator(0);
 		data.getVAO().rewindVBO();
 		while (itr.hasNext()) {
 			VertexData.VertexElement e = itr.next();
-			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
+			state.bindBuffer(GL3.GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
 			gl.glBufferData(GL3.GL_ARRAY_BUFFER, e.getData().length * 4,
-					FloatBuffer.wrap(e.getData()), GL3.GL_DYNAMIC_DRAW);
+					FloatBuffer.wrap(e.getData()), GL3.GL_STATIC_DRAW);
 
 		}
-		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
-		gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, data.getVAO().getNextVBO());
+		state.bindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		state.bindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, data.getVAO().getNextVBO());
 		gl.glBufferData(GL3.GL_ELEMENT_ARRAY_BUFFER,
 				data.getIndices().length * 4,
-				IntBuffer.wrap(data.getIndices()), GL3.GL_DYNAMIC_DRAW);
-		gl.glBindVertexArray(0);
+				IntBuffer.wrap(data.getIndices()), GL3.GL_STATIC_DRAW);
+		state.bindVertexArray(0);
 	}
 
 	private final Matrix4f mTemp = new Matrix4f();
@@ -0,0 +1,149 @@
+package jrtr.glrenderer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL3;
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Vector3f;
+
+import jrtr.Light;
+import jrtr.LightCuller;
+
+/**
+ * A uniform buffer object with the data that is the same for all objects
+ * of a frame: the projection and camera matrices and the lights. It is
+ * uploaded once per frame (once per eye in VR) and shared by all shaders
+ * that declare the uniform block
+ * <pre>
+ * layout(std140) uniform Frame {
+ * 	mat4 projection;
+ * 	mat4 view;
+ * 	vec4 lightDirection[256];
+ * 	vec4 lightPosition[256];
+ * 	vec4 lightDiffuse[256];
+ * 	int nLights;
+ * };
+ * </pre>
+ * Only the matrices, nLights and the first nLights elements of the light
+ * arrays are uploaded; the remaining elements are left as they are and must
+ * not be read by the shaders.
+ * {@link GLShader} connects this block to the binding point
+ * {@link #BINDING} when a shader is linked. The w component of
+ * lightPosition is 1 for point and spot lights and 0 for directional
+ * lights, whose position is unused; the w component of lightDirection is
+ * one over the range of the light, 0 if the range is infinite. Positions
+ * are in world coordinates. The lights of an object are
+ * selected from the lights of the frame with the uniform "lightIndices",
+ * see {@link GLItemLights}. The block is 12432 bytes, within the 16 KB
+ * that every OpenGL 3.1 implementation supports.
+ */
+public class GLFrameUniforms {
+
+	/**
+	 * The name of the uniform block and its binding point.
+	 */
+	public static final String BLOCK = "Frame";
+	public static final int BINDING = 0;
+
+	/**
+	 * The size of the light arrays.
+	 */
+	public static final int MAX_LIGHTS = 256;
+
+	// Offsets of the members in the std140 layout, in bytes. Each array
+	// element occupies one vec4.
+	private static final int PROJECTION = 0, VIEW = 64, LIGHT_DIRECTION = 128,
+			LIGHT_POSITION = LIGHT_DIRECTION + 16 * MAX_LIGHTS,
+			LIGHT_DIFFUSE = LIGHT_POSITION + 16 * MAX_LIGHTS,
+			N_LIGHTS = LIGHT_DIFFUSE + 16 * MAX_LIGHTS,
+			SIZE = N_LIGHTS + 16;
+
+	private GL3 gl;
+	private IntBuffer ubo;
+	private ByteBuffer data;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context to store the buffer
+	 */
+	public GLFrameUniforms(GL3 gl) {
+		this.gl = gl;
+		ubo = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, ubo);
+		data = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, ubo.get(0));
+		gl.glBufferData(GL3.GL_UNIFORM_BUFFER, SIZE, null, GL3.GL_STREAM_DRAW);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * Upload the data of a frame and bind the buffer to {@link #BINDING}.
+	 *
+	 * @param projection
+	 * 		the projection matrix
+	 * @param camera
+	 * 		the camera matrix
+	 * @param lights
+	 * 		the lights of the frame, after {@link LightCuller#update}. Lights
+	 * 		after the first {@link #MAX_LIGHTS} are not passed.
+	 */
+	public void update(Matrix4f projection, Matrix4f camera, LightCuller lights) {
+		putMatrix(PROJECTION, projection);
+		putMatrix(VIEW, camera);
+
+		int n = Math.min(lights.getNumberOfLights(), MAX_LIGHTS);
+		for (int i = 0; i < n; i++) {
+			Light l = lights.getLight(i);
+			putVector(LIGHT_DIRECTION + 16 * i, l.direction, 1 / l.range);
+			putVector(LIGHT_POSITION + 16 * i, l.position, l.type == Light.Type.DIRECTIONAL ? 0 : 1);
+			putVector(LIGHT_DIFFUSE + 16 * i, l.diffuse, 1);
+		}
+		data.putInt(N_LIGHTS, n);
+
+		// Upload only the ranges that are read, usually a few hundred bytes
+		// instead of the whole block
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, ubo.get(0));
+		upload(PROJECTION, LIGHT_DIRECTION);
+		if (n > 0) {
+			upload(LIGHT_DIRECTION, 16 * n);
+			upload(LIGHT_POSITION, 16 * n);
+			upload(LIGHT_DIFFUSE, 16 * n);
+		}
+		upload(N_LIGHTS, 4);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+		gl.glBindBufferBase(GL3.GL_UNIFORM_BUFFER, BINDING, ubo.get(0));
+	}
+
+	/**
+	 * Upload a range of the block to the bound buffer.
+	 */
+	private void upload(int offset, int size) {
+		data.limit(offset + size).position(offset);
+		gl.glBufferSubData(GL3.GL_UNIFORM_BUFFER, offset, size, data);
+		data.clear();
+	}
+
+	/**
+	 * Store a matrix in column major ordering, as used by OpenGL.
+	 */
+	private void putMatrix(int offset, Matrix4f m) {
+		for (int c = 0; c < 4; c++) {
+			for (int r = 0; r < 4; r++)
+				data.putFloat(offset + 4 * (4 * c + r), m.getElement(r, c));
+		}
+	}
+
+	private void putVector(int offset, Vector3f v, float w) {
+		data.putFloat(offset, v.x).putFloat(offset + 4, v.y)
+				.putFloat(offset + 8, v.z).putFloat(offset + 12, w);
+	}
+
+	/**
+	 * Deletes the buffer.
+	 */
+	public void dispose() {
+		gl.glDeleteBuffers(1, ubo);
+	}
+}
@@ -0,0 +1,158 @@
+package jrtr.glrenderer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.media.opengl.GL3;
+import javax.vecmath.Matrix4f;
+
+/**
+ * A vertex buffer object (VBO) that streams one matrix per instance to a
+ * mat4 vertex attribute, for instanced rendering with
+ * glDrawElementsInstanced. A mat4 attribute occupies four consecutive
+ * attribute locations, one per column; each is given an attribute divisor
+ * of 1 so that it advances once per instance instead of once per vertex.
+ * The matrices are written to a {@link GLStreamBuffer}.
+ */
+public class GLInstanceBuffer {
+
+	private GL3 gl;
+	private GLStateTracker state;
+	private GLStreamBuffer stream;
+	private float[] data;
+	private int n;
+	private Matrix4f modelview;
+
+	// Position of the uploaded matrices in the stream buffer
+	private int offset;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context
+	 * @param state
+	 * 		the state tracker of the render context, used to bind the VBO
+	 * @param stream
+	 * 		the GL_ARRAY_BUFFER stream buffer that receives the matrices
+	 */
+	public GLInstanceBuffer(GL3 gl, GLStateTracker state, GLStreamBuffer stream) {
+		this.gl = gl;
+		this.state = state;
+		this.stream = stream;
+		data = new float[16 * 64];
+		modelview = new Matrix4f();
+	}
+
+	/**
+	 * Remove all instances.
+	 */
+	public void clear() {
+		n = 0;
+	}
+
+	/**
+	 * Append the matrix of an instance.
+	 */
+	public void add(Matrix4f m) {
+		if (16 * (n + 1) > data.length)
+			data = Arrays.copyOf(data, 2 * data.length);
+		// Column major ordering, as used by OpenGL
+		int o = 16 * n;
+		data[o] = m.m00; data[o + 1] = m.m10; data[o + 2] = m.m20; data[o + 3] = m.m30;
+		data[o + 4] = m.m01; data[o + 5] = m.m11; data[o + 6] = m.m21; data[o + 7] = m.m31;
+		data[o + 8] = m.m02; data[o + 9] = m.m12; data[o + 10] = m.m22; data[o + 11] = m.m32;
+		data[o + 12] = m.m03; data[o + 13] = m.m13; data[o + 14] = m.m23; data[o + 15] = m.m33;
+		n++;
+	}
+
+	/**
+	 * @return the number of instances
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Draw the items i to j-1 of a render queue, which share their vertex
+	 * data and material, with a single instanced draw call. The modelview
+	 * matrix of each instance is passed to the shader in the mat4 attribute
+	 * "instanceModelview", and the uniform "instanced" is set to 1 while
+	 * drawing. The shader and the material must be set up, and the VAO of
+	 * the vertex data must be bound with its attributes connected.
+	 *
+	 * @return false if nothing was drawn, because the shader does not have
+	 * the attribute or the stream buffer is full; the items then need to be
+	 * drawn one by one
+	 */
+	public boolean draw(GLRenderQueue renderQueue, int i, int j, Matrix4f camera, GLShader shader) {
+		int location = shader.getInstanceModelviewLocation();
+		if (location == -1)
+			return false;
+
+		clear();
+		for (int k = i; k < j; k++) {
+			modelview.mul(camera, renderQueue.getTransformation(k));
+			add(modelview);
+		}
+		if (!upload())
+			return false;
+
+		int instanced = shader.getInstancedLocation();
+		gl.glUniform1i(instanced, 1);
+		bind(location);
+		gl.glDrawElementsInstanced(GL3.GL_TRIANGLES,
+				renderQueue.getShape(i).getVertexData().getIndices().length,
+				GL3.GL_UNSIGNED_INT, 0, j - i);
+		unbind(location);
+		gl.glUniform1i(instanced, 0);
+		return true;
+	}
+
+	/**
+	 * Write the matrices to the stream buffer.
+	 *
+	 * @return false if the stream buffer has no space left in this frame,
+	 * the instances then need to be drawn one by one
+	 */
+	public boolean upload() {
+		ByteBuffer range = stream.map(n * 16 * 4, 16 * 4);
+		if (range == null)
+			return false;
+		range.asFloatBuffer().put(data, 0, n * 16);
+		stream.unmap();
+		offset = stream.getOffset();
+		return true;
+	}
+
+	/**
+	 * Connect the uploaded matrices to a mat4 attribute of the active
+	 * shader. The connection is recorded in the currently bound vertex
+	 * array object.
+	 *
+	 * @param location
+	 * 		the attribute location of the first column of the mat4
+	 */
+	public void bind(int location) {
+		state.bindBuffer(GL3.GL_ARRAY_BUFFER, stream.getId());
+		for (int c = 0; c < 4; c++) {
+			gl.glVertexAttribPointer(location + c, 4, GL3.GL_FLOAT, false, 16 * 4, offset + c * 4 * 4);
+			gl.glEnableVertexAttribArray(location + c);
+			gl.glVertexAttribDivisor(location + c, 1);
+		}
+		state.bindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Disconnect the matrices from the attribute again. Vertex array objects
+	 * are shared by all shaders, and other shaders may use the same
+	 * attribute locations for per-vertex data.
+	 *
+	 * @param location
+	 * 		the attribute location of the first column of the mat4
+	 */
+	public void unbind(int location) {
+		for (int c = 0; c < 4; c++) {
+			gl.glVertexAttribDivisor(location + c, 0);
+			gl.glDisableVertexAttribArray(location + c);
+		}
+	}
+}
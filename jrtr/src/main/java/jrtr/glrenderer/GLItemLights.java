@@ -0,0 +1,125 @@
+package jrtr.glrenderer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import javax.vecmath.Matrix4f;
+
+import jrtr.Frustum;
+import jrtr.Light;
+import jrtr.LightCuller;
+import jrtr.SceneManagerInterface;
+import jrtr.Shape;
+
+/**
+ * Chooses the lights of the items drawn by the forward render contexts.
+ * Once per frame (once per eye in VR), {@link #update(SceneManagerInterface)}
+ * collects the lights of the scene that can reach the view frustum, up to
+ * {@link GLFrameUniforms#MAX_LIGHTS}, in a {@link LightCuller}, and uploads
+ * them, together with the camera and projection matrices, to the
+ * {@link GLFrameUniforms}. For each item, or run of instances, up to 8 of
+ * these lights are then chosen, most relevant first, and passed to the
+ * shader with {@link GLShader#setLightIndices(int[], int)}.
+ */
+public class GLItemLights {
+
+	private LightCuller lightCuller;
+	private GLFrameUniforms frameUniforms;
+	private Frustum frustum;
+	private ArrayList<Light> frameLights;
+	private int[] indices;
+	private int n;
+	private float[] sphere;
+
+	/**
+	 * @param frameUniforms
+	 * 		the uniform buffer that receives the lights of the frame
+	 */
+	public GLItemLights(GLFrameUniforms frameUniforms) {
+		this.frameUniforms = frameUniforms;
+		lightCuller = new LightCuller(8);
+		frustum = new Frustum();
+		frameLights = new ArrayList<Light>();
+		indices = new int[8];
+		sphere = new float[4];
+	}
+
+	/**
+	 * Collect the lights of the scene for the current frame, and upload
+	 * them with the camera and projection matrices to the uniform buffer.
+	 * Lights that affect everything come first. Local lights whose range
+	 * does not reach the view frustum are left out, so that the uniform
+	 * buffer only holds lights that can be chosen for a visible item.
+	 */
+	public void update(SceneManagerInterface sceneManager) {
+		Matrix4f camera = sceneManager.getCamera().getCameraMatrix();
+		frustum.setProjectionMatrix(sceneManager.getFrustum().getProjectionMatrix());
+		frustum.extractPlanes(camera);
+
+		frameLights.clear();
+		for (int pass = 0; pass < 2; pass++) {
+			Iterator<Light> lights = sceneManager.lightIterator();
+			while (lights != null && lights.hasNext()
+					&& frameLights.size() < GLFrameUniforms.MAX_LIGHTS) {
+				Light l = lights.next();
+				if (pass == 0 && !LightCuller.isLocal(l))
+					frameLights.add(l);
+				else if (pass == 1 && LightCuller.isLocal(l)
+						&& frustum.isVisible(l.position.x, l.position.y, l.position.z, l.range))
+					frameLights.add(l);
+			}
+		}
+		lightCuller.update(frameLights.iterator());
+		frameUniforms.update(sceneManager.getFrustum().getProjectionMatrix(), camera, lightCuller);
+	}
+
+	/**
+	 * Choose the lights for a single item. Without lights in the scene, no
+	 * lights are chosen.
+	 */
+	public void assign(Shape shape, Matrix4f t) {
+		if (lightCuller.getNumberOfLights() == 0)
+			n = 0;
+		else
+			n = lightCuller.assignIndices(shape.getVertexData(), t, indices);
+	}
+
+	/**
+	 * Choose the lights for the items i to j-1 of a render queue, which are
+	 * drawn as instances of one draw call. They get the lights of a sphere
+	 * around all of them.
+	 */
+	public void assign(GLRenderQueue renderQueue, int i, int j) {
+		if (lightCuller.getNumberOfLights() == 0) {
+			n = 0;
+			return;
+		}
+		float[] s = renderQueue.getShape(i).getVertexData().getBoundingSphere();
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+		for (int k = i; k < j; k++) {
+			Shape.transformSphere(s, renderQueue.getTransformation(k), sphere);
+			minX = Math.min(minX, sphere[0] - sphere[3]);
+			minY = Math.min(minY, sphere[1] - sphere[3]);
+			minZ = Math.min(minZ, sphere[2] - sphere[3]);
+			maxX = Math.max(maxX, sphere[0] + sphere[3]);
+			maxY = Math.max(maxY, sphere[1] + sphere[3]);
+			maxZ = Math.max(maxZ, sphere[2] + sphere[3]);
+		}
+		float dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+		n = lightCuller.assignIndices(0.5f * (minX + maxX), 0.5f * (minY + maxY),
+				0.5f * (minZ + maxZ), 0.5f * (float) Math.sqrt(dx * dx + dy * dy + dz * dz), indices);
+	}
+
+	/**
+	 * @return the indices of the lights chosen by the last call of assign,
+	 * most relevant first, see {@link #getNumberOfIndices()}
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public int getNumberOfIndices() {
+		return n;
+	}
+}
@@ -0,0 +1,162 @@
+package jrtr.glrenderer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+
+import javax.media.opengl.GL3;
+import javax.vecmath.Vector3f;
+
+import jrtr.Material;
+
+/**
+ * Stores the parameters of all materials in one uniform buffer object, one
+ * block per material, in the std140 layout of the uniform block
+ * <pre>
+ * layout(std140) uniform Material {
+ * 	vec4 diffuse;
+ * 	vec4 specular;
+ * 	vec4 ambient;
+ * 	float shininess;
+ * };
+ * </pre>
+ * A material is uploaded when it is first drawn, and again only when its
+ * {@link Material#getVersion() version} changes. Drawing an object binds
+ * the range of its material to {@link #BINDING}, which is skipped if the
+ * previous object used the same material. {@link GLShader} connects the
+ * block to this binding point when a shader is linked.
+ */
+public class GLMaterialBuffer {
+
+	/**
+	 * The name of the uniform block and its binding point.
+	 */
+	public static final String BLOCK = "Material";
+	public static final int BINDING = 1;
+
+	// Offsets of the members in the std140 layout, in bytes
+	private static final int DIFFUSE = 0, SPECULAR = 16, AMBIENT = 32,
+			SHININESS = 48, SIZE = 64;
+
+	private GL3 gl;
+	private IntBuffer ubo;
+
+	// Distance between the blocks, a multiple of the alignment required for
+	// glBindBufferRange, and the number of blocks the buffer can hold
+	private int stride;
+	private int capacity;
+
+	// The block index and the uploaded version of each material
+	private HashMap<Material, int[]> blocks;
+	private int nBlocks;
+	private ByteBuffer data;
+
+	// Used for shapes without a material
+	private Material defaultMaterial;
+
+	// Offset of the range bound to BINDING, -1 if not known
+	private int boundOffset;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context to store the buffer
+	 */
+	public GLMaterialBuffer(GL3 gl) {
+		this.gl = gl;
+		int[] alignment = new int[1];
+		gl.glGetIntegerv(GL3.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, alignment, 0);
+		int a = Math.max(alignment[0], 1);
+		stride = (SIZE + a - 1) / a * a;
+		capacity = 16;
+		blocks = new HashMap<Material, int[]>();
+		data = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+		defaultMaterial = new Material();
+		boundOffset = -1;
+
+		ubo = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, ubo);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, ubo.get(0));
+		gl.glBufferData(GL3.GL_UNIFORM_BUFFER, capacity * stride, null, GL3.GL_DYNAMIC_DRAW);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * Bind the block of a material to {@link #BINDING}, uploading it first
+	 * if it is new or has changed.
+	 *
+	 * @param m
+	 * 		the material, or null for the default material
+	 */
+	public void bind(Material m) {
+		if (m == null)
+			m = defaultMaterial;
+
+		int[] block = blocks.get(m);
+		if (block == null) {
+			if (nBlocks == capacity)
+				grow();
+			block = new int[] { nBlocks++, 0 };
+			blocks.put(m, block);
+			upload(m, block);
+		} else if (block[1] != m.getVersion()) {
+			upload(m, block);
+		}
+
+		int offset = block[0] * stride;
+		if (offset != boundOffset) {
+			gl.glBindBufferRange(GL3.GL_UNIFORM_BUFFER, BINDING, ubo.get(0), offset, SIZE);
+			boundOffset = offset;
+		}
+	}
+
+	/**
+	 * Forget which range is bound, after the binding point was changed
+	 * elsewhere.
+	 */
+	public void reset() {
+		boundOffset = -1;
+	}
+
+	private void upload(Material m, int[] block) {
+		putVector(DIFFUSE, m.getDiffuse());
+		putVector(SPECULAR, m.getSpecular());
+		putVector(AMBIENT, m.getAmbient());
+		data.putFloat(SHININESS, m.getShininess());
+		data.rewind();
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, ubo.get(0));
+		gl.glBufferSubData(GL3.GL_UNIFORM_BUFFER, block[0] * stride, SIZE, data);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+		block[1] = m.getVersion();
+	}
+
+	private void putVector(int offset, Vector3f v) {
+		data.putFloat(offset, v.x).putFloat(offset + 4, v.y)
+				.putFloat(offset + 8, v.z).putFloat(offset + 12, 1);
+	}
+
+	/**
+	 * Double the capacity, copying the blocks on the GPU.
+	 */
+	private void grow() {
+		IntBuffer larger = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, larger);
+		gl.glBindBuffer(GL3.GL_COPY_WRITE_BUFFER, larger.get(0));
+		gl.glBufferData(GL3.GL_COPY_WRITE_BUFFER, 2 * capacity * stride, null, GL3.GL_DYNAMIC_DRAW);
+		gl.glBindBuffer(GL3.GL_COPY_READ_BUFFER, ubo.get(0));
+		gl.glCopyBufferSubData(GL3.GL_COPY_READ_BUFFER, GL3.GL_COPY_WRITE_BUFFER, 0, 0, capacity * stride);
+		gl.glBindBuffer(GL3.GL_COPY_READ_BUFFER, 0);
+		gl.glBindBuffer(GL3.GL_COPY_WRITE_BUFFER, 0);
+		gl.glDeleteBuffers(1, ubo);
+		ubo = larger;
+		capacity *= 2;
+		boundOffset = -1;
+	}
+
+	/**
+	 * Deletes the buffer.
+	 */
+	public void dispose() {
+		gl.glDeleteBuffers(1, ubo);
+	}
+}
@@ -0,0 +1,155 @@
+package jrtr.glrenderer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL3;
+import javax.vecmath.Matrix4f;
+
+/**
+ * Streams the constants of each draw call, i.e., the modelview matrix of
+ * the object, in the std140 layout of the uniform block
+ * <pre>
+ * layout(std140) uniform Object {
+ * 	mat4 modelview;
+ * };
+ * </pre>
+ * Once the render queue is sorted, {@link #write(GLRenderQueue, Matrix4f)}
+ * writes the blocks of all its items to the {@link GLStreamBuffer} with a
+ * single mapping, at the alignment required for glBindBufferRange. Each
+ * draw call then only binds the range of its item to {@link #BINDING}. If
+ * the region of the frame is full, the blocks are uploaded one at a time to
+ * a small buffer of their own instead. {@link GLShader} connects the block
+ * to this binding point when a shader is linked.
+ */
+public class GLObjectUniforms {
+
+	/**
+	 * The name of the uniform block and its binding point.
+	 */
+	public static final String BLOCK = "Object";
+	public static final int BINDING = 2;
+
+	private static final int SIZE = 64;
+
+	private GL3 gl;
+	private GLStreamBuffer stream;
+
+	// The alignment required for glBindBufferRange, and the distance between
+	// the blocks of the items
+	private int alignment;
+	private int stride;
+
+	// Position of the blocks of the render queue in the stream buffer, and
+	// their number, 0 if they did not fit
+	private int offset;
+	private int n;
+
+	// Holds a single block when the stream buffer is full
+	private IntBuffer ubo;
+	private ByteBuffer data;
+	private Matrix4f modelview;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context
+	 * @param stream
+	 * 		the stream buffer that receives the blocks
+	 */
+	public GLObjectUniforms(GL3 gl, GLStreamBuffer stream) {
+		this.gl = gl;
+		this.stream = stream;
+		int[] a = new int[1];
+		gl.glGetIntegerv(GL3.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, a, 0);
+		alignment = Math.max(a[0], 1);
+		stride = (SIZE + alignment - 1) / alignment * alignment;
+		data = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+		modelview = new Matrix4f();
+
+		ubo = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, ubo);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, ubo.get(0));
+		gl.glBufferData(GL3.GL_UNIFORM_BUFFER, SIZE, null, GL3.GL_STREAM_DRAW);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * Write the blocks of all items of a render queue to the stream buffer.
+	 *
+	 * @param camera
+	 * 		the camera matrix the items are drawn with
+	 */
+	public void write(GLRenderQueue renderQueue, Matrix4f camera) {
+		n = 0;
+		int size = renderQueue.size();
+		if (size == 0)
+			return;
+		ByteBuffer range = stream.map((size - 1) * stride + SIZE, alignment);
+		if (range == null)
+			return;
+		for (int k = 0; k < size; k++) {
+			modelview.mul(camera, renderQueue.getTransformation(k));
+			put(range, k * stride, modelview);
+		}
+		stream.unmap();
+		offset = stream.getOffset();
+		n = size;
+	}
+
+	/**
+	 * Bind the block of item k of the render queue that was passed to the
+	 * last call of {@link #write(GLRenderQueue, Matrix4f)}.
+	 */
+	public void bind(GLRenderQueue renderQueue, int k, Matrix4f camera) {
+		if (k < n) {
+			gl.glBindBufferRange(GL3.GL_UNIFORM_BUFFER, BINDING, stream.getId(),
+					offset + k * stride, SIZE);
+		} else {
+			modelview.mul(camera, renderQueue.getTransformation(k));
+			set(modelview);
+		}
+	}
+
+	/**
+	 * Write and bind the block of a single draw call, e.g., of a bounding
+	 * box that is not in the render queue.
+	 */
+	public void set(Matrix4f modelview) {
+		ByteBuffer range = stream.map(SIZE, alignment);
+		if (range != null) {
+			put(range, 0, modelview);
+			stream.unmap();
+			gl.glBindBufferRange(GL3.GL_UNIFORM_BUFFER, BINDING, stream.getId(),
+					stream.getOffset(), SIZE);
+			return;
+		}
+
+		// Reallocate the buffer, so that the upload does not wait for the
+		// previous draw call
+		put(data, 0, modelview);
+		data.rewind();
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, ubo.get(0));
+		gl.glBufferData(GL3.GL_UNIFORM_BUFFER, SIZE, null, GL3.GL_STREAM_DRAW);
+		gl.glBufferSubData(GL3.GL_UNIFORM_BUFFER, 0, SIZE, data);
+		gl.glBindBuffer(GL3.GL_UNIFORM_BUFFER, 0);
+		gl.glBindBufferBase(GL3.GL_UNIFORM_BUFFER, BINDING, ubo.get(0));
+	}
+
+	/**
+	 * Store a matrix in column major ordering, as used by OpenGL.
+	 */
+	private static void put(ByteBuffer b, int o, Matrix4f m) {
+		b.putFloat(o, m.m00).putFloat(o + 4, m.m10).putFloat(o + 8, m.m20).putFloat(o + 12, m.m30);
+		b.putFloat(o + 16, m.m01).putFloat(o + 20, m.m11).putFloat(o + 24, m.m21).putFloat(o + 28, m.m31);
+		b.putFloat(o + 32, m.m02).putFloat(o + 36, m.m12).putFloat(o + 40, m.m22).putFloat(o + 44, m.m32);
+		b.putFloat(o + 48, m.m03).putFloat(o + 52, m.m13).putFloat(o + 56, m.m23).putFloat(o + 60, m.m33);
+	}
+
+	/**
+	 * Deletes the buffer of single blocks.
+	 */
+	public void dispose() {
+		gl.glDeleteBuffers(1, ubo);
+	}
+}
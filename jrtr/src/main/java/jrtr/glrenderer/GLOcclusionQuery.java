@@ -0,0 +1,145 @@
+package jrtr.glrenderer;
+
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL3;
+import javax.vecmath.Matrix4f;
+
+import jrtr.VertexData;
+
+/**
+ * A pair of OpenGL occlusion queries for one shape. At the end of each frame
+ * the bounding box of the shape is drawn inside a GL_ANY_SAMPLES_PASSED
+ * query, and in the next frame the shape itself is drawn with conditional
+ * rendering on the result of that query. The two queries are used in
+ * alternating frames, so a query can be issued while the result of the
+ * other one is still in use. With GL_QUERY_NO_WAIT, the GPU draws the shape
+ * anyway if the result is not available yet, so the CPU never waits for a
+ * query.
+ */
+public class GLOcclusionQuery {
+
+	private GL3 gl;
+	private IntBuffer ids;
+
+	/**
+	 * The index of the query that is issued next, and the frame in which
+	 * the other query was issued, or -1 if it was not.
+	 */
+	private int current;
+	private int resultFrame;
+
+	/**
+	 * The frame and transformation in which the shape was last drawn.
+	 */
+	private int frame;
+	private Matrix4f t;
+
+	/**
+	 * The object space bounding box of the shape, mapped to the unit cube.
+	 */
+	private Matrix4f box;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context to store the queries
+	 * @param vertexData
+	 * 		the vertex data of the shape
+	 */
+	public GLOcclusionQuery(GL3 gl, VertexData vertexData) {
+		this.gl = gl;
+		ids = IntBuffer.allocate(2);
+		gl.glGenQueries(2, ids);
+		resultFrame = -1;
+		frame = -1;
+
+		float[] b = vertexData.getBoundingBox();
+		box = new Matrix4f();
+		box.m00 = b[3] - b[0];
+		box.m11 = b[4] - b[1];
+		box.m22 = b[5] - b[2];
+		box.m03 = b[0];
+		box.m13 = b[1];
+		box.m23 = b[2];
+		box.m33 = 1;
+	}
+
+	/**
+	 * Begin drawing the shape. If the bounding box was queried in the
+	 * previous frame, rendering is made conditional on the result.
+	 *
+	 * @param frame
+	 * 		the number of the current frame
+	 * @param t
+	 * 		the transformation the shape is drawn with
+	 */
+	public void beginDraw(int frame, Matrix4f t) {
+		this.frame = frame;
+		this.t = t;
+		if (resultFrame == frame - 1)
+			gl.glBeginConditionalRender(ids.get(1 - current), GL3.GL_QUERY_NO_WAIT);
+	}
+
+	/**
+	 * End drawing the shape.
+	 */
+	public void endDraw() {
+		if (resultFrame == frame - 1)
+			gl.glEndConditionalRender();
+	}
+
+	/**
+	 * Begin the query of the bounding box, after the shape has been drawn
+	 * in the current frame. The box must be drawn by the caller between this
+	 * method and {@link #end()}.
+	 */
+	public void begin() {
+		gl.glBeginQuery(GL3.GL_ANY_SAMPLES_PASSED, ids.get(current));
+	}
+
+	/**
+	 * End the query and use the other query in the next frame.
+	 */
+	public void end() {
+		gl.glEndQuery(GL3.GL_ANY_SAMPLES_PASSED);
+		resultFrame = frame;
+		current = 1 - current;
+	}
+
+	/**
+	 * Do not use the result of the last query, e.g., because the camera was
+	 * inside the bounding box and the box was clipped by the near plane.
+	 */
+	public void discard() {
+		resultFrame = -1;
+	}
+
+	/**
+	 * @return the frame in which the shape was last drawn
+	 */
+	public int getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return the transformation the shape was last drawn with
+	 */
+	public Matrix4f getTransformation() {
+		return t;
+	}
+
+	/**
+	 * @return the matrix that maps the unit cube to the object space
+	 * bounding box of the shape
+	 */
+	public Matrix4f getBox() {
+		return box;
+	}
+
+	/**
+	 * Deletes the queries.
+	 */
+	public void dispose() {
+		gl.glDeleteQueries(2, ids);
+	}
+}
@@ -8,13 +8,14 @@ import javax.media.opengl.GL3;
 import javax.media.opengl.GLAutoDrawable;
 import javax.vecmath.*;
 
-import jrtr.Light;
 import jrtr.Material;
+import jrtr.OcclusionBuffer;
 import jrtr.RenderContext;
 import jrtr.RenderItem;
 import jrtr.SceneManagerInterface;
 import jrtr.SceneManagerIterator;
 import jrtr.Shader;
+import jrtr.Shape;
 import jrtr.Texture;
 import jrtr.VertexData;
 import jrtr.VertexData.VertexElement;
@@ -35,10 +36,91 @@ public class GLRenderContext implements RenderContext {
 	private GLShader defaultShader;
 
 	/**
-	 * The id of the currently active shader. Call useShader(Shader) and 
+	 * The currently active shader. Call useShader(Shader) and 
 	 * useDefaultShader() to switch between shaders.
 	 */
-	private int activeShaderID;
+	private GLShader activeShader;
+
+	/**
+	 * The shader set with useShader(Shader) or useDefaultShader(). 
+	 * It is used for shapes whose material does not have a shader.
+	 */
+	private GLShader baseShader;
+
+	/**
+	 * Skips redundant changes of the bound program, VAO, buffers and 
+	 * textures.
+	 */
+	private GLStateTracker state;
+
+	/**
+	 * Sorts the items of each frame by shader, texture and VAO.
+	 */
+	private GLRenderQueue renderQueue;
+
+	/**
+	 * Streams the modelview matrices of draw calls and instances, and the
+	 * attributes of dynamic vertex data, written to a new region of the 
+	 * stream buffer each frame. A region holds, e.g., the constants of 8192
+	 * draw calls and the matrices of 32768 instances.
+	 */
+	private static final int STREAM_REGION_SIZE = 4 << 20;
+	private GLStreamBuffer stream;
+	private GLInstanceBuffer instanceBuffer;
+	private GLObjectUniforms objectUniforms;
+
+	/**
+	 * The occluders of the frame are rasterized into this buffer on the 
+	 * CPU, and items hidden behind them are removed from the render queue.
+	 */
+	private OcclusionBuffer occlusionBuffer;
+
+	/**
+	 * The camera, projection and lights of the frame, uploaded once per 
+	 * frame, and the lights chosen for the item that is drawn next.
+	 */
+	private GLFrameUniforms frameUniforms;
+	private GLItemLights itemLights;
+	
+	/**
+	 * The parameters of the materials, uploaded when they change.
+	 */
+	private GLMaterialBuffer materials;
+	
+	/**
+	 * Trilinear and anisotropic filtering for the textures of materials,
+	 * which are bound to texture unit 0.
+	 */
+	private GLSampler sampler;
+
+	/**
+	 * Occlusion queries of the shapes with at least occlusionQueryTriangles
+	 * triangles, if enabled with setOcclusionQueries(boolean, int), and the
+	 * queries of the shapes drawn in the current frame.
+	 */
+	private boolean occlusionQueries;
+	private int occlusionQueryTriangles;
+	private IdentityHashMap<Shape, GLOcclusionQuery> queries = new IdentityHashMap<Shape, GLOcclusionQuery>();
+	private ArrayList<GLOcclusionQuery> drawnQueries = new ArrayList<GLOcclusionQuery>();
+
+	/**
+	 * A unit cube that is scaled to the bounding boxes of queried shapes, 
+	 * and temporary storage to transform it.
+	 */
+	private GLVertexData unitBox;
+	private Matrix4f boxTransformation = new Matrix4f();
+	private Matrix4f boxClip = new Matrix4f();
+
+	/**
+	 * The number of the current frame.
+	 */
+	private int frame;
+
+	/**
+	 * Temporary storage for setTransformation, kept to avoid allocations in
+	 * every draw call.
+	 */
+	private Matrix4f modelview = new Matrix4f();
 
 	/**
 	 * This constructor is called by {@link GLRenderPanel}.
@@ -53,6 +135,16 @@ public class GLRenderContext implements RenderContext {
 		gl = drawable.getGL().getGL3();
 		gl.glEnable(GL3.GL_DEPTH_TEST);
 		gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+		renderQueue = new GLRenderQueue();
+		state = new GLStateTracker(gl);
+		frameUniforms = new GLFrameUniforms(gl);
+		itemLights = new GLItemLights(frameUniforms);
+		materials = new GLMaterialBuffer(gl);
+		sampler = new GLSampler(gl, 16);
+		stream = new GLStreamBuffer(gl, state, GL3.GL_ARRAY_BUFFER, STREAM_REGION_SIZE);
+		instanceBuffer = new GLInstanceBuffer(gl, state, stream);
+		objectUniforms = new GLObjectUniforms(gl, stream);
+		occlusionBuffer = new OcclusionBuffer();
 
 		// Load and use the default shader
 		defaultShader = (GLShader) makeShader();
@@ -74,27 +166,77 @@ public class GLRenderContext implements RenderContext {
 		this.sceneManager = sceneManager;
 	}
 
+	/**
+	 * Enable or disable hardware occlusion queries for expensive shapes. 
+	 * The bounding boxes of these shapes are drawn into occlusion queries at
+	 * the end of each frame, and in the next frame the shapes are only drawn 
+	 * if their box was visible. The result of the previous frame is used so 
+	 * that the CPU never waits for the GPU, at the cost of drawing a shape 
+	 * one frame late when it comes out from behind an occluder.
+	 * 
+	 * @param enabled
+	 *            true to use occlusion queries
+	 * @param minTriangles
+	 *            only shapes with at least this number of triangles are
+	 *            queried, cheap shapes are drawn directly
+	 */
+	public void setOcclusionQueries(boolean enabled, int minTriangles) {
+		occlusionQueries = enabled;
+		occlusionQueryTriangles = minTriangles;
+	}
+
 	/**
 	 * This method is called by the GLRenderPanel to redraw the 3D scene. The
-	 * method traverses the scene using the scene manager and passes each object
-	 * to the rendering method.
+	 * method traverses the scene using the scene manager, collects the 
+	 * objects in the render queue, and draws them in the order of the 
+	 * sorted queue.
 	 */
 	public void display(GLAutoDrawable drawable) {
 		
 		// Get reference to the OpenGL rendering context
 		gl = drawable.getGL().getGL3();
 
+		// Let the scene manager prepare the frame, e.g., pick up the latest
+		// snapshot of an animated scene in the whole frame
+		sceneManager.beginFrame();
+
 		// Do some processing at the beginning of the frame
 		beginFrame();
 
-		// Traverse scene manager and draw everything
+		// Traverse scene manager, rasterize the occluders on the CPU, drop 
+		// the items hidden behind them and sort the rest by render state
+		renderQueue.clear();
+		Matrix4f camera = sceneManager.getCamera().getCameraMatrix();
+		occlusionBuffer.clear(camera, sceneManager.getFrustum().getProjectionMatrix());
+		itemLights.update(sceneManager);
 		SceneManagerIterator iterator = sceneManager.iterator();
 		while (iterator.hasNext()) {
 			RenderItem r = iterator.next();
 			if (r.getShape() != null) {
-				draw(r);
+				enqueue(r.getShape(), r.getT(), camera);
 			}
 		}
+		if (occlusionBuffer.getNumberOfOccluders() > 0)
+			renderQueue.removeOccluded(occlusionBuffer);
+		renderQueue.sort();
+		objectUniforms.write(renderQueue, camera);
+
+		// Draw everything. Consecutive items in the sorted queue that share
+		// their vertex data and material are drawn with one instanced draw
+		// call.
+		int i = 0;
+		while (i < renderQueue.size()) {
+			int j = renderQueue.endOfInstances(i);
+			if (j - i > 1)
+				drawInstanced(i, j);
+			else
+				draw(i);
+			i = j;
+		}
+
+		// Query the bounding boxes of the expensive shapes for the next frame
+		if (!drawnQueries.isEmpty())
+			queryBoundingBoxes();
 
 		// Do some processing at the end of the frame
 		endFrame();
@@ -105,8 +247,17 @@ public class GLRenderContext implements RenderContext {
 	 * drawing starts.
 	 */
 	private void beginFrame() {
+		frame++;
+
+		// Count the state changes of this frame, and make sure they are all
+		// passed to OpenGL at first
+		state.beginFrame();
+		sampler.bind(0);
+		stream.beginFrame();
+
 		// Set the active shader as default for this frame
-		gl.glUseProgram(activeShaderID);
+		activeShader = baseShader;
+		state.useProgram(activeShader.programId());
 		
 		// Clear color and depth buffer for the new frame
 		gl.glClear(GL3.GL_COLOR_BUFFER_BIT);
@@ -118,24 +269,29 @@ public class GLRenderContext implements RenderContext {
 	 * is complete.
 	 */
 	private void endFrame() {
+		// Bind the default vertex array, VAOs stay bound between draw calls
+		state.bindVertexArray(0);
+		stream.endFrame();
+
 		// Flush the OpenGL pipeline
 		gl.glFlush();
 	}
 
 	/**
-	 * The main rendering method.
+	 * Add an object to the render queue, with the shader, texture and VAO 
+	 * it will be drawn with.
 	 * 
-	 * @param renderItem
+	 * @param shape
 	 *            the object that needs to be drawn
+	 * @param t
+	 *            the transformation of the object
+	 * @param camera
+	 *            the camera matrix of the frame
 	 */
-	private void draw(RenderItem renderItem) {
-		
-		// Set the material of the shape to be rendered
-		setMaterial(renderItem.getShape().getMaterial());
+	private void enqueue(Shape shape, Matrix4f t, Matrix4f camera) {
 		
-		// Get reference to the vertex data of the render item to be rendered
-		GLVertexData vertexData = (GLVertexData) renderItem.getShape()
-				.getVertexData();
+		// Get reference to the vertex data of the shape to be rendered
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
 
 		// Check if the vertex data has been uploaded to OpenGL via a
 		// "vertex array object" (VAO). The VAO will store the vertex data
@@ -147,69 +303,201 @@ public class GLRenderContext implements RenderContext {
 			initArrayBuffer(vertexData);
 		}
 
-		// Set modelview and projection matrices in shader (has to be done in
-		// every step, since they usually have changed)
-		setTransformation(renderItem.getT());
+		Material m = shape.getMaterial();
+		int shaderID = baseShader.programId();
+		int textureID = 0;
+		if (m != null && m.shader != null) {
+			shaderID = ((GLShader) m.shader).programId();
+			if (m.diffuseMap != null)
+				textureID = ((GLTexture) m.diffuseMap).getId();
+		}
+
+		// Distance of the object origin along the viewing direction
+		float depth = -(camera.m20 * t.m03 + camera.m21 * t.m13 + camera.m22 * t.m23 + camera.m23);
+
+		renderQueue.add(shape, t, shaderID, textureID, vertexData.getVAO().getId(), depth);
+		if (shape.isOccluder())
+			occlusionBuffer.drawOccluder(shape, t);
+	}
+
+	/**
+	 * The main rendering method.
+	 * 
+	 * @param k
+	 *            the index of the object in the render queue
+	 */
+	private void draw(int k) {
+		Shape shape = renderQueue.getShape(k);
+		Matrix4f t = renderQueue.getTransformation(k);
+		itemLights.assign(shape, t);
+		
+		// Set the material of the shape to be rendered
+		setMaterial(shape.getMaterial());
+		
+		// Get reference to the vertex data of the shape to be rendered. It
+		// has been uploaded to a VAO when the shape was queued.
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
+
+		// Bind the modelview matrix, which was streamed for all objects in
+		// the render queue (has to be done in every step, since it usually
+		// has changed)
+		objectUniforms.bind(renderQueue, k, sceneManager.getCamera().getCameraMatrix());
 
 		// Bind the VAO of this shape. This activates the VBOs that we 
 		// associated with the VAO. We already loaded the vertex data into the
 		// VBOs on the GPU, so we do not have to send them again.
-		vertexData.getVAO().bind();
+		state.bindVertexArray(vertexData.getVAO().getId());
 		
-		// Try to connect the vertex buffers to the corresponding variables 
-		// in the current vertex shader.
-		// Note: This is not part of the vertex array object, because the active
-		// shader may have changed since the vertex array object was initialized. 
-		// We need to make sure the vertex buffers are connected to the right
-		// variables in the shader
-		ListIterator<VertexData.VertexElement> itr = vertexData.getElements()
-				.listIterator(0);
-		vertexData.getVAO().rewindVBO();
-		while (itr.hasNext()) {
-			VertexData.VertexElement e = itr.next();
-			int dim = e.getNumberOfComponents();
-
-			// Bind the next vertex buffer object
-			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vertexData.getVAO().getNextVBO());
-
-			// Tell OpenGL which "in" variable in the vertex shader corresponds
-			// to the current vertex buffer object.
-			// We use our own convention to name the variables, i.e.,
-			// "position", "normal", "color", "texcoord", or others if
-			// necessary.
-			int attribIndex = -1;
-			switch (e.getSemantic()) {
-			case POSITION:
-				attribIndex = gl
-						.glGetAttribLocation(activeShaderID, "position");
-				break;
-			case NORMAL:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "normal");
-				break;
-			case COLOR:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "color");
-				break;
-			case TEXCOORD:
-				attribIndex = gl
-						.glGetAttribLocation(activeShaderID, "texcoord");
-				break;
-			}
-
-			gl.glVertexAttribPointer(attribIndex, dim, GL3.GL_FLOAT, false, 0,
-					0);
-			gl.glEnableVertexAttribArray(attribIndex);
+		bindVertexAttributes(vertexData);
+
+		// Expensive shapes are only rendered if their bounding box passed
+		// the occlusion query of the previous frame
+		GLOcclusionQuery query = getOcclusionQuery(shape);
+		if (query != null) {
+			query.beginDraw(frame, t);
+			drawnQueries.add(query);
 		}
 
 		// Render the vertex buffer objects
-		gl.glDrawElements(GL3.GL_TRIANGLES, renderItem.getShape()
-				.getVertexData().getIndices().length, GL3.GL_UNSIGNED_INT, 0);
+		gl.glDrawElements(GL3.GL_TRIANGLES, vertexData.getIndices().length,
+				GL3.GL_UNSIGNED_INT, 0);
 
-		// We are done with this shape, bind the default vertex array
-		gl.glBindVertexArray(0);
+		if (query != null)
+			query.endDraw();
 
-		cleanMaterial(renderItem.getShape().getMaterial());
+		cleanMaterial(shape.getMaterial());
 	}
 	
+	/**
+	 * @return the occlusion query of a shape, or null if the shape is not 
+	 * queried
+	 */
+	private GLOcclusionQuery getOcclusionQuery(Shape shape) {
+		if (!occlusionQueries
+				|| shape.getVertexData().getIndices().length < 3 * occlusionQueryTriangles
+				|| shape.getVertexData().getBoundingSphere()[3] == Float.POSITIVE_INFINITY)
+			return null;
+		GLOcclusionQuery query = queries.get(shape);
+		if (query == null) {
+			query = new GLOcclusionQuery(gl, shape.getVertexData());
+			queries.put(shape, query);
+		}
+		return query;
+	}
+
+	/**
+	 * Draw the bounding boxes of the queried shapes of this frame into 
+	 * their occlusion queries. Only the depth test is needed, so color and
+	 * depth writes are disabled. The faces of a box often coincide with the
+	 * surface of its shape, which was just written to the depth buffer, so 
+	 * the boxes are drawn with GL_LEQUAL and pulled towards the camera by a
+	 * polygon offset. Otherwise the query could count no samples for a 
+	 * visible shape, and the shape would flicker.
+	 */
+	private void queryBoundingBoxes() {
+		if (unitBox == null) {
+			unitBox = new GLVertexData(8);
+			unitBox.addElement(new float[] { 0,0,0, 1,0,0, 1,1,0, 0,1,0,
+					0,0,1, 1,0,1, 1,1,1, 0,1,1 }, VertexData.Semantic.POSITION, 3);
+			unitBox.addIndices(new int[] { 0,2,1, 0,3,2, 4,5,6, 4,6,7, 0,1,5, 0,5,4,
+					3,7,6, 3,6,2, 0,4,7, 0,7,3, 1,2,6, 1,6,5 });
+			initArrayBuffer(unitBox);
+		}
+
+		gl.glColorMask(false, false, false, false);
+		gl.glDepthMask(false);
+		gl.glDepthFunc(GL3.GL_LEQUAL);
+		gl.glEnable(GL3.GL_POLYGON_OFFSET_FILL);
+		gl.glPolygonOffset(-1, -1);
+		bindShader(defaultShader);
+		state.bindVertexArray(unitBox.getVAO().getId());
+		bindVertexAttributes(unitBox);
+		for (int i = 0; i < drawnQueries.size(); i++) {
+			GLOcclusionQuery query = drawnQueries.get(i);
+			boxTransformation.mul(query.getTransformation(), query.getBox());
+			// If the near plane cuts the box, the camera may be inside it 
+			// and the query would miss the shape
+			if (crossesNearPlane(boxTransformation)) {
+				query.discard();
+				continue;
+			}
+			setTransformation(boxTransformation);
+			query.begin();
+			gl.glDrawElements(GL3.GL_TRIANGLES, 36, GL3.GL_UNSIGNED_INT, 0);
+			query.end();
+		}
+		state.bindVertexArray(0);
+		gl.glPolygonOffset(0, 0);
+		gl.glDisable(GL3.GL_POLYGON_OFFSET_FILL);
+		gl.glDepthFunc(GL3.GL_LESS);
+		gl.glColorMask(true, true, true, true);
+		gl.glDepthMask(true);
+		drawnQueries.clear();
+
+		// Delete the queries of shapes that have not been drawn for a while,
+		// e.g., because they were removed from the scene
+		if (frame % 256 == 0) {
+			Iterator<GLOcclusionQuery> itr = queries.values().iterator();
+			while (itr.hasNext()) {
+				GLOcclusionQuery query = itr.next();
+				if (query.getFrame() < frame - 256) {
+					query.dispose();
+					itr.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if a corner of the unit cube, transformed to world space
+	 * with the given matrix, lies in front of the near plane
+	 */
+	private boolean crossesNearPlane(Matrix4f box) {
+		boxClip.mul(sceneManager.getCamera().getCameraMatrix(), box);
+		boxClip.mul(sceneManager.getFrustum().getProjectionMatrix(), boxClip);
+		for (int k = 0; k < 8; k++) {
+			float x = k & 1, y = (k >> 1) & 1, z = (k >> 2) & 1;
+			float cz = boxClip.m20 * x + boxClip.m21 * y + boxClip.m22 * z + boxClip.m23;
+			float cw = boxClip.m30 * x + boxClip.m31 * y + boxClip.m32 * z + boxClip.m33;
+			if (cz < -cw)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Draw the items i to j-1 of the render queue with a single instanced
+	 * draw call, see {@link GLInstanceBuffer#draw}. If that is not possible,
+	 * the items are drawn one by one.
+	 */
+	private void drawInstanced(int i, int j) {
+		Shape shape = renderQueue.getShape(i);
+		itemLights.assign(renderQueue, i, j);
+		setMaterial(shape.getMaterial());
+
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
+		state.bindVertexArray(vertexData.getVAO().getId());
+		bindVertexAttributes(vertexData);
+		if (!instanceBuffer.draw(renderQueue, i, j, sceneManager.getCamera().getCameraMatrix(), activeShader)) {
+			for (int k = i; k < j; k++)
+				draw(k);
+			return;
+		}
+
+		cleanMaterial(shape.getMaterial());
+	}
+
+	/**
+	 * Connect the vertex buffers of the vertex data to the vertex attributes
+	 * of the active shader. The VAO of the vertex data must be bound. 
+	 * Dynamic vertex data is streamed first, and static vertex data that has
+	 * changed is uploaded again.
+	 */
+	private void bindVertexAttributes(GLVertexData vertexData) {
+		vertexData.update(gl, state, stream);
+		vertexData.bindAttributes(gl, state, activeShader);
+	}
+
 	/**
 	 * A utility method to load vertex data into an OpenGL "vertex array object"
 	 * (VAO) for efficient rendering. The VAO stores several "vertex buffer objects"
@@ -228,7 +516,7 @@ public class GLRenderContext implements RenderContext {
 		// Bind (activate) the VAO for the vertex data in OpenGL.
 		// The subsequent OpenGL operations on VBOs will be recorded (stored)
 		// in the VAO.
-		vao.bind();
+		state.bindVertexArray(vao.getId());
 
 		// Store all vertex attributes in vertex buffer objects (VBOs)
 		ListIterator<VertexData.VertexElement> itr = data.getElements()
@@ -238,42 +526,35 @@ public class GLRenderContext implements RenderContext {
 			VertexData.VertexElement e = itr.next();
 
 			// Bind the vertex buffer object (VBO)
-			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
+			state.bindBuffer(GL3.GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
 			// Upload vertex data
 			gl.glBufferData(GL3.GL_ARRAY_BUFFER, e.getData().length * 4,
-					FloatBuffer.wrap(e.getData()), GL3.GL_DYNAMIC_DRAW);
+					FloatBuffer.wrap(e.getData()), GL3.GL_STATIC_DRAW);
 
 		}
 
 		// Bind the default vertex buffer objects
-		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		state.bindBuffer(GL3.GL_ARRAY_BUFFER, 0);
 
 		// Store the vertex data indices into the last vertex buffer
-		gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, data.getVAO().getNextVBO());
+		state.bindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, data.getVAO().getNextVBO());
 		gl.glBufferData(GL3.GL_ELEMENT_ARRAY_BUFFER,
 				data.getIndices().length * 4,
-				IntBuffer.wrap(data.getIndices()), GL3.GL_DYNAMIC_DRAW);
+				IntBuffer.wrap(data.getIndices()), GL3.GL_STATIC_DRAW);
 
 		// Bind the default vertex array object. This "deactivates" the VAO
 		// of the vertex data
-		gl.glBindVertexArray(0);		
+		state.bindVertexArray(0);		
 	}
 
 	private void setTransformation(Matrix4f transformation) {
 		// Compute the modelview matrix by multiplying the camera matrix and
 		// the transformation matrix of the object
-		Matrix4f modelview = new Matrix4f(sceneManager.getCamera()
-				.getCameraMatrix());
-		modelview.mul(transformation);
-
-		// Set modelview and projection matrices in shader
-		gl.glUniformMatrix4fv(
-				gl.glGetUniformLocation(activeShaderID, "modelview"), 1, false,
-				transformationToFloat16(modelview), 0);
-		gl.glUniformMatrix4fv(gl.glGetUniformLocation(activeShaderID,
-				"projection"), 1, false, transformationToFloat16(sceneManager
-				.getFrustum().getProjectionMatrix()), 0);
+		modelview.mul(sceneManager.getCamera().getCameraMatrix(), transformation);
 
+		// Stream the modelview matrix to the uniform block of the object,
+		// the projection matrix is in the uniform buffer of the frame
+		objectUniforms.set(modelview);
 	}
 
 	/**
@@ -285,66 +566,36 @@ public class GLRenderContext implements RenderContext {
 	 */
 	private void setMaterial(Material m) {
 		
+		// Shapes without a material shader are drawn with the shader set
+		// by useShader(Shader)
+		if(m == null || m.shader == null)
+			bindShader(baseShader);
+		else
+			bindShader((GLShader)m.shader);
+		
+		// Select the lights of the item from the lights of the frame, and
+		// bind the buffer range with the material parameters
+		activeShader.setLightIndices(itemLights.getIndices(), itemLights.getNumberOfIndices());
+		materials.bind(m);
+		
 		// Set up the shader for the material, if it has one
 		if(m != null && m.shader != null) {
 			
 			// Identifier for shader variables
 			int id;
 			
-			// Activate the shader
-			useShader(m.shader);
-			
 			// Activate the diffuse texture, if the material has one
 			if(m.diffuseMap != null) {
-				// OpenGL calls to activate the texture 
-				gl.glActiveTexture(GL3.GL_TEXTURE0);	// Work with texture unit 0
-				gl.glEnable(GL3.GL_TEXTURE_2D);
-				gl.glBindTexture(GL3.GL_TEXTURE_2D, ((GLTexture)m.diffuseMap).getId());
-				gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
-				gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
+				// OpenGL calls to activate the texture, skipped by the state
+				// tracker if the previous shape in the sorted queue used the
+				// same one. The filtering is done by the sampler of unit 0.
+				state.activeTexture(GL3.GL_TEXTURE0);	// Work with texture unit 0
+				state.enable(GL3.GL_TEXTURE_2D);
+				state.bindTexture(GL3.GL_TEXTURE_2D, ((GLTexture)m.diffuseMap).getId());
 				// We assume the texture in the shader is called "myTexture"
-				id = gl.glGetUniformLocation(activeShaderID, "myTexture");
+				id = activeShader.getTextureLocation();
 				gl.glUniform1i(id, 0);	// The variable in the shader needs to be set to the desired texture unit, i.e., 0
 			}
-			
-			// Pass a default light source to shader
-			String lightString = "lightDirection[" + 0 + "]";			
-			id = gl.glGetUniformLocation(activeShaderID, lightString);
-			if(id!=-1)
-				gl.glUniform4f(id, 0, 0, 1, 0.f);		// Set light direction
-			else
-				System.out.print("Could not get location of uniform variable " + lightString + "\n");
-			int nLights = 1;
-			
-			// Iterate over all light sources in scene manager (overwriting the default light source)
-			Iterator<Light> iter = sceneManager.lightIterator();			
-			
-			Light l;
-			if(iter != null) {
-				nLights = 0;
-				while(iter.hasNext() && nLights<8)
-				{
-					l = iter.next(); 
-					
-					// Pass light direction to shader, we assume the shader stores it in an array "lightDirection[]"
-					lightString = "lightDirection[" + nLights + "]";			
-					id = gl.glGetUniformLocation(activeShaderID, lightString);
-					if(id!=-1)
-						gl.glUniform4f(id, l.direction.x, l.direction.y, l.direction.z, 0.f);		// Set light direction
-					else
-						System.out.print("Could not get location of uniform variable " + lightString + "\n");
-					
-					nLights++;
-				}
-				
-				// Pass number of lights to shader, we assume this is in a variable "nLights" in the shader
-				id = gl.glGetUniformLocation(activeShaderID, "nLights");
-				if(id!=-1)
-					gl.glUniform1i(id, nLights);		// Set number of lightrs
-// Only for debugging				
-//				else
-//					System.out.print("Could not get location of uniform variable nLights\n");
-			}
 		}
 	}
 
@@ -364,11 +615,21 @@ public class GLRenderContext implements RenderContext {
 	 */
 	public void useShader(Shader s) {
 		if (s != null) {
-			activeShaderID = ((GLShader)s).programId();
-			gl.glUseProgram(activeShaderID);
+			baseShader = (GLShader)s;
+			activeShader = baseShader;
+			state.useProgram(activeShader.programId());
 		}
 	}
 
+	/**
+	 * Activate a shader program while drawing. The state tracker skips the
+	 * call if it is already active.
+	 */
+	private void bindShader(GLShader s) {
+		activeShader = s;
+		state.useProgram(s.programId());
+	}
+
 	/**
 	 * Activate the default shader.
 	 * 
@@ -377,6 +638,14 @@ public class GLRenderContext implements RenderContext {
 		useShader(defaultShader);
 	}
 
+	/**
+	 * @return the state tracker, which counts the redundant state changes
+	 * of the last frame
+	 */
+	public GLStateTracker getStateTracker() {
+		return state;
+	}
+
 	public Shader makeShader() {
 		return new GLShader(gl);
 	}
@@ -388,16 +657,4 @@ public class GLRenderContext implements RenderContext {
 	public VertexData makeVertexData(int n) {
 		return new GLVertexData(n);
 	}
-
-	/**
-	 * Convert a Transformation to a float array in column major ordering, as
-	 * used by OpenGL.
-	 */
-	private static float[] transformationToFloat16(Matrix4f m) {
-		float[] f = new float[16];
-		for (int i = 0; i < 4; i++)
-			for (int j = 0; j < 4; j++)
-				f[j * 4 + i] = m.getElement(i, j);
-		return f;
-	}
 }
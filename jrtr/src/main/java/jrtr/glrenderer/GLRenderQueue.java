@@ -0,0 +1,214 @@
+package jrtr.glrenderer;
+
+import java.util.Arrays;
+
+import javax.vecmath.Matrix4f;
+
+import jrtr.OcclusionBuffer;
+import jrtr.RenderItem;
+import jrtr.Shape;
+
+/**
+ * Collects the items of a frame and sorts them by render state before they
+ * are drawn. Each item gets a 64-bit key made of (from most to least
+ * significant) the shader program, the texture, the vertex array object and
+ * the view space depth, 16 bits each. Sorting by this key groups items that
+ * share a shader, then a texture, then a VAO, so that the render context
+ * only switches state when it actually changes. Within a group the items
+ * are ordered front to back, which lets the depth test reject hidden
+ * fragments early.
+ * <p>
+ * The queue keeps references to the shape and the transformation of each
+ * item rather than the {@link RenderItem} itself, and sorts an index array
+ * with a least significant digit radix sort. All arrays are kept between
+ * frames, so filling and sorting the queue does not allocate once it has
+ * grown to the size of the scene.
+ */
+public class GLRenderQueue {
+
+	private Shape[] shapes;
+	private Matrix4f[] transformations;
+	private long[] keys, keysTmp;
+	private int[] order, orderTmp;
+	private int[] counts;
+	private int n;
+
+	public GLRenderQueue()
+	{
+		shapes = new Shape[64];
+		transformations = new Matrix4f[64];
+		keys = new long[64];
+		keysTmp = new long[64];
+		order = new int[64];
+		orderTmp = new int[64];
+		counts = new int[256];
+	}
+
+	/**
+	 * Remove all items, call this at the beginning of each frame.
+	 */
+	public void clear()
+	{
+		// Drop the references so removed shapes can be collected
+		Arrays.fill(shapes, 0, n, null);
+		Arrays.fill(transformations, 0, n, null);
+		n = 0;
+	}
+
+	/**
+	 * Add an item to the queue.
+	 *
+	 * @param shape
+	 *            the shape to be drawn
+	 * @param t
+	 *            the transformation of the shape
+	 * @param shaderId
+	 *            the OpenGL program the shape is drawn with
+	 * @param textureId
+	 *            the OpenGL texture the shape is drawn with, or 0
+	 * @param vaoId
+	 *            the OpenGL vertex array object of the shape
+	 * @param depth
+	 *            the distance of the shape to the camera
+	 */
+	public void add(Shape shape, Matrix4f t, int shaderId, int textureId, int vaoId, float depth)
+	{
+		if(n == shapes.length) {
+			int c = 2 * n;
+			shapes = Arrays.copyOf(shapes, c);
+			transformations = Arrays.copyOf(transformations, c);
+			keys = Arrays.copyOf(keys, c);
+			keysTmp = new long[c];
+			order = new int[c];
+			orderTmp = new int[c];
+		}
+		shapes[n] = shape;
+		transformations[n] = t;
+		keys[n] = makeKey(shaderId, textureId, vaoId, depth);
+		n++;
+	}
+
+	/**
+	 * Remove the items that are hidden behind the occluders of an occlusion
+	 * buffer. Occluders themselves are always kept. Call this before
+	 * {@link #sort()}.
+	 *
+	 * @param occlusionBuffer
+	 *            the buffer the occluders of the frame have been drawn to
+	 */
+	public void removeOccluded(OcclusionBuffer occlusionBuffer)
+	{
+		int m = 0;
+		for(int i=0; i<n; i++) {
+			if(shapes[i].isOccluder() || occlusionBuffer.isVisible(shapes[i], transformations[i])) {
+				shapes[m] = shapes[i];
+				transformations[m] = transformations[i];
+				keys[m] = keys[i];
+				m++;
+			}
+		}
+		Arrays.fill(shapes, m, n, null);
+		Arrays.fill(transformations, m, n, null);
+		n = m;
+	}
+
+	/**
+	 * Build the sort key of an item. The bits of non-negative floats compare
+	 * like the floats themselves, so the depth is quantized by keeping the
+	 * upper 16 of its 31 non-sign bits. Items behind the camera get depth 0.
+	 */
+	public static long makeKey(int shaderId, int textureId, int vaoId, float depth)
+	{
+		long d = depth > 0 ? Float.floatToIntBits(depth) >>> 15 : 0;
+		return ((long) (shaderId & 0xFFFF) << 48) | ((long) (textureId & 0xFFFF) << 32)
+				| ((long) (vaoId & 0xFFFF) << 16) | (d & 0xFFFF);
+	}
+
+	/**
+	 * Sort the items by their keys. The sort is stable and processes the
+	 * keys in eight passes of 8 bits each; passes over digits that are the
+	 * same for all items are skipped.
+	 */
+	public void sort()
+	{
+		for(int i=0; i<n; i++)
+			order[i] = i;
+
+		long[] k = keys, kt = keysTmp;
+		int[] o = order, ot = orderTmp;
+		for(int shift=0; shift<64; shift+=8) {
+			Arrays.fill(counts, 0);
+			for(int i=0; i<n; i++)
+				counts[(int) (k[i] >>> shift) & 0xFF]++;
+			if(n == 0 || counts[(int) (k[0] >>> shift) & 0xFF] == n)
+				continue;
+			int sum = 0;
+			for(int d=0; d<256; d++) {
+				int c = counts[d];
+				counts[d] = sum;
+				sum += c;
+			}
+			for(int i=0; i<n; i++) {
+				int j = counts[(int) (k[i] >>> shift) & 0xFF]++;
+				kt[j] = k[i];
+				ot[j] = o[i];
+			}
+			long[] lt = k; k = kt; kt = lt;
+			int[] it = o; o = ot; ot = it;
+		}
+		// Keep the sorted arrays in the fields, whichever buffer they ended
+		// up in
+		keys = k;
+		keysTmp = kt;
+		order = o;
+		orderTmp = ot;
+	}
+
+	public int size()
+	{
+		return n;
+	}
+
+	/**
+	 * @return the shape of the i-th item in sorted order
+	 */
+	public Shape getShape(int i)
+	{
+		return shapes[order[i]];
+	}
+
+	/**
+	 * @return the transformation of the i-th item in sorted order
+	 */
+	public Matrix4f getTransformation(int i)
+	{
+		return transformations[order[i]];
+	}
+
+	/**
+	 * @return the key of the i-th item in sorted order
+	 */
+	public long getKey(int i)
+	{
+		return keys[i];
+	}
+
+	/**
+	 * Find the end of the run of items, starting at item i in sorted order,
+	 * that can be drawn as instances of one draw call. These items have the
+	 * same shader, texture, vertex data and material.
+	 *
+	 * @return the index of the first item after the run
+	 */
+	public int endOfInstances(int i)
+	{
+		Shape shape = getShape(i);
+		long state = keys[i] >>> 16;
+		int j = i + 1;
+		while(j < n && keys[j] >>> 16 == state
+				&& getShape(j).getVertexData() == shape.getVertexData()
+				&& getShape(j).getMaterial() == shape.getMaterial())
+			j++;
+		return j;
+	}
+}
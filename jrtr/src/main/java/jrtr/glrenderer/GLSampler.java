@@ -0,0 +1,71 @@
+package jrtr.glrenderer;
+
+import javax.media.opengl.GL3;
+
+/**
+ * An OpenGL sampler object with trilinear filtering, and anisotropic
+ * filtering if the driver supports it. The filtering is set up once when
+ * the sampler is made, and applies to every texture bound to the texture
+ * units the sampler is bound to, overriding the filtering stored with the
+ * textures. The textures need mipmaps, see {@link GLTexture#load(String)}.
+ */
+public class GLSampler {
+
+	private GL3 gl;
+	private int id;
+	private float anisotropy;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context to store the sampler
+	 * @param maxAnisotropy
+	 * 		the requested degree of anisotropic filtering, clamped to the
+	 * 		maximum of the driver; 1 disables it
+	 */
+	public GLSampler(GL3 gl, float maxAnisotropy) {
+		this.gl = gl;
+		int[] ids = new int[1];
+		gl.glGenSamplers(1, ids, 0);
+		id = ids[0];
+		gl.glSamplerParameteri(id, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR_MIPMAP_LINEAR);
+		gl.glSamplerParameteri(id, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+		gl.glSamplerParameteri(id, GL3.GL_TEXTURE_WRAP_S, GL3.GL_REPEAT);
+		gl.glSamplerParameteri(id, GL3.GL_TEXTURE_WRAP_T, GL3.GL_REPEAT);
+
+		anisotropy = 1;
+		if (maxAnisotropy > 1 && gl.isExtensionAvailable("GL_EXT_texture_filter_anisotropic")) {
+			float[] max = new float[1];
+			gl.glGetFloatv(GL3.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, max, 0);
+			anisotropy = Math.min(maxAnisotropy, max[0]);
+			gl.glSamplerParameterf(id, GL3.GL_TEXTURE_MAX_ANISOTROPY_EXT, anisotropy);
+		}
+	}
+
+	/**
+	 * @return the degree of anisotropic filtering in use, 1 if none
+	 */
+	public float getAnisotropy() {
+		return anisotropy;
+	}
+
+	/**
+	 * Use this sampler for the textures bound to a texture unit.
+	 *
+	 * @param unit
+	 * 		the index of the texture unit, e.g., 0 for GL_TEXTURE0
+	 */
+	public void bind(int unit) {
+		gl.glBindSampler(unit, id);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Deletes the sampler.
+	 */
+	public void dispose() {
+		gl.glDeleteSamplers(1, new int[] { id }, 0);
+	}
+}
@@ -5,22 +5,56 @@ import java.io.FileReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import javax.media.opengl.GL3;
 
 import jrtr.Shader;
+import jrtr.VertexData;
 
 /**
- * Manages OpenGL shaders.
+ * Manages OpenGL shaders. After linking, the locations of all active 
+ * uniforms and attributes are looked up once and cached, so that render 
+ * contexts do not need to query the driver for them at every draw call. 
+ * The variables that the render contexts set for every shape (see 
+ * {@link GLRenderContext}) are also available as int handles. If the 
+ * shader declares the uniform blocks of {@link GLFrameUniforms}, 
+ * {@link GLMaterialBuffer} or {@link GLObjectUniforms}, they are connected
+ * to their binding points.
  */
 public class GLShader implements Shader {
 	
 	private GL3 gl;	// The OpenGL context
 	private int p, vertexHandle, fragmentHandle;	// The shader identifier
+	private String vertexFileName, fragmentFileName;
+	
+	// Locations of the active uniforms and attributes by name. Each
+	// element of a uniform array is stored, as well as the array name
+	// without index, which refers to the first element.
+	private HashMap<String, Integer> uniforms, attributes;
+	
+	// Locations of the variables used for every shape, -1 if the shader 
+	// does not have them
+	private int modelview, lightIndices, texture, instanced;
+	private int instanceModelview;
+	private int[] semantics;
+	
+	// The values of "lightIndices" in the program
+	private int[] lightIndexValues;
+	private int[] newLightIndices;
 	
 	public GLShader(GL3 gl)
 	{
 		this.gl = gl;
+		uniforms = new HashMap<String, Integer>();
+		attributes = new HashMap<String, Integer>();
+		modelview = lightIndices = texture = instanced = -1;
+		lightIndexValues = new int[8];
+		newLightIndices = new int[8];
+		instanceModelview = -1;
+		semantics = new int[VertexData.Semantic.values().length];
+		Arrays.fill(semantics, -1);
 	}
 	
 	/**
@@ -129,6 +163,181 @@ public class GLShader implements Shader {
 		if(ib.get(0) == GL3.GL_FALSE) {
 			throw new Exception("Could not link vertex and fragment shader.");
 		}
+		this.vertexFileName = vertexFileName;
+		this.fragmentFileName = fragmentFileName;
+		
+		findLocations();
+	}
+	
+	/**
+	 * Look up the locations of all active uniforms and attributes of the 
+	 * linked program.
+	 */
+	private void findLocations()
+	{
+		int[] n = new int[1], maxLength = new int[1];
+		int[] length = new int[1], size = new int[1], type = new int[1];
+		
+		uniforms = new HashMap<String, Integer>();
+		gl.glGetProgramiv(p, GL3.GL_ACTIVE_UNIFORMS, n, 0);
+		gl.glGetProgramiv(p, GL3.GL_ACTIVE_UNIFORM_MAX_LENGTH, maxLength, 0);
+		byte[] name = new byte[Math.max(maxLength[0], 1)];
+		for(int i = 0; i < n[0]; i++) {
+			gl.glGetActiveUniform(p, i, name.length, length, 0, size, 0, type, 0, name, 0);
+			String s = new String(name, 0, length[0]);
+			int location = gl.glGetUniformLocation(p, s);
+			if(location == -1)
+				continue;	// Uniforms in uniform blocks have no location
+			uniforms.put(s, location);
+			// Arrays are reported as their first element, "name[0]"
+			if(s.endsWith("[0]")) {
+				String base = s.substring(0, s.length() - 3);
+				uniforms.put(base, location);
+				for(int k = 1; k < size[0]; k++) {
+					String element = base + "[" + k + "]";
+					uniforms.put(element, gl.glGetUniformLocation(p, element));
+				}
+			}
+		}
+		
+		attributes = new HashMap<String, Integer>();
+		gl.glGetProgramiv(p, GL3.GL_ACTIVE_ATTRIBUTES, n, 0);
+		gl.glGetProgramiv(p, GL3.GL_ACTIVE_ATTRIBUTE_MAX_LENGTH, maxLength, 0);
+		name = new byte[Math.max(maxLength[0], 1)];
+		for(int i = 0; i < n[0]; i++) {
+			gl.glGetActiveAttrib(p, i, name.length, length, 0, size, 0, type, 0, name, 0);
+			String s = new String(name, 0, length[0]);
+			int location = gl.glGetAttribLocation(p, s);
+			if(location != -1)
+				attributes.put(s, location);
+		}
+		
+		modelview = getUniformLocation("modelview");
+		lightIndices = getUniformLocation("lightIndices");
+		Arrays.fill(lightIndexValues, -1);
+		texture = getUniformLocation("myTexture");
+		instanced = getUniformLocation("instanced");
+		instanceModelview = getAttribLocation("instanceModelview");
+		
+		// Read the projection, camera and lights from the buffer of the 
+		// render context
+		int block = gl.glGetUniformBlockIndex(p, GLFrameUniforms.BLOCK);
+		if(block != GL3.GL_INVALID_INDEX)
+			gl.glUniformBlockBinding(p, block, GLFrameUniforms.BINDING);
+		
+		// Read the material parameters from the buffer range of the 
+		// material that is drawn
+		block = gl.glGetUniformBlockIndex(p, GLMaterialBuffer.BLOCK);
+		if(block != GL3.GL_INVALID_INDEX)
+			gl.glUniformBlockBinding(p, block, GLMaterialBuffer.BINDING);
+		
+		// Read the modelview matrix from the buffer range of the object that
+		// is drawn
+		block = gl.glGetUniformBlockIndex(p, GLObjectUniforms.BLOCK);
+		if(block != GL3.GL_INVALID_INDEX)
+			gl.glUniformBlockBinding(p, block, GLObjectUniforms.BINDING);
+		
+		// We use our own convention to name the vertex attributes, i.e., 
+		// "position", "normal", "color", "texcoord"
+		semantics = new int[VertexData.Semantic.values().length];
+		semantics[VertexData.Semantic.POSITION.ordinal()] = getAttribLocation("position");
+		semantics[VertexData.Semantic.NORMAL.ordinal()] = getAttribLocation("normal");
+		semantics[VertexData.Semantic.COLOR.ordinal()] = getAttribLocation("color");
+		semantics[VertexData.Semantic.TEXCOORD.ordinal()] = getAttribLocation("texcoord");
+	}
+	
+	/**
+	 * @return the location of an active uniform, or -1 if the shader does 
+	 * not have it
+	 */
+	public int getUniformLocation(String name)
+	{
+		Integer location = uniforms.get(name);
+		return location != null ? location : -1;
+	}
+	
+	/**
+	 * @return the location of an active vertex attribute, or -1 if the 
+	 * shader does not have it
+	 */
+	public int getAttribLocation(String name)
+	{
+		Integer location = attributes.get(name);
+		return location != null ? location : -1;
+	}
+	
+	/**
+	 * @return the location of the vertex attribute for a semantic, or -1 
+	 * if the shader does not have it
+	 */
+	public int getAttribLocation(VertexData.Semantic semantic)
+	{
+		return semantics[semantic.ordinal()];
+	}
+	
+	/**
+	 * @return the location of the mat4 uniform "modelview"
+	 */
+	public int getModelviewLocation()
+	{
+		return modelview;
+	}
+	
+	/**
+	 * Set the uniform "ivec4 lightIndices[2]", which selects up to 8 lights 
+	 * of the frame that affect the next object, most relevant first. Unused
+	 * entries are set to -1. Nothing is passed to OpenGL if the uniform 
+	 * already has these values. The shader must be in use.
+	 *
+	 * @param indices
+	 * 		the indices of the lights in the uniform buffer of the frame
+	 * @param n
+	 * 		the number of indices, at most 8
+	 */
+	public void setLightIndices(int[] indices, int n)
+	{
+		if(lightIndices == -1)
+			return;
+		for(int i = 0; i < 8; i++)
+			newLightIndices[i] = i < n ? indices[i] : -1;
+		if(!Arrays.equals(newLightIndices, lightIndexValues)) {
+			gl.glUniform4iv(lightIndices, 2, newLightIndices, 0);
+			System.arraycopy(newLightIndices, 0, lightIndexValues, 0, 8);
+		}
+	}
+	
+	/**
+	 * @return the location of the sampler uniform "myTexture"
+	 */
+	public int getTextureLocation()
+	{
+		return texture;
+	}
+	
+	/**
+	 * @return the location of the int uniform "instanced"
+	 */
+	public int getInstancedLocation()
+	{
+		return instanced;
+	}
+	
+	/**
+	 * @return the location of the mat4 attribute "instanceModelview"
+	 */
+	public int getInstanceModelviewLocation()
+	{
+		return instanceModelview;
+	}
+	
+	public String getVertexFileName()
+	{
+		return vertexFileName;
+	}
+	
+	public String getFragmentFileName()
+	{
+		return fragmentFileName;
 	}
 		
 	public int programId()
@@ -0,0 +1,250 @@
+package jrtr.glrenderer;
+
+import java.util.Arrays;
+
+import javax.media.opengl.GL3;
+
+/**
+ * Shadows the OpenGL state that render contexts change most often: the
+ * program in use, the bound vertex array object and array buffer, the
+ * active texture unit, the 2D texture bound to each unit, and enable
+ * flags. Calls that would set a value that is already current are not
+ * passed to OpenGL.
+ * <p>
+ * The tracker only knows about changes made through it. Code that changes
+ * this state directly (e.g., when loading textures or making vertex array
+ * objects outside of the render contexts) must call {@link #reset()}
+ * afterwards. Render contexts call {@link #beginFrame()} at the beginning
+ * of each frame, which also resets the shadowed state.
+ * <p>
+ * For each kind of call, the tracker counts the calls issued to OpenGL
+ * and the redundant calls that were skipped. The counts of the last
+ * complete frame are available with {@link #getIssuedCalls(int)} and
+ * {@link #getRedundantCalls(int)}, and {@link #toString()} lists them.
+ */
+public class GLStateTracker {
+
+	/**
+	 * The kinds of calls that are counted.
+	 */
+	public static final int USE_PROGRAM = 0, BIND_VERTEX_ARRAY = 1, BIND_BUFFER = 2,
+			ACTIVE_TEXTURE = 3, BIND_TEXTURE = 4, ENABLE = 5;
+	private static final String[] NAMES = { "glUseProgram", "glBindVertexArray",
+			"glBindBuffer", "glActiveTexture", "glBindTexture", "glEnable/glDisable" };
+
+	/**
+	 * The number of texture units whose bindings are shadowed.
+	 */
+	private static final int UNITS = 16;
+
+	/**
+	 * Marks shadowed values that are not known.
+	 */
+	private static final int UNKNOWN = -1;
+
+	private GL3 gl;
+
+	private int program, vertexArray, arrayBuffer, activeTexture;
+	private int[] textures;
+
+	// Enable flags, 1 if enabled, 0 if disabled, UNKNOWN if not known
+	private int[] caps, capStates;
+	private int nCaps;
+
+	// Counts of the current and of the last frame
+	private int[] issued, redundant;
+	private int[] lastIssued, lastRedundant;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context whose state is tracked
+	 */
+	public GLStateTracker(GL3 gl) {
+		this.gl = gl;
+		textures = new int[UNITS];
+		caps = new int[8];
+		capStates = new int[8];
+		issued = new int[NAMES.length];
+		redundant = new int[NAMES.length];
+		lastIssued = new int[NAMES.length];
+		lastRedundant = new int[NAMES.length];
+		reset();
+	}
+
+	/**
+	 * Forget the shadowed state, so that the next call of each kind is
+	 * passed to OpenGL. Call this after changing the state directly.
+	 */
+	public void reset() {
+		program = UNKNOWN;
+		vertexArray = UNKNOWN;
+		arrayBuffer = UNKNOWN;
+		activeTexture = UNKNOWN;
+		Arrays.fill(textures, UNKNOWN);
+		Arrays.fill(capStates, 0, nCaps, UNKNOWN);
+	}
+
+	/**
+	 * Start counting calls for a new frame, and forget the shadowed state.
+	 */
+	public void beginFrame() {
+		int[] t = lastIssued;
+		lastIssued = issued;
+		issued = t;
+		t = lastRedundant;
+		lastRedundant = redundant;
+		redundant = t;
+		Arrays.fill(issued, 0);
+		Arrays.fill(redundant, 0);
+		reset();
+	}
+
+	public void useProgram(int program) {
+		if (program == this.program) {
+			redundant[USE_PROGRAM]++;
+			return;
+		}
+		this.program = program;
+		issued[USE_PROGRAM]++;
+		gl.glUseProgram(program);
+	}
+
+	public void bindVertexArray(int vertexArray) {
+		if (vertexArray == this.vertexArray) {
+			redundant[BIND_VERTEX_ARRAY]++;
+			return;
+		}
+		this.vertexArray = vertexArray;
+		issued[BIND_VERTEX_ARRAY]++;
+		gl.glBindVertexArray(vertexArray);
+	}
+
+	/**
+	 * Bind a buffer. Only GL_ARRAY_BUFFER bindings are shadowed; other
+	 * targets, like GL_ELEMENT_ARRAY_BUFFER, whose binding is part of the
+	 * vertex array object, are always passed to OpenGL.
+	 */
+	public void bindBuffer(int target, int buffer) {
+		if (target == GL3.GL_ARRAY_BUFFER) {
+			if (buffer == arrayBuffer) {
+				redundant[BIND_BUFFER]++;
+				return;
+			}
+			arrayBuffer = buffer;
+		}
+		issued[BIND_BUFFER]++;
+		gl.glBindBuffer(target, buffer);
+	}
+
+	/**
+	 * @param texture
+	 * 		the texture unit, GL_TEXTURE0 + i
+	 */
+	public void activeTexture(int texture) {
+		if (texture == activeTexture) {
+			redundant[ACTIVE_TEXTURE]++;
+			return;
+		}
+		activeTexture = texture;
+		issued[ACTIVE_TEXTURE]++;
+		gl.glActiveTexture(texture);
+	}
+
+	/**
+	 * Bind a texture to the active texture unit. Only GL_TEXTURE_2D
+	 * bindings are shadowed.
+	 *
+	 * @return true if the call was passed to OpenGL, false if the texture
+	 * was already bound
+	 */
+	public boolean bindTexture(int target, int texture) {
+		int unit = activeTexture - GL3.GL_TEXTURE0;
+		boolean tracked = target == GL3.GL_TEXTURE_2D && activeTexture != UNKNOWN && unit < UNITS;
+		if (tracked) {
+			if (textures[unit] == texture) {
+				redundant[BIND_TEXTURE]++;
+				return false;
+			}
+			textures[unit] = texture;
+		}
+		issued[BIND_TEXTURE]++;
+		gl.glBindTexture(target, texture);
+		return true;
+	}
+
+	public void enable(int cap) {
+		setCap(cap, 1);
+	}
+
+	public void disable(int cap) {
+		setCap(cap, 0);
+	}
+
+	private void setCap(int cap, int state) {
+		int i = 0;
+		while (i < nCaps && caps[i] != cap)
+			i++;
+		if (i == nCaps) {
+			if (nCaps == caps.length) {
+				caps = Arrays.copyOf(caps, 2 * nCaps);
+				capStates = Arrays.copyOf(capStates, 2 * nCaps);
+			}
+			caps[nCaps] = cap;
+			capStates[nCaps] = UNKNOWN;
+			nCaps++;
+		}
+		if (capStates[i] == state) {
+			redundant[ENABLE]++;
+			return;
+		}
+		capStates[i] = state;
+		issued[ENABLE]++;
+		if (state == 1)
+			gl.glEnable(cap);
+		else
+			gl.glDisable(cap);
+	}
+
+	/**
+	 * @param kind
+	 * 		the kind of call, e.g., {@link #BIND_TEXTURE}
+	 * @return the number of calls of this kind passed to OpenGL in the last
+	 * frame
+	 */
+	public int getIssuedCalls(int kind) {
+		return lastIssued[kind];
+	}
+
+	/**
+	 * @param kind
+	 * 		the kind of call, e.g., {@link #BIND_TEXTURE}
+	 * @return the number of redundant calls of this kind skipped in the
+	 * last frame
+	 */
+	public int getRedundantCalls(int kind) {
+		return lastRedundant[kind];
+	}
+
+	/**
+	 * @return the number of redundant calls of all kinds skipped in the
+	 * last frame
+	 */
+	public int getRedundantCalls() {
+		int n = 0;
+		for (int i = 0; i < NAMES.length; i++)
+			n += lastRedundant[i];
+		return n;
+	}
+
+	/**
+	 * @return the issued and redundant calls of each kind in the last frame
+	 */
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < NAMES.length; i++) {
+			s.append(NAMES[i]).append(": ").append(lastIssued[i]).append(" issued, ")
+					.append(lastRedundant[i]).append(" redundant\n");
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,170 @@
+package jrtr.glrenderer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL3;
+
+/**
+ * A buffer object for data that is written by the CPU every frame, like
+ * per-instance matrices or dynamic vertex data. The buffer is allocated
+ * once and split into {@link #REGIONS} regions; each frame writes to the
+ * next region while the GPU may still read from the regions of the
+ * previous frames.
+ * <p>
+ * Data is written with glMapBufferRange using the unsynchronized and
+ * invalidate-range flags, so the driver neither waits for the GPU nor
+ * copies or reallocates the buffer. Instead, a fence is inserted at the
+ * end of each frame, and {@link #beginFrame()} waits for the fence of the
+ * region it is about to reuse, which was set {@link #REGIONS} frames ago
+ * and has usually passed already.
+ */
+public class GLStreamBuffer {
+
+	/**
+	 * The number of regions, i.e., the number of frames the CPU may be
+	 * ahead of the GPU.
+	 */
+	public static final int REGIONS = 3;
+
+	// Time to wait for a fence in one call of glClientWaitSync, in ns
+	private static final long TIMEOUT = 1000000;
+
+	private GL3 gl;
+	private GLStateTracker state;
+	private int target;
+	private IntBuffer buffer;
+	private int regionSize;
+
+	// The fence at the end of the last frame that wrote to each region, 0
+	// if there is none
+	private long[] fences;
+	private int region;
+
+	// The number of frames begun so far
+	private int frame;
+
+	// The next free byte in the current region, and the position of the
+	// last mapped range in the buffer
+	private int free;
+	private int offset;
+
+	/**
+	 * @param gl
+	 * 		the OpenGL rendering context to store the buffer
+	 * @param state
+	 * 		the state tracker of the render context, used to bind the buffer
+	 * @param target
+	 * 		the target the buffer is bound to, e.g., GL_ARRAY_BUFFER
+	 * @param regionSize
+	 * 		the number of bytes that can be written per frame
+	 */
+	public GLStreamBuffer(GL3 gl, GLStateTracker state, int target, int regionSize) {
+		this.gl = gl;
+		this.state = state;
+		this.target = target;
+		this.regionSize = regionSize;
+		fences = new long[REGIONS];
+		buffer = IntBuffer.allocate(1);
+		gl.glGenBuffers(1, buffer);
+		state.bindBuffer(target, buffer.get(0));
+		gl.glBufferData(target, (long) REGIONS * regionSize, null, GL3.GL_STREAM_DRAW);
+		state.bindBuffer(target, 0);
+	}
+
+	/**
+	 * Move on to the next region, waiting until the GPU has finished the
+	 * frame that last used it.
+	 */
+	public void beginFrame() {
+		frame++;
+		region = (region + 1) % REGIONS;
+		free = 0;
+		long fence = fences[region];
+		if (fence != 0) {
+			int result = gl.glClientWaitSync(fence, GL3.GL_SYNC_FLUSH_COMMANDS_BIT, TIMEOUT);
+			while (result == GL3.GL_TIMEOUT_EXPIRED)
+				result = gl.glClientWaitSync(fence, 0, TIMEOUT);
+			if (result == GL3.GL_WAIT_FAILED)
+				System.out.print("Could not wait for the stream buffer fence\n");
+			gl.glDeleteSync(fence);
+			fences[region] = 0;
+		}
+	}
+
+	/**
+	 * Insert the fence for the draw calls that read from the current
+	 * region.
+	 */
+	public void endFrame() {
+		if (fences[region] != 0)
+			gl.glDeleteSync(fences[region]);
+		fences[region] = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+	}
+
+	/**
+	 * Map the next range of the current region for writing. The range must
+	 * be unmapped with {@link #unmap()} before it is used for drawing; its
+	 * position in the buffer is {@link #getOffset()}.
+	 *
+	 * @param size
+	 * 		the number of bytes to write
+	 * @param alignment
+	 * 		the alignment of the range in bytes, e.g., the value of
+	 * 		GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT for uniform data
+	 * @return the mapped range in native byte order, or null if the
+	 * region of this frame does not have enough space left
+	 */
+	public ByteBuffer map(int size, int alignment) {
+		int start = (free + alignment - 1) / alignment * alignment;
+		if (start + size > regionSize)
+			return null;
+		free = start + size;
+		offset = region * regionSize + start;
+
+		state.bindBuffer(target, buffer.get(0));
+		ByteBuffer range = gl.glMapBufferRange(target, offset, size, GL3.GL_MAP_WRITE_BIT
+				| GL3.GL_MAP_UNSYNCHRONIZED_BIT | GL3.GL_MAP_INVALIDATE_RANGE_BIT);
+		return range != null ? range.order(ByteOrder.nativeOrder()) : null;
+	}
+
+	/**
+	 * Unmap the range returned by the last call of {@link #map(int, int)}.
+	 */
+	public void unmap() {
+		state.bindBuffer(target, buffer.get(0));
+		gl.glUnmapBuffer(target);
+		state.bindBuffer(target, 0);
+	}
+
+	/**
+	 * @return the position of the last mapped range in the buffer, in bytes
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the number of frames begun so far; data written to the
+	 * buffer is only valid in the frame it was written in
+	 */
+	public int getFrame() {
+		return frame;
+	}
+
+	public int getId() {
+		return buffer.get(0);
+	}
+
+	/**
+	 * Deletes the buffer and the fences.
+	 */
+	public void dispose() {
+		for (int i = 0; i < REGIONS; i++) {
+			if (fences[i] != 0)
+				gl.glDeleteSync(fences[i]);
+		}
+		gl.glDeleteBuffers(1, buffer);
+	}
+}
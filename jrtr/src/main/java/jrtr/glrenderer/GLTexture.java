@@ -19,6 +19,7 @@ public class GLTexture implements Texture {
 	private GL3 gl;			// The OpenGL context that stores the texture
 	private IntBuffer id;	// Stores the OpenGL texture identifier
 	private int w, h;		// Width and height
+	private String fileName;	// The image file
 	
 	public GLTexture(GL3 gl)
 	{
@@ -35,6 +36,7 @@ public class GLTexture implements Texture {
 		
 		File f = new File(fileName);
 		i = ImageIO.read(f);
+		this.fileName = fileName;
 	
 		gl.glPixelStorei(GL3.GL_UNPACK_ALIGNMENT, 1);
 		gl.glGenTextures(1, id);
@@ -45,6 +47,20 @@ public class GLTexture implements Texture {
 		
 		IntBuffer buf = getData(i);
 		gl.glTexImage2D(GL3.GL_TEXTURE_2D, 0, GL3.GL_RGBA, w, h, 0, GL3.GL_RGBA, GL3.GL_UNSIGNED_BYTE, buf);			
+		
+		// Compute the smaller mipmap levels from level 0, so that minified 
+		// textures read from a level that matches their size on screen
+		gl.glGenerateMipmap(GL3.GL_TEXTURE_2D);
+		
+		// Trilinear filtering, stored with the texture for render contexts 
+		// that do not bind a GLSampler
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
+		gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR_MIPMAP_LINEAR);
+	}
+	
+	public String getFileName()
+	{
+		return fileName;
 	}
 	
 	public int getId()
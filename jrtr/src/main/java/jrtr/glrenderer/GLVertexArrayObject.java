@@ -55,6 +55,21 @@ public class GLVertexArrayObject {
 		return vbo.get();
 	}
 
+	/**
+	 * Get reference to the i-th VBO, without moving the position of the
+	 * {@link IntBuffer}.
+	 */
+	public int getVBO(int i) {
+		return vbo.get(i);
+	}
+
+	/**
+	 * @return the OpenGL identifier of the VAO
+	 */
+	public int getId() {
+		return vao.get(0);
+	}
+
 	/**
 	 * Bind the VAO. This means all the information associated
 	 * with the VAO becomes active in OpenGL.
@@ -1,5 +1,9 @@
 package jrtr.glrenderer;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.LinkedList;
+
 import javax.media.opengl.GL3;
 
 import jrtr.VertexData;
@@ -7,6 +11,11 @@ import jrtr.VertexData;
 /**
  * An implementation of {@link VertexData} which adds the handle to the OpenGL
  * vertex array object (VAO) of this vertex data to it.
+ * <p>
+ * The vertex attributes are uploaded to the VBOs of the VAO once, and again
+ * whenever the {@link #getDataVersion() data version} changes. Dynamic
+ * vertex data (see {@link #setDynamic(boolean)}) is instead written to the
+ * {@link GLStreamBuffer} of the render context in every frame it is drawn.
  */
 public class GLVertexData extends VertexData {
 
@@ -15,16 +24,139 @@ public class GLVertexData extends VertexData {
 	 */
 	private GLVertexArrayObject vertexArrayObject;
 
+	/**
+	 * The data version stored in the VBOs of the VAO.
+	 */
+	private int uploadedVersion;
+
+	/**
+	 * For dynamic vertex data, the stream buffer frame in which the vertex
+	 * attributes were last written, their position in the stream buffer,
+	 * and whether the last draw call read them from there.
+	 */
+	private int streamedFrame;
+	private int[] streamOffsets;
+	private int streamId;
+	private boolean streamed;
+
 	public GLVertexData(int n) {
 		super(n);
 		vertexArrayObject = null;
+		streamedFrame = -1;
 	}
 
 	public GLVertexArrayObject getVAO() {
 		return vertexArrayObject;
 	}
 
+	/**
+	 * Set the VAO, whose VBOs have just been loaded with the current vertex
+	 * attributes.
+	 */
 	public void setVAO(GLVertexArrayObject vertexArrayObject) {
 		this.vertexArrayObject = vertexArrayObject;
+		uploadedVersion = getDataVersion();
+	}
+
+	/**
+	 * Make the vertex attributes on the GPU ready for drawing in the current
+	 * frame. Dynamic vertex data is written to the stream buffer, once per
+	 * frame of the stream buffer. Static vertex data, and dynamic vertex data
+	 * that does not fit into the stream buffer, is uploaded to the VBOs again
+	 * if it has changed since it was last uploaded.
+	 *
+	 * @param stream
+	 * 		the GL_ARRAY_BUFFER stream buffer of the render context, or null
+	 * 		if dynamic vertex data should be handled like static vertex data
+	 */
+	public void update(GL3 gl, GLStateTracker state, GLStreamBuffer stream) {
+		if (isDynamic() && stream != null) {
+			if (streamedFrame == stream.getFrame() && streamId == stream.getId())
+				return;
+			streamed = write(stream);
+			if (streamed)
+				return;
+		} else {
+			streamed = false;
+		}
+		if (uploadedVersion != getDataVersion())
+			upload(gl, state);
+	}
+
+	/**
+	 * Write all vertex attributes to one range of the stream buffer.
+	 *
+	 * @return false if the stream buffer has no space left in this frame,
+	 * or there is nothing to write
+	 */
+	private boolean write(GLStreamBuffer stream) {
+		LinkedList<VertexElement> elements = getElements();
+		if (streamOffsets == null || streamOffsets.length != elements.size())
+			streamOffsets = new int[elements.size()];
+		int size = 0;
+		for (int i = 0; i < elements.size(); i++)
+			size += elements.get(i).getData().length * 4;
+		ByteBuffer bytes = size > 0 ? stream.map(size, 4) : null;
+		if (bytes == null)
+			return false;
+		FloatBuffer range = bytes.asFloatBuffer();
+
+		int offset = stream.getOffset();
+		for (int i = 0; i < elements.size(); i++) {
+			float[] data = elements.get(i).getData();
+			range.put(data);
+			streamOffsets[i] = offset;
+			offset += data.length * 4;
+		}
+		stream.unmap();
+		streamedFrame = stream.getFrame();
+		streamId = stream.getId();
+		return true;
+	}
+
+	/**
+	 * Upload the vertex attributes to the VBOs of the VAO again. The buffers
+	 * are reallocated, so that draw calls of earlier frames that still read
+	 * the old data do not stall the upload.
+	 */
+	private void upload(GL3 gl, GLStateTracker state) {
+		LinkedList<VertexElement> elements = getElements();
+		for (int i = 0; i < elements.size(); i++) {
+			float[] data = elements.get(i).getData();
+			state.bindBuffer(GL3.GL_ARRAY_BUFFER, vertexArrayObject.getVBO(i));
+			gl.glBufferData(GL3.GL_ARRAY_BUFFER, data.length * 4,
+					FloatBuffer.wrap(data), GL3.GL_DYNAMIC_DRAW);
+		}
+		state.bindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		uploadedVersion = getDataVersion();
+	}
+
+	/**
+	 * Connect the vertex attributes to the vertex attributes of a shader,
+	 * reading them from the stream buffer if they were streamed by the last
+	 * call of {@link #update}, and from the VBOs of the VAO otherwise. The
+	 * VAO must be bound.
+	 * <p>
+	 * Note: This is not part of the vertex array object, because the active
+	 * shader may have changed since the vertex array object was initialized.
+	 * The shader looks up the variables once, by our own naming convention,
+	 * see {@link GLShader}.
+	 */
+	public void bindAttributes(GL3 gl, GLStateTracker state, GLShader shader) {
+		LinkedList<VertexElement> elements = getElements();
+		for (int i = 0; i < elements.size(); i++) {
+			VertexElement e = elements.get(i);
+			int attribIndex = shader.getAttribLocation(e.getSemantic());
+			if (streamed) {
+				state.bindBuffer(GL3.GL_ARRAY_BUFFER, streamId);
+				gl.glVertexAttribPointer(attribIndex, e.getNumberOfComponents(), GL3.GL_FLOAT,
+						false, 0, streamOffsets[i]);
+			} else {
+				state.bindBuffer(GL3.GL_ARRAY_BUFFER, vertexArrayObject.getVBO(i));
+				gl.glVertexAttribPointer(attribIndex, e.getNumberOfComponents(), GL3.GL_FLOAT,
+						false, 0, 0);
+			}
+			gl.glEnableVertexAttribArray(attribIndex);
+		}
 	}
 }
@@ -38,11 +38,72 @@ public class VRRenderContext implements RenderContext {
 	private GLShader defaultShader;
 
 	/**
-	 * The id of the currently active shader (you should always
+	 * The currently active shader (you should always
 	 * useuseShader(GLShader) and useDefaultShader() to switch between the
 	 * shaders!).
 	 */
-	private int activeShaderID;
+	private GLShader activeShader;
+
+	/**
+	 * The shader set with useShader(Shader), used for items whose
+	 * material does not have a shader.
+	 */
+	private GLShader baseShader;
+
+	/**
+	 * Skips redundant changes of the bound program, VAO, buffers and 
+	 * textures.
+	 */
+	private GLStateTracker state;
+
+	/**
+	 * Sorts the items of each eye by shader, texture and VAO.
+	 */
+	private GLRenderQueue renderQueue;
+
+	/**
+	 * Streams the modelview matrices of draw calls and instances, and the
+	 * attributes of dynamic vertex data, written to a new region of the 
+	 * stream buffer each frame. A region holds, e.g., the constants of 8192
+	 * draw calls and the matrices of 32768 instances, for both eyes together.
+	 */
+	private static final int STREAM_REGION_SIZE = 4 << 20;
+	private GLStreamBuffer stream;
+	private GLInstanceBuffer instanceBuffer;
+	private GLObjectUniforms objectUniforms;
+
+	/**
+	 * The occluders of the frame are rasterized into this buffer on the 
+	 * CPU, and items hidden behind them are removed from the render queue.
+	 */
+	private OcclusionBuffer occlusionBuffer;
+
+	/**
+	 * The camera, projection and lights of the frame, uploaded once per 
+	 * frame, and the lights chosen for the item that is drawn next.
+	 */
+	private GLFrameUniforms frameUniforms;
+	private GLItemLights itemLights;
+	
+	/**
+	 * The parameters of the materials, uploaded when they change.
+	 */
+	private GLMaterialBuffer materials;
+	
+	/**
+	 * Trilinear and anisotropic filtering for the textures of materials,
+	 * which are bound to texture unit 0.
+	 */
+	private GLSampler sampler;
+
+	/**
+	 * The scene camera and projection, saved while the eyes are rendered,
+	 * and the world-to-head transformation of the current eye.
+	 */
+	private Matrix4f sceneCamera = new Matrix4f();
+	private Matrix4f projectionMatrix = new Matrix4f();
+	private Matrix4f worldToHead = new Matrix4f();
+
 
 	private static VR_IVRCompositor_FnTable vrcompositorFunctions;
 	private Texture_t texType;
@@ -78,6 +139,16 @@ public class VRRenderContext implements RenderContext {
 		gl = drawable.getGL().getGL3();
 		gl.glEnable(GL3.GL_DEPTH_TEST);
 		gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+		renderQueue = new GLRenderQueue();
+		state = new GLStateTracker(gl);
+		frameUniforms = new GLFrameUniforms(gl);
+		itemLights = new GLItemLights(frameUniforms);
+		materials = new GLMaterialBuffer(gl);
+		sampler = new GLSampler(gl, 16);
+		stream = new GLStreamBuffer(gl, state, GL3.GL_ARRAY_BUFFER, STREAM_REGION_SIZE);
+		instanceBuffer = new GLInstanceBuffer(gl, state, stream);
+		objectUniforms = new GLObjectUniforms(gl, stream);
+		occlusionBuffer = new OcclusionBuffer();
 
 		// Load and use default shader, will be used for items that do not have
 		// their own shader.
@@ -115,16 +186,27 @@ public class VRRenderContext implements RenderContext {
 		
 		if(!renderPanel.posesReady)
 			renderPanel.waitGetPoses();
+		
+		// Let the scene manager prepare the frame, e.g., pick up the latest
+		// snapshot of an animated scene for both eyes
+		sceneManager.beginFrame();
+        
+        // Count the state changes of this frame (both eyes)
+        state.beginFrame();
+        
+        // Both eyes write their instance data to the same region of the 
+        // stream buffer, which is fenced once after the second eye
+        stream.beginFrame();
         
         // Save scene camera and projection matrices
-        Matrix4f sceneCamera = new Matrix4f(this.sceneManager.getCamera().getCameraMatrix());
-        Matrix4f projectionMatrix = new Matrix4f(this.sceneManager.getFrustum().getProjectionMatrix());
+        sceneCamera.set(this.sceneManager.getCamera().getCameraMatrix());
+        projectionMatrix.set(this.sceneManager.getFrustum().getProjectionMatrix());
         
         // Render two eyes and pass to OpenVR compositor
         for(int eye=0; eye<2; eye++)
         {
 	        // Applying tracking in addition to scene camera
-	        Matrix4f worldToHead = new Matrix4f(renderPanel.poseMatrices[0]);
+	        worldToHead.set(renderPanel.poseMatrices[0]);
 	        // Need to invert to get world-to-head
 	        if(worldToHead.determinant()!=0)
 	        	worldToHead.invert();
@@ -149,13 +231,33 @@ public class VRRenderContext implements RenderContext {
 			gl = drawable.getGL().getGL3();		
 			vrBuffer.beginWrite();
 			beginFrame();
+			renderQueue.clear();
+			Matrix4f camera = sceneManager.getCamera().getCameraMatrix();
+			occlusionBuffer.clear(camera, sceneManager.getFrustum().getProjectionMatrix());
+			itemLights.update(sceneManager);
 			SceneManagerIterator iterator = sceneManager.iterator();
 			while (iterator.hasNext()) {
 				RenderItem r = iterator.next();
 				if (r.getShape() != null) {
-					draw(r);
+					enqueue(r.getShape(), r.getT(), camera);
 				}
 			}
+			// Drop the items hidden behind the occluders of this eye
+			if (occlusionBuffer.getNumberOfOccluders() > 0)
+				renderQueue.removeOccluded(occlusionBuffer);
+			renderQueue.sort();
+			objectUniforms.write(renderQueue, camera);
+			// Consecutive items in the sorted queue that share their vertex data
+			// and material are drawn with one instanced draw call
+			int i = 0;
+			while (i < renderQueue.size()) {
+				int j = renderQueue.endOfInstances(i);
+				if (j - i > 1)
+					drawInstanced(i, j);
+				else
+					draw(i);
+				i = j;
+			}
 			endFrame();
 			vrBuffer.endWrite();
 			
@@ -187,6 +289,8 @@ public class VRRenderContext implements RenderContext {
 			gl.glBindFramebuffer(GL3.GL_DRAW_FRAMEBUFFER, GL3.GL_NONE);
         }
 		
+        stream.endFrame();
+        
         // Restore original scene camera and projection matrices
      	sceneManager.getCamera().setCameraMatrix(sceneCamera);
      	sceneManager.getFrustum().setProjectionMatrix(projectionMatrix);
@@ -204,6 +308,12 @@ public class VRRenderContext implements RenderContext {
 	 */
 	private void beginFrame() {
 		gl.glClear(GL3.GL_COLOR_BUFFER_BIT | GL3.GL_DEPTH_BUFFER_BIT);
+		// The compositor and the framebuffer blits change the GL state
+		// behind the back of the state tracker
+		state.reset();
+		sampler.bind(0);
+		activeShader = baseShader;
+		state.useProgram(activeShader.programId());
 	}
 
 	/**
@@ -211,19 +321,24 @@ public class VRRenderContext implements RenderContext {
 	 * is complete.
 	 */
 	private void endFrame() {
+		// Bind the default vertex array, VAOs stay bound between draw calls
+		state.bindVertexArray(0);
 		gl.glFlush();
 	}
 
 	/**
-	 * The main rendering method.
+	 * Add an object to the render queue, with the shader, texture and VAO 
+	 * it will be drawn with.
 	 * 
-	 * @param renderItem
+	 * @param shape
 	 *            the object that needs to be drawn
+	 * @param t
+	 *            the transformation of the object
+	 * @param camera
+	 *            the camera matrix of the current eye
 	 */
-	private void draw(RenderItem renderItem) {
-		setMaterial(renderItem.getShape().getMaterial());
-
-		GLVertexData vertexData = (GLVertexData) renderItem.getShape().getVertexData();
+	private void enqueue(Shape shape, Matrix4f t, Matrix4f camera) {
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
 
 		// In the first pass the object has to be given to the buffer (on the
 		// GPU) and the renderItem has to store the handle, so we do not have to
@@ -232,61 +347,85 @@ public class VRRenderContext implements RenderContext {
 			initArrayBuffer(vertexData);
 		}
 
-		// Set modelview and projection matrices in shader (has to be done in
-		// every step, since they usually have changed)
-		setTransformation(renderItem.getT());
+		Material m = shape.getMaterial();
+		int shaderID = baseShader.programId();
+		int textureID = 0;
+		if (m != null && m.shader != null) {
+			shaderID = ((GLShader) m.shader).programId();
+			if (m.texture != null)
+				textureID = ((GLTexture) m.texture).getId();
+		}
+
+		// Distance of the object origin along the viewing direction
+		float depth = -(camera.m20 * t.m03 + camera.m21 * t.m13 + camera.m22 * t.m23 + camera.m23);
+
+		renderQueue.add(shape, t, shaderID, textureID, vertexData.getVAO().getId(), depth);
+		if (shape.isOccluder())
+			occlusionBuffer.drawOccluder(shape, t);
+	}
+
+	/**
+	 * The main rendering method.
+	 * 
+	 * @param k
+	 *            the index of the object in the render queue
+	 */
+	private void draw(int k) {
+		Shape shape = renderQueue.getShape(k);
+		Matrix4f t = renderQueue.getTransformation(k);
+		itemLights.assign(shape, t);
+		setMaterial(shape.getMaterial());
+
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
+
+		// Bind the modelview matrix, which was streamed for all objects in
+		// the render queue (has to be done in every step, since it usually
+		// has changed)
+		objectUniforms.bind(renderQueue, k, sceneManager.getCamera().getCameraMatrix());
 
 		// Bind the VAO of this shape (all the vertex data are already on the
 		// GPU, we do not have to send them again)
-		vertexData.getVAO().bind();
+		state.bindVertexArray(vertexData.getVAO().getId());
 							
-		// Try to connect the vertex arrays to the corresponding variables 
-		// in the current vertex shader.
-		// Note: This is not part of the vertex array object, because the active
-		// shader may have changed since the vertex array object was initialized. 
-		// We need to make sure the vertex buffers are connected to the right
-		// variables in the shader
-		ListIterator<VertexData.VertexElement> itr = vertexData.getElements().listIterator(0);
-		vertexData.getVAO().rewindVBO();
-		while (itr.hasNext()) {
-			VertexData.VertexElement e = itr.next();
-			int dim = e.getNumberOfComponents();
+		bindVertexAttributes(vertexData);
 
-			// Bind the next vertex buffer object
-			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, vertexData.getVAO().getNextVBO());
-
-			// Tell OpenGL which "in" variable in the vertex shader corresponds
-			// to the current vertex buffer object.
-			// We use our own convention to name the variables, i.e.,
-			// "position", "normal", "color", "texcoord", or others if
-			// necessary.
-			int attribIndex = -1;
-			switch (e.getSemantic()) {
-			case POSITION:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "position");
-				break;
-			case NORMAL:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "normal");
-				break;
-			case COLOR:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "color");
-				break;
-			case TEXCOORD:
-				attribIndex = gl.glGetAttribLocation(activeShaderID, "texcoord");
-				break;
-			}
+		// Render the vertex buffer objects
+		gl.glDrawElements(GL3.GL_TRIANGLES, vertexData.getIndices().length, GL3.GL_UNSIGNED_INT, 0);
 
-			gl.glVertexAttribPointer(attribIndex, dim, GL3.GL_FLOAT, false, 0, 0);
-			gl.glEnableVertexAttribArray(attribIndex);
-		}
+		cleanMaterial(shape.getMaterial());
+	}
 
-		// Render the vertex buffer objects
-		gl.glDrawElements(GL3.GL_TRIANGLES, renderItem.getShape().getVertexData().getIndices().length, GL3.GL_UNSIGNED_INT, 0);
+	/**
+	 * Draw the items i to j-1 of the render queue with a single instanced
+	 * draw call, see {@link GLInstanceBuffer#draw}. If that is not possible,
+	 * the items are drawn one by one.
+	 */
+	private void drawInstanced(int i, int j) {
+		Shape shape = renderQueue.getShape(i);
+		itemLights.assign(renderQueue, i, j);
+		setMaterial(shape.getMaterial());
+
+		GLVertexData vertexData = (GLVertexData) shape.getVertexData();
+		state.bindVertexArray(vertexData.getVAO().getId());
+		bindVertexAttributes(vertexData);
+		if (!instanceBuffer.draw(renderQueue, i, j, sceneManager.getCamera().getCameraMatrix(), activeShader)) {
+			for (int k = i; k < j; k++)
+				draw(k);
+			return;
+		}
 
-		// we are done with this shape, bind the default vertex array
-		gl.glBindVertexArray(0);
+		cleanMaterial(shape.getMaterial());
+	}
 
-		cleanMaterial(renderItem.getShape().getMaterial());
+	/**
+	 * Connect the vertex buffers of the vertex data to the vertex attributes
+	 * of the active shader. The VAO of the vertex data must be bound. 
+	 * Dynamic vertex data is streamed first, and static vertex data that has
+	 * changed is uploaded again.
+	 */
+	private void bindVertexAttributes(GLVertexData vertexData) {
+		vertexData.update(gl, state, stream);
+		vertexData.bindAttributes(gl, state, activeShader);
 	}
 
 	/**
@@ -304,7 +443,7 @@ public class VRRenderContext implements RenderContext {
 		data.setVAO(vao);
 		
 		// Bind (activate) the VAO for the vertex data
-		vao.bind();
+		state.bindVertexArray(vao.getId());
 		
 		// Store all vertex attributes in the buffers
 		ListIterator<VertexData.VertexElement> itr = data.getElements()
@@ -313,41 +452,24 @@ public class VRRenderContext implements RenderContext {
 			VertexData.VertexElement e = itr.next();
 
 			// Bind the next vertex buffer object
-			gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
+			state.bindBuffer(GL3.GL_ARRAY_BUFFER, data.getVAO().getNextVBO());
 			// Upload vertex data
 			gl.glBufferData(GL3.GL_ARRAY_BUFFER, e.getData().length * 4,
-					FloatBuffer.wrap(e.getData()), GL3.GL_DYNAMIC_DRAW);
+					FloatBuffer.wrap(e.getData()), GL3.GL_STATIC_DRAW);
 
 		}
 
 		// bind the default vertex buffer objects
-		gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, 0);
+		state.bindBuffer(GL3.GL_ARRAY_BUFFER, 0);
 
 		// store the indices into the last buffer
-		gl.glBindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, data.getVAO().getNextVBO());
+		state.bindBuffer(GL3.GL_ELEMENT_ARRAY_BUFFER, data.getVAO().getNextVBO());
 		gl.glBufferData(GL3.GL_ELEMENT_ARRAY_BUFFER,
 				data.getIndices().length * 4,
-				IntBuffer.wrap(data.getIndices()), GL3.GL_DYNAMIC_DRAW);
+				IntBuffer.wrap(data.getIndices()), GL3.GL_STATIC_DRAW);
 
 		// bind the default vertex array object
-		gl.glBindVertexArray(0);
-	}
-
-	private void setTransformation(Matrix4f transformation) {
-		// Compute the modelview matrix by multiplying the camera matrix and
-		// the transformation matrix of the object
-		Matrix4f modelview = new Matrix4f(sceneManager.getCamera()
-				.getCameraMatrix());
-		modelview.mul(transformation);
-
-		// Set modelview and projection matrices in shader
-		gl.glUniformMatrix4fv(
-				gl.glGetUniformLocation(activeShaderID, "modelview"), 1, false,
-				transformationToFloat16(modelview), 0);
-		gl.glUniformMatrix4fv(gl.glGetUniformLocation(activeShaderID,
-				"projection"), 1, false, transformationToFloat16(sceneManager
-				.getFrustum().getProjectionMatrix()), 0);
-
+		state.bindVertexArray(0);
 	}
 
 	/**
@@ -357,58 +479,32 @@ public class VRRenderContext implements RenderContext {
 	 */
 	private void setMaterial(Material m) {
 		
+		// Items without a material shader are drawn with the shader set by
+		// useShader(Shader)
+		if(m == null || m.shader == null)
+			bindShader(baseShader);
+		else
+			bindShader((GLShader)m.shader);
+		
+		// Select the lights of the item from the lights of the frame, and
+		// bind the buffer range with the material parameters
+		activeShader.setLightIndices(itemLights.getIndices(), itemLights.getNumberOfIndices());
+		materials.bind(m);
+		
 		// Set up the shader for the material, if it has one
 		if(m != null && m.shader != null) {
-			useShader(m.shader);
-			
-			// Pass shininess parameter to shader 
-			int id = gl.glGetUniformLocation(activeShaderID, "shininess");
-			if(id!=-1)
-				gl.glUniform1f(id, m.shininess);
-			else
-				System.out.print("Could not get location of uniform variable shininess\n");
 			
 			// Activate the texture, if the material has one
 			if(m.texture != null) {
-				// OpenGL calls to activate the texture 
-				gl.glActiveTexture(GL3.GL_TEXTURE0);	// Work with texture unit 0
-				gl.glEnable(GL3.GL_TEXTURE_2D);
-				gl.glBindTexture(GL3.GL_TEXTURE_2D, ((GLTexture)m.texture).getId());
-				gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
-				gl.glTexParameteri(GL3.GL_TEXTURE_2D, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
-				id = gl.glGetUniformLocation(activeShaderID, "myTexture");
+				// OpenGL calls to activate the texture, skipped by the state
+				// tracker if the previous item in the sorted queue used the
+				// same one. The filtering is done by the sampler of unit 0.
+				state.activeTexture(GL3.GL_TEXTURE0);	// Work with texture unit 0
+				state.enable(GL3.GL_TEXTURE_2D);
+				state.bindTexture(GL3.GL_TEXTURE_2D, ((GLTexture)m.texture).getId());
+				int id = activeShader.getTextureLocation();
 				gl.glUniform1i(id, 0);	// The variable in the shader needs to be set to the desired texture unit, i.e., 0
 			}
-			
-			// Pass light source information to shader, iterate over all light sources
-			Iterator<Light> iter = sceneManager.lightIterator();			
-			int i=0;
-			Light l;
-			if(iter != null) {
-				
-				while(iter.hasNext() && i<8)
-				{
-					l = iter.next(); 
-					
-					// Pass light direction to shader
-					String lightString = "lightDirection[" + i + "]";			
-					id = gl.glGetUniformLocation(activeShaderID, lightString);
-					if(id!=-1)
-						gl.glUniform4f(id, l.direction.x, l.direction.y, l.direction.z, 0.f);		// Set light direction
-					else
-						System.out.print("Could not get location of uniform variable " + lightString + "\n");
-					
-					i++;
-				}
-				
-				// Pass number of lights to shader
-				id = gl.glGetUniformLocation(activeShaderID, "nLights");
-				if(id!=-1)
-					gl.glUniform1i(id, i);		// Set number of lightrs
-				else
-					System.out.print("Could not get location of uniform variable nLights\n");
-
-			}
 
 		}
 	}	
@@ -423,11 +519,29 @@ public class VRRenderContext implements RenderContext {
 
 	public void useShader(Shader s) {
 		if (s != null) {
-			activeShaderID = ((GLShader)s).programId();
-			gl.glUseProgram(activeShaderID);
+			baseShader = (GLShader)s;
+			activeShader = baseShader;
+			state.useProgram(activeShader.programId());
 		}
 	}
 
+	/**
+	 * Activate a shader program while drawing. The state tracker skips the
+	 * call if it is already active.
+	 */
+	private void bindShader(GLShader s) {
+		activeShader = s;
+		state.useProgram(s.programId());
+	}
+
+	/**
+	 * @return the state tracker, which counts the redundant state changes
+	 * of the last frame
+	 */
+	public GLStateTracker getStateTracker() {
+		return state;
+	}
+
 	public Shader makeShader() {
 		return new GLShader(gl);
 	}
@@ -439,24 +553,16 @@ public class VRRenderContext implements RenderContext {
 	public VertexData makeVertexData(int n) {
 		return new GLVertexData(n);
 	}
-
-	/**
-	 * Convert a Transformation to a float array in column major ordering, as
-	 * used by OpenGL.
-	 */
-	private static float[] transformationToFloat16(Matrix4f m) {
-		float[] f = new float[16];
-		for (int i = 0; i < 4; i++)
-			for (int j = 0; j < 4; j++)
-				f[j * 4 + i] = m.getElement(i, j);
-		return f;
-	}
 	
 	/**
 	 * Disposes all disposables
 	 */
 	public void dispose(){
 		this.vrBuffer.dispose();
+		frameUniforms.dispose();
+		materials.dispose();
+		sampler.dispose();
+		stream.dispose();
 	}
 
 	@Override
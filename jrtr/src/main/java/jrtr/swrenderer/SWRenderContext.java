@@ -38,6 +38,10 @@ public class SWRenderContext implements RenderContext {
 	{
 		if(sceneManager == null) return;
 		
+		// Let the scene manager prepare the frame, e.g., pick up the latest
+		// snapshot of an animated scene in the whole frame
+		sceneManager.beginFrame();
+		
 		beginFrame();
 	
 		SceneManagerIterator iterator = sceneManager.iterator();	
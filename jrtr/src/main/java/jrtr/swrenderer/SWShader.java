@@ -7,11 +7,23 @@ import jrtr.Shader;
  */
 public class SWShader implements Shader {
 
+	private String vertexFileName, fragmentFileName;
+
 	public void disable() {
 	}
 
 	public void load(String vertexFileName, String fragmentFileName)
 			throws Exception {
+		this.vertexFileName = vertexFileName;
+		this.fragmentFileName = fragmentFileName;
+	}
+
+	public String getVertexFileName() {
+		return vertexFileName;
+	}
+
+	public String getFragmentFileName() {
+		return fragmentFileName;
 	}
 
 	public void use() {
@@ -9,7 +9,14 @@ import jrtr.Texture;
  */
 public class SWTexture implements Texture {
 
+	private String fileName;
+
 	public void load(String fileName) throws IOException {
+		this.fileName = fileName;
+	}
+
+	public String getFileName() {
+		return fileName;
 	}
 
 }
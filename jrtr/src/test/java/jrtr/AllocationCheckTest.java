@@ -0,0 +1,174 @@
+package jrtr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Vector3f;
+
+import org.junit.Test;
+
+/**
+ * Checks that the scene managers do not allocate while a scene is animated
+ * and traversed, as allowed by the contract of {@link SceneManagerIterator}.
+ * For each scene manager, a scene of moving shapes is traversed twice per
+ * frame, as for the two eyes of a VR display. After a warm-up, the bytes
+ * allocated by the thread over 900 frames, ten seconds at 90 Hz, are
+ * measured with com.sun.management.ThreadMXBean and must be 0.
+ */
+public class AllocationCheckTest {
+
+	private static final int SHAPES = 2000;
+	private static final int WARMUP_FRAMES = 20000;
+	private static final int FRAMES = 900;
+
+	private com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	// Where the traversed items are copied to, like a render queue
+	private Shape[] queue = new Shape[SHAPES];
+	private Matrix4f[] queueT = new Matrix4f[SHAPES];
+
+	// The animated transformations, and their positions at rest
+	private Matrix4f[] moving;
+	private Node[] movingNodes;
+	private Shape[] movingShapes;
+	private float[] rest;
+
+	@Test
+	public void simpleSceneManager()
+	{
+		check(new SimpleSceneManager());
+	}
+
+	@Test
+	public void graphSceneManager()
+	{
+		check(new GraphSceneManager());
+	}
+
+	@Test
+	public void bvhSceneManager()
+	{
+		check(new BVHSceneManager());
+	}
+
+	@Test
+	public void octreeSceneManager()
+	{
+		check(new OctreeSceneManager(new Vector3f(0, 0, 0), 200, 7));
+	}
+
+	/**
+	 * Build the scene, warm up and measure one scene manager.
+	 */
+	private void check(SceneManagerInterface sceneManager)
+	{
+		sceneManager.getFrustum().setProjectionMatrix(new Matrix4f(2, 0, 0, 0, 0, 2, 0, 0,
+				0, 0, -1.02f, -2.02f, 0, 0, -1, 0));
+		buildScene(sceneManager);
+
+		for(int f = 0; f < WARMUP_FRAMES; f++)
+			frame(sceneManager, f);
+
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for(int f = WARMUP_FRAMES; f < WARMUP_FRAMES + FRAMES; f++)
+			frame(sceneManager, f);
+		long bytes = threads.getThreadAllocatedBytes(thread) - before;
+
+		assertEquals(sceneManager.getClass().getSimpleName() + " bytes per frame",
+				0, (float) bytes / FRAMES, 0);
+	}
+
+	/**
+	 * Add cubes at random positions. Every seventh one is animated; in the
+	 * scene graph, it gets a group of its own that is animated instead.
+	 */
+	private void buildScene(SceneManagerInterface sceneManager)
+	{
+		Random random = new Random(5);
+		int n = (SHAPES + 6) / 7;
+		moving = new Matrix4f[n];
+		movingNodes = new Node[n];
+		movingShapes = new Shape[n];
+		rest = new float[n];
+		for(int i = 0; i < SHAPES; i++) {
+			Shape shape = new Shape(cube());
+			Matrix4f t = new Matrix4f();
+			t.setIdentity();
+			t.setTranslation(new Vector3f(random.nextFloat() * 100 - 50,
+					random.nextFloat() * 100 - 50, random.nextFloat() * 100 - 50));
+
+			Node node = null;
+			if(sceneManager instanceof GraphSceneManager) {
+				ShapeNode shapeNode = new ShapeNode(shape);
+				if(i % 7 == 0) {
+					TransformGroup group = new TransformGroup();
+					group.setTransformation(t);
+					group.addChild(shapeNode);
+					((GraphSceneManager) sceneManager).getRoot().addChild(group);
+					node = group;
+				} else {
+					shapeNode.setTransformation(t);
+					((GraphSceneManager) sceneManager).getRoot().addChild(shapeNode);
+				}
+			} else {
+				shape.setTransformation(t);
+				if(sceneManager instanceof SimpleSceneManager)
+					((SimpleSceneManager) sceneManager).addShape(shape);
+				else if(sceneManager instanceof BVHSceneManager)
+					((BVHSceneManager) sceneManager).addShape(shape);
+				else
+					((OctreeSceneManager) sceneManager).addShape(shape);
+			}
+
+			if(i % 7 == 0) {
+				moving[i / 7] = t;
+				movingNodes[i / 7] = node;
+				movingShapes[i / 7] = shape;
+				rest[i / 7] = t.m03;
+			}
+		}
+	}
+
+	/**
+	 * Move the animated shapes back and forth, and traverse the scene twice.
+	 */
+	private void frame(SceneManagerInterface sceneManager, int f)
+	{
+		for(int i = 0; i < moving.length; i++) {
+			Matrix4f t = moving[i];
+			t.m03 = rest[i] + 5 * (float) Math.sin(0.01 * f + i);
+			if(movingNodes[i] != null)
+				movingNodes[i].setTransformation(t);
+			else
+				movingShapes[i].setTransformation(t);
+		}
+
+		int n = 0;
+		for(int eye = 0; eye < 2; eye++) {
+			n = 0;
+			SceneManagerIterator iterator = sceneManager.iterator();
+			while(iterator.hasNext()) {
+				RenderItem r = iterator.next();
+				queue[n] = r.getShape();
+				queueT[n] = r.getT();
+				n++;
+			}
+		}
+	}
+
+	private static VertexData cube()
+	{
+		float[] v = { -1,-1,-1, 1,-1,-1, 1,1,-1, -1,1,-1, -1,-1,1, 1,-1,1, 1,1,1, -1,1,1 };
+		int[] indices = { 0,2,1, 0,3,2, 4,5,6, 4,6,7, 0,1,5, 0,5,4,
+				3,7,6, 3,6,2, 0,4,7, 0,7,3, 1,2,6, 1,6,5 };
+		VertexData vertexData = new VertexData(8) {};
+		vertexData.addElement(v, VertexData.Semantic.POSITION, 3);
+		vertexData.addIndices(indices);
+		return vertexData;
+	}
+}
@@ -22,6 +22,7 @@ public class simple
 	static Shader diffuseShader;
 	static Material material;
 	static SimpleSceneManager sceneManager;
+	static SnapshotSceneManager snapshots;
 	static Shape shape;
 	static float currentstep, basicstep;
 
@@ -98,8 +99,11 @@ public class simple
 			shape = new Shape(vertexData);
 			sceneManager.addShape(shape);
 
-			// Add the scene to the renderer
-			renderContext.setSceneManager(sceneManager);
+			// Add the scene to the renderer. The renderer draws snapshots of
+			// the scene that are published by the animation task.
+			snapshots = new SnapshotSceneManager(sceneManager);
+			snapshots.publish();
+			renderContext.setSceneManager(snapshots);
 			
 			// Load some more shaders
 		    normalShader = renderContext.makeShader();
@@ -143,18 +147,23 @@ public class simple
 	 */
 	public static class AnimationTask extends TimerTask
 	{
+		// Reused in every step to avoid allocations
+		private Matrix4f rotX = new Matrix4f();
+		private Matrix4f rotY = new Matrix4f();
+		
 		public void run()
 		{
 			// Update transformation by rotating with angle "currentstep"
     		Matrix4f t = shape.getTransformation();
-    		Matrix4f rotX = new Matrix4f();
     		rotX.rotX(currentstep);
-    		Matrix4f rotY = new Matrix4f();
     		rotY.rotY(currentstep);
     		t.mul(rotX);
     		t.mul(rotY);
     		shape.setTransformation(t);
     		
+    		// Make the new transformation visible to the renderer
+    		snapshots.publish();
+    		
     		// Trigger redrawing of the render window
     		renderPanel.getCanvas().repaint(); 
 		}
@@ -34,8 +34,11 @@ public class CubeVR
     static Shader normalShader;
     static Shader diffuseShader;
     static Material material, frontMaterial, backMaterial, ceilingMaterial, floorMaterial, rightMaterial, leftMaterial;
-    static SimpleSceneManager sceneManager;
+    static GraphSceneManager sceneManager;
+    static SnapshotSceneManager snapshots;
     static Shape shape, frontShape, backShape,ceilingShape,floorShape,rightShape,leftShape;
+    static TransformGroup room;
+    static Matrix4f rotX = new Matrix4f(), rotY = new Matrix4f();
     static float currentstep, basicstep;
     static float roomSize  =2;
     static int songNumber;
@@ -66,17 +69,23 @@ public class CubeVR
             makeCubeShape();
 
 
-            // Make a scene manager and add the object
-            sceneManager = new SimpleSceneManager();
-            sceneManager.addShape(backShape);
-            sceneManager.addShape(frontShape);
-            sceneManager.addShape(leftShape);
-            sceneManager.addShape(rightShape);
-            sceneManager.addShape(floorShape);
-            sceneManager.addShape(ceilingShape);
-
-            // Add the scene to the renderer
-            renderContext.setSceneManager(sceneManager);
+            // Make a scene manager and add the walls to one group, so
+            // the whole room is rotated with a single transformation
+            sceneManager = new GraphSceneManager();
+            room = new TransformGroup();
+            room.addChild(new ShapeNode(backShape));
+            room.addChild(new ShapeNode(frontShape));
+            room.addChild(new ShapeNode(leftShape));
+            room.addChild(new ShapeNode(rightShape));
+            room.addChild(new ShapeNode(floorShape));
+            room.addChild(new ShapeNode(ceilingShape));
+            sceneManager.getRoot().addChild(room);
+
+            // Add the scene to the renderer. The renderer draws snapshots of
+            // the scene that are published by the animation task.
+            snapshots = new SnapshotSceneManager(sceneManager);
+            snapshots.publish();
+            renderContext.setSceneManager(snapshots);
 
             // Load some more shaders
             normalShader = renderContext.makeShader();
@@ -506,62 +515,16 @@ public class CubeVR
     {
         public void run()
         {
-            // Update transformation by rotating with angle "currentstep"
-            //Front
-            Matrix4f t = frontShape.getTransformation();
-            Matrix4f rotX = new Matrix4f();
-            rotX.rotX(currentstep);
-            Matrix4f rotY = new Matrix4f();
-            rotY.rotY(currentstep);
-            t.mul(rotX);
-            t.mul(rotY);
-            frontShape.setTransformation(t);
-
-            t = backShape.getTransformation();
-            rotX = new Matrix4f();
-            rotX.rotX(currentstep);
-            rotY = new Matrix4f();
-            rotY.rotY(currentstep);
-            t.mul(rotX);
-            t.mul(rotY);
-            backShape.setTransformation(t);
-
-            t = leftShape.getTransformation();
-            rotX = new Matrix4f();
-            rotX.rotX(currentstep);
-            rotY = new Matrix4f();
-            rotY.rotY(currentstep);
-            t.mul(rotX);
-            t.mul(rotY);
-            leftShape.setTransformation(t);
-
-            t = rightShape.getTransformation();
-            rotX = new Matrix4f();
-            rotX.rotX(currentstep);
-            rotY = new Matrix4f();
-            rotY.rotY(currentstep);
-            t.mul(rotX);
-            t.mul(rotY);
-            rightShape.setTransformation(t);
-
-            t = floorShape.getTransformation();
-            rotX = new Matrix4f();
-            rotX.rotX(currentstep);
-            rotY = new Matrix4f();
-            rotY.rotY(currentstep);
-            t.mul(rotX);
-            t.mul(rotY);
-            floorShape.setTransformation(t);
-
-            t = ceilingShape.getTransformation();
-            rotX = new Matrix4f();
+            // Update transformation of the room by rotating with angle "currentstep"
+            Matrix4f t = room.getTransformation();
             rotX.rotX(currentstep);
-            rotY = new Matrix4f();
             rotY.rotY(currentstep);
             t.mul(rotX);
             t.mul(rotY);
-            ceilingShape.setTransformation(t);
+            room.setTransformation(t);
 
+            // Make the new transformation visible to the renderer
+            snapshots.publish();
 
             // Trigger redrawing of the render window
             renderPanel.getCanvas().repaint();
@@ -32,6 +32,8 @@ import java.awt.event.MouseEvent;
 import javax.vecmath.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -43,7 +45,9 @@ import java.util.TimerTask;
 public class SimpleOpenVR {
 	static VRRenderPanel renderPanel;
 	static RenderContext renderContext;
-	static SimpleSceneManager sceneManager;
+	static OctreeSceneManager sceneManager;
+	// shapes close to the ball, filled each frame
+	static ArrayList<Shape> nearbyShapes = new ArrayList<Shape>();
 
 	// shapes
 	static Shape ball;
@@ -64,6 +68,9 @@ public class SimpleOpenVR {
 	
 	static Material material, ballMaterial, racketMaterial, handMaterial, textureMaterial;
 	static Material frontMaterial, backMaterial, ceilingMaterial, floorMaterial, rightMaterial, leftMaterial;
+	// the walls of the room merged into one shape per material, used for
+	// rendering instead of the individual wall shapes
+	static List<StaticBatch> roomBatches;
     
 	static Shader diffuseShader;
 
@@ -317,7 +324,7 @@ public class SimpleOpenVR {
 			vertexDataBall.addIndices(ballObj.indices);
 
 			// Make a scene manager and add the objects
-			sceneManager = new SimpleSceneManager();
+			sceneManager = new OctreeSceneManager(new Vector3f(0, 0, 0), 4 * roomSize, 6);
 			
 			
 			
@@ -416,12 +423,14 @@ public class SimpleOpenVR {
 			sceneManager.addShape(controllerRacket);
 			sceneManager.addShape(ball);
 			sceneManager.addShape(textureShape);
-			sceneManager.addShape(backShape);
-            sceneManager.addShape(frontShape);
-            sceneManager.addShape(leftShape);
-            sceneManager.addShape(rightShape);
-            sceneManager.addShape(floorShape);
-            sceneManager.addShape(ceilingShape);
+			// The room never moves, merge its walls into one shape per
+			// material to save draw calls
+			List<Shape> room = Arrays.asList(backShape, frontShape, leftShape, rightShape, floorShape, ceilingShape);
+			for (Shape wall : room)
+				wall.setStatic(true);
+			roomBatches = StaticBatch.build(room, renderContext);
+			for (StaticBatch batch : roomBatches)
+				sceneManager.addShape(batch.getShape());
 
 			ballSpeed = new Vector3f();
 
@@ -762,45 +771,17 @@ public class SimpleOpenVR {
 	            }
 	            rightShape.setMaterial(rightMaterial);
 
-	            leftMaterial = new Material();
-	            leftMaterial.shader = diffuseShader;
-//	            leftMaterial.diffuseMap = renderContext.makeTexture();
-	            leftMaterial.texture = renderContext.makeTexture();
-	            try {
-//	                leftMaterial.diffuseMap.load("../textures/plant.jpg");
-	                leftMaterial.texture.load("../textures/wall4.jpg");
-	            } catch(Exception e) {
-	                System.out.print("Could not load textureright.\n");
-	                System.out.print(e.getMessage());
-	            }
+	            // The other walls use the same texture, they share the material
+	            // so that they can be merged into one static batch
+	            leftMaterial = rightMaterial;
 	            leftShape.setMaterial(leftMaterial);
 
 	          
 
-	            frontMaterial = new Material();
-	            frontMaterial.shader = diffuseShader;
-//	            frontMaterial.diffuseMap = renderContext.makeTexture();
-	            frontMaterial.texture = renderContext.makeTexture();
-	            try {
-//	                frontMaterial.diffuseMap.load("../textures/plant.jpg");
-	                frontMaterial.texture.load("../textures/wall4.jpg");
-	            } catch(Exception e) {
-	                System.out.print("Could not load texture. front\n");
-	                System.out.print(e.getMessage());
-	            }
+	            frontMaterial = rightMaterial;
 	            frontShape.setMaterial(frontMaterial);
 
-	            backMaterial = new Material();
-	            backMaterial.shader = diffuseShader;
-//	            backMaterial.diffuseMap = renderContext.makeTexture();
-	            backMaterial.texture = renderContext.makeTexture();
-	            try {
-//	                backMaterial.diffuseMap.load("../textures/glurak.jpg");
-	                backMaterial.texture.load("../textures/wall4.jpg");
-	            } catch(Exception e) {
-	                System.out.print("Could not load texture.back \n");
-	                System.out.print(e.getMessage());
-	            }
+	            backMaterial = rightMaterial;
 	            backShape.setMaterial(backMaterial);
 
 	        }
@@ -1045,6 +1026,7 @@ public class SimpleOpenVR {
 																// 0,-1,-0.3
 
 			ballInitTrafo.setTranslation(ballSpeed);
+			ball.setTransformation(ballInitTrafo);
 		}
 		
 		private void activateGravity(){
@@ -1194,48 +1176,53 @@ public class SimpleOpenVR {
 					}
 				}
 
-				// Intersection with racket
-				Matrix4f ballTrafoBoxSpace = new Matrix4f(ballTrafo);
-				Matrix4f invertedRacketMat = new Matrix4f(racketTrafo);
-				if(invertedRacketMat.determinant() != 0)
-				{
-					invertedRacketMat.invert();
-				}
-				//transform speed into racket coordinates to mirror it on reflection vector
-				invertedRacketMat.transform(ballSpeed);
-				invertedRacketMat.mul(ballTrafoBoxSpace);
-
-				Vector3f hitPoint = checkBallRacketIntersection(new Matrix4f(invertedRacketMat));
-				if (hitPoint != null) {
-					Vector3f n = new Vector3f(invertedRacketMat.m03, invertedRacketMat.m13, invertedRacketMat.m23);//somehow, this doesn't equal the transformed posBall
-					Vector4f centerBallInRacketCoords = new Vector4f(n.x,n.y,n.z,1f);
-					n.sub(hitPoint);
+				// Intersection with racket, only tested if the octree reports
+				// the racket close to the ball
+				nearbyShapes.clear();
+				sceneManager.querySphere(posBall, ballRadius, nearbyShapes);
+				if (nearbyShapes.contains(controllerRacket)) {
+					Matrix4f ballTrafoBoxSpace = new Matrix4f(ballTrafo);
+					Matrix4f invertedRacketMat = new Matrix4f(racketTrafo);
+					if(invertedRacketMat.determinant() != 0)
+					{
+						invertedRacketMat.invert();
+					}
+					//transform speed into racket coordinates to mirror it on reflection vector
+					invertedRacketMat.transform(ballSpeed);
+					invertedRacketMat.mul(ballTrafoBoxSpace);
+
+					Vector3f hitPoint = checkBallRacketIntersection(new Matrix4f(invertedRacketMat));
+					if (hitPoint != null) {
+						Vector3f n = new Vector3f(invertedRacketMat.m03, invertedRacketMat.m13, invertedRacketMat.m23);//somehow, this doesn't equal the transformed posBall
+						Vector4f centerBallInRacketCoords = new Vector4f(n.x,n.y,n.z,1f);
+						n.sub(hitPoint);
 					
 					
-					//this part is for putting the ball outside the racket. It doesn't work yet
-					centerBallInRacketCoords = positionBallOutsideRacket(hitPoint, centerBallInRacketCoords);
-					racketTrafo.transform(centerBallInRacketCoords);
-					posBall = new Vector3f(centerBallInRacketCoords.x, centerBallInRacketCoords.y, centerBallInRacketCoords.z);
-					//until here
+						//this part is for putting the ball outside the racket. It doesn't work yet
+						centerBallInRacketCoords = positionBallOutsideRacket(hitPoint, centerBallInRacketCoords);
+						racketTrafo.transform(centerBallInRacketCoords);
+						posBall = new Vector3f(centerBallInRacketCoords.x, centerBallInRacketCoords.y, centerBallInRacketCoords.z);
+						//until here
 					
-					 n = new Vector3f(invertedRacketMat.m03, invertedRacketMat.m13, invertedRacketMat.m23);
-					 n.sub(hitPoint);
+						 n = new Vector3f(invertedRacketMat.m03, invertedRacketMat.m13, invertedRacketMat.m23);
+						 n.sub(hitPoint);
 					
-					transformSpeed(n);
-					addRacketSpeed(hitPoint, racketTrafo, n);
+						transformSpeed(n);
+						addRacketSpeed(hitPoint, racketTrafo, n);
 					
-					//a haptic feedback) is triggered
-					renderPanel.triggerHapticPulse(renderPanel.controllerIndexRacket, 3999);//when ball hits racket
-					if (ballSpeed.length() > 0.01f)
-					{
-						playSound(1f/((ballSpeed.length()+0.0001f)*100-1), "file:///C:/Users/cg2016_team1/git/VR 5/sounds/tennisVolley.wav");
-					}
+						//a haptic feedback) is triggered
+						renderPanel.triggerHapticPulse(renderPanel.controllerIndexRacket, 3999);//when ball hits racket
+						if (ballSpeed.length() > 0.01f)
+						{
+							playSound(1f/((ballSpeed.length()+0.0001f)*100-1), "file:///C:/Users/cg2016_team1/git/VR 5/sounds/tennisVolley.wav");
+						}
 										
-					//Increase score
-					hitRacket=true;
+						//Increase score
+						hitRacket=true;
 					
+					}
+					racketTrafo.transform(ballSpeed);
 				}
-				racketTrafo.transform(ballSpeed);
 
 				posBall.add(ballSpeed);
 				ballTrafo.setTranslation(posBall);
@@ -1310,6 +1297,7 @@ public class SimpleOpenVR {
 			// update ball transformation matrix (right now this only shifts the
 			// ball a bit down)
 			// ballTrafo.setTranslation(throwingTranslationAccum);
+			ball.setTransformation(ballTrafo);
 //			System.out.print("figgdinimueter");
 		}
 		